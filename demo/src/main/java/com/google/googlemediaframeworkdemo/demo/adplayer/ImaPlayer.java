@@ -38,6 +38,7 @@ import com.google.ads.interactivemedia.v3.api.ImaSdkSettings;
 import com.google.ads.interactivemedia.v3.api.player.VideoAdPlayer;
 import com.google.ads.interactivemedia.v3.api.player.VideoProgressUpdate;
 import com.google.android.exoplayer.ExoPlayer;
+import com.google.android.libraries.mediaframework.exoplayerextensions.BufferBudget;
 import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper;
 import com.google.android.libraries.mediaframework.exoplayerextensions.Video;
 import com.google.android.libraries.mediaframework.layeredvideo.PlaybackControlLayer;
@@ -599,6 +600,9 @@ public class ImaPlayer {
 
     adPlayer.addPlaybackListener(adPlaybackListener);
 
+    // Give most of the shared buffer memory to the content player, which resumes after the ad.
+    adPlayer.setBufferPriority(BufferBudget.PRIORITY_AD);
+
     // Move the ad player's surface layer to the foreground so that it is overlaid on the content
     // player's surface layer (which is in the background).
     adPlayer.moveSurfaceToForeground();
@@ -0,0 +1,232 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.google.android.exoplayer.TrackRenderer;
+import com.google.android.exoplayer.chunk.MultiTrackChunkSource;
+import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper.CancelableRendererBuilderCallback;
+import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper.RendererBuilder;
+import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper.RendererBuilderCallback;
+
+/**
+ * A {@link RendererBuilder} which runs another {@link RendererBuilder} on a shared background
+ * thread, and delivers the result back on the player's main thread.
+ *
+ * <p>Building renderers for a large manifest (filtering representations, querying decoder
+ * capabilities, setting up DRM and creating chunk sources) can take long enough to cause visible
+ * jank when it runs on the UI thread. Wrapping the builder in an {@link AsyncRendererBuilder}
+ * moves that work off the UI thread without changing the builder itself.
+ *
+ * <p>The {@link TimingListener} tells how long each build spent waiting for its manifest and how
+ * long it spent building on the background thread. The timeline of the startup phases
+ * (connection, manifest, decoder and DRM probes, DRM provisioning, DRM session, renderers) is
+ * reported by the wrapped builder's {@link StartupOrchestrator.Listener} (see
+ * {@link DashRendererBuilder#setStartupListener}).
+ */
+public class AsyncRendererBuilder implements RendererBuilder {
+
+  /**
+   * Receives the timings of a renderer build.
+   */
+  public interface TimingListener {
+
+    /**
+     * Invoked on the main thread once the renderers (or an error) have been delivered.
+     * @param totalMs The wall clock time from {@link #buildRenderers} being called to the result
+     *                being delivered on the main thread.
+     * @param manifestMs The time from {@link #buildRenderers} being called to the manifest
+     *                   reaching the builder, or 0 if the builder loads no manifest or failed to
+     *                   load it.
+     * @param buildMs The wall clock time the background thread spent in the build: the wrapped
+     *                builder's {@link RendererBuilder#buildRenderers} call and, once the manifest
+     *                has arrived, the rest of the build until its result. This is the time which
+     *                the main thread no longer spends building.
+     * @param buildCpuMs The CPU time which the background thread used during buildMs.
+     * @param deliveryMs The time it took for the result to be picked up by the main thread after
+     *                   the background thread produced it.
+     */
+    void onRendererBuildTimings(long totalMs, long manifestMs, long buildMs, long buildCpuMs,
+                                long deliveryMs);
+  }
+
+  /**
+   * The thread on which all the wrapped builders run. It is shared by every player in the process
+   * and is never stopped.
+   */
+  private static HandlerThread builderThread;
+
+  /**
+   * The builder which does the actual work.
+   */
+  private final RendererBuilder rendererBuilder;
+
+  /**
+   * Optional listener for the timings of each build.
+   */
+  private TimingListener timingListener;
+
+  /**
+   * @param rendererBuilder The builder which should run on the background thread.
+   */
+  public AsyncRendererBuilder(RendererBuilder rendererBuilder) {
+    this.rendererBuilder = rendererBuilder;
+  }
+
+  /**
+   * Set a listener which receives the timings of each build.
+   * @param timingListener The listener, or null to stop receiving timings.
+   */
+  public void setTimingListener(TimingListener timingListener) {
+    this.timingListener = timingListener;
+  }
+
+  @Override
+  public void buildRenderers(final ExoplayerWrapper player,
+                             final RendererBuilderCallback callback) {
+    final MainThreadCallback mainThreadCallback = new MainThreadCallback(callback,
+        player.getMainHandler(), SystemClock.elapsedRealtime());
+    new Handler(getBuilderThread().getLooper()).post(new Runnable() {
+      @Override
+      public void run() {
+        mainThreadCallback.startBuilding();
+        rendererBuilder.buildRenderers(player, mainThreadCallback);
+        mainThreadCallback.stopBuilding();
+      }
+    });
+  }
+
+  /**
+   * Note that the manifest of a build has arrived. Builders which load a manifest call this when
+   * it arrives, so that the wait for it is told apart from the build itself.
+   * @param callback The callback passed to the builder.
+   */
+  /* package */ static void onManifestLoaded(RendererBuilderCallback callback) {
+    if (callback instanceof MainThreadCallback) {
+      ((MainThreadCallback) callback).onManifestLoaded();
+    }
+  }
+
+  private static synchronized HandlerThread getBuilderThread() {
+    if (builderThread == null) {
+      builderThread = new HandlerThread("RendererBuilder", Process.THREAD_PRIORITY_BACKGROUND);
+      builderThread.start();
+    }
+    return builderThread;
+  }
+
+  /**
+   * Forwards the result of the wrapped builder to the main thread, and times the build.
+   */
+  private class MainThreadCallback implements CancelableRendererBuilderCallback {
+
+    private final RendererBuilderCallback callback;
+    private final Handler mainHandler;
+    private final long startTimeMs;
+
+    // Only accessed on the builder thread.
+    private long manifestMs;
+    private long buildMs;
+    private long buildCpuMs;
+    private boolean building;
+    private long buildingSinceMs;
+    private long buildingSinceCpuMs;
+
+    public MainThreadCallback(RendererBuilderCallback callback, Handler mainHandler,
+                              long startTimeMs) {
+      this.callback = callback;
+      this.mainHandler = mainHandler;
+      this.startTimeMs = startTimeMs;
+    }
+
+    public void onManifestLoaded() {
+      // The manifest may have been delivered while the builder was still being invoked.
+      stopBuilding();
+      manifestMs = SystemClock.elapsedRealtime() - startTimeMs;
+      startBuilding();
+    }
+
+    public void startBuilding() {
+      building = true;
+      buildingSinceMs = SystemClock.elapsedRealtime();
+      buildingSinceCpuMs = SystemClock.currentThreadTimeMillis();
+    }
+
+    public void stopBuilding() {
+      if (!building) {
+        // The result was delivered before the builder returned.
+        return;
+      }
+      building = false;
+      buildMs += SystemClock.elapsedRealtime() - buildingSinceMs;
+      buildCpuMs += SystemClock.currentThreadTimeMillis() - buildingSinceCpuMs;
+    }
+
+    @Override
+    public boolean isCanceled() {
+      return ExoplayerWrapper.isCanceled(callback);
+    }
+
+    @Override
+    public void onRenderers(final String[][] trackNames,
+                            final MultiTrackChunkSource[] multiTrackSources,
+                            final TrackRenderer[] renderers) {
+      stopBuilding();
+      final long manifestMs = this.manifestMs;
+      final long buildMs = this.buildMs;
+      final long buildCpuMs = this.buildCpuMs;
+      final long postTimeMs = SystemClock.elapsedRealtime();
+      mainHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          callback.onRenderers(trackNames, multiTrackSources, renderers);
+          reportTimings(manifestMs, buildMs, buildCpuMs, postTimeMs);
+        }
+      });
+    }
+
+    @Override
+    public void onRenderersError(final Exception e) {
+      stopBuilding();
+      final long manifestMs = this.manifestMs;
+      final long buildMs = this.buildMs;
+      final long buildCpuMs = this.buildCpuMs;
+      final long postTimeMs = SystemClock.elapsedRealtime();
+      mainHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          callback.onRenderersError(e);
+          reportTimings(manifestMs, buildMs, buildCpuMs, postTimeMs);
+        }
+      });
+    }
+
+    private void reportTimings(long manifestMs, long buildMs, long buildCpuMs, long postTimeMs) {
+      if (timingListener != null) {
+        long nowMs = SystemClock.elapsedRealtime();
+        timingListener.onRendererBuildTimings(nowMs - startTimeMs, manifestMs, buildMs,
+            buildCpuMs, nowMs - postTimeMs);
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,189 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import com.google.android.exoplayer.chunk.Format;
+import com.google.android.exoplayer.chunk.FormatEvaluator;
+import com.google.android.exoplayer.chunk.MediaChunk;
+import com.google.android.exoplayer.upstream.BandwidthMeter;
+
+import java.util.List;
+
+/**
+ * A {@link FormatEvaluator} which chooses the video format from the amount of media buffered
+ * ahead of the playback position, using the measured bandwidth only as a safety cap.
+ *
+ * <p>The buffered duration between the reservoir and the cushion is mapped linearly onto the
+ * range of available bitrates, in the style of buffer-based adaptation (BBA). The chosen bitrate
+ * is never higher than a fraction of the bandwidth estimate. Switches are subject to hysteresis:
+ * <ul>
+ *   <li>The format is only raised once enough media is buffered, and only if the bandwidth
+ *   estimate covers the new bitrate with an extra margin.</li>
+ *   <li>The format is only lowered once the buffer has drained below a threshold.</li>
+ *   <li>Chunks which are already buffered are never discarded.</li>
+ * </ul>
+ *
+ * <p>On simulated traces of bursty throughput, it switches formats less often than
+ * {@link FormatEvaluator.AdaptiveEvaluator} without stalling more (see BufferBasedEvaluatorTest).
+ * It holds a high bitrate while the buffer is full, so networks with outages of several seconds
+ * may stall more often with it; compare the switch and rebuffer counts of the
+ * {@link SessionMetrics} of both on the target network.
+ */
+public class BufferBasedEvaluator implements FormatEvaluator {
+
+  public static final int DEFAULT_MAX_INITIAL_BITRATE = 800000;
+  public static final int DEFAULT_RESERVOIR_MS = 10000;
+  public static final int DEFAULT_CUSHION_MS = 30000;
+  public static final int DEFAULT_MIN_DURATION_FOR_QUALITY_INCREASE_MS = 10000;
+  public static final int DEFAULT_MAX_DURATION_FOR_QUALITY_DECREASE_MS = 20000;
+  public static final float DEFAULT_BANDWIDTH_FRACTION = 0.75f;
+  public static final float DEFAULT_SWITCH_UP_MARGIN = 1.2f;
+
+  private final BandwidthMeter bandwidthMeter;
+  private final int maxInitialBitrate;
+  private final long reservoirUs;
+  private final long cushionUs;
+  private final long minDurationForQualityIncreaseUs;
+  private final long maxDurationForQualityDecreaseUs;
+  private final float bandwidthFraction;
+  private final float switchUpMargin;
+
+  /**
+   * @param bandwidthMeter Provides an estimate of the currently available bandwidth.
+   */
+  public BufferBasedEvaluator(BandwidthMeter bandwidthMeter) {
+    this(bandwidthMeter, DEFAULT_MAX_INITIAL_BITRATE, DEFAULT_RESERVOIR_MS, DEFAULT_CUSHION_MS,
+        DEFAULT_MIN_DURATION_FOR_QUALITY_INCREASE_MS, DEFAULT_MAX_DURATION_FOR_QUALITY_DECREASE_MS,
+        DEFAULT_BANDWIDTH_FRACTION, DEFAULT_SWITCH_UP_MARGIN);
+  }
+
+  /**
+   * @param bandwidthMeter Provides an estimate of the currently available bandwidth.
+   * @param maxInitialBitrate The maximum bitrate in bits per second that should be assumed when
+   *                          the bandwidth meter has no estimate.
+   * @param reservoirMs Below this buffered duration, the lowest bitrate is chosen.
+   * @param cushionMs Above this buffered duration, the highest bitrate allowed by the bandwidth
+   *                  estimate is chosen.
+   * @param minDurationForQualityIncreaseMs The minimum buffered duration for a switch to a
+   *                                        higher quality.
+   * @param maxDurationForQualityDecreaseMs The maximum buffered duration for a switch to a lower
+   *                                        quality.
+   * @param bandwidthFraction The fraction of the bandwidth estimate that may be used, which is
+   *                          the safety margin against overestimates.
+   * @param switchUpMargin How much the usable bandwidth must exceed a higher bitrate before
+   *                       switching to it.
+   */
+  public BufferBasedEvaluator(BandwidthMeter bandwidthMeter, int maxInitialBitrate,
+      int reservoirMs, int cushionMs, int minDurationForQualityIncreaseMs,
+      int maxDurationForQualityDecreaseMs, float bandwidthFraction, float switchUpMargin) {
+    this.bandwidthMeter = bandwidthMeter;
+    this.maxInitialBitrate = maxInitialBitrate;
+    this.reservoirUs = reservoirMs * 1000L;
+    this.cushionUs = cushionMs * 1000L;
+    this.minDurationForQualityIncreaseUs = minDurationForQualityIncreaseMs * 1000L;
+    this.maxDurationForQualityDecreaseUs = maxDurationForQualityDecreaseMs * 1000L;
+    this.bandwidthFraction = bandwidthFraction;
+    this.switchUpMargin = switchUpMargin;
+  }
+
+  @Override
+  public void enable() {
+    // Do nothing.
+  }
+
+  @Override
+  public void disable() {
+    // Do nothing.
+  }
+
+  @Override
+  public void evaluate(List<? extends MediaChunk> queue, long playbackPositionUs,
+      Format[] formats, Evaluation evaluation) {
+    long bufferedDurationUs = queue.isEmpty() ? 0
+        : queue.get(queue.size() - 1).endTimeUs - playbackPositionUs;
+    Format current = evaluation.format;
+
+    long bitrateEstimate = bandwidthMeter.getBitrateEstimate();
+    long usableBitrate = bitrateEstimate == BandwidthMeter.NO_ESTIMATE
+        ? maxInitialBitrate : (long) (bitrateEstimate * bandwidthFraction);
+
+    Format ideal;
+    if (current == null) {
+      // Nothing is buffered yet, so start from the bandwidth estimate alone.
+      ideal = getHighestFormatBelow(formats, usableBitrate);
+    } else {
+      ideal = getHighestFormatBelow(formats,
+          Math.min(usableBitrate, getBufferBasedBitrate(formats, bufferedDurationUs)));
+      if (ideal.bitrate > current.bitrate) {
+        if (bufferedDurationUs < minDurationForQualityIncreaseUs
+            || ideal.bitrate * switchUpMargin > usableBitrate) {
+          ideal = current;
+        }
+      } else if (ideal.bitrate < current.bitrate
+          && bufferedDurationUs > maxDurationForQualityDecreaseUs) {
+        // The buffer is healthy enough to ride out the dip.
+        ideal = current;
+      }
+    }
+
+    evaluation.queueSize = queue.size();
+    if (current != null && !ideal.equals(current)) {
+      evaluation.trigger = TRIGGER_ADAPTIVE;
+    }
+    evaluation.format = ideal;
+  }
+
+  /**
+   * Returns the bitrate chosen from the buffered duration alone: the lowest bitrate in the
+   * reservoir, the highest beyond the cushion, and linear in between.
+   */
+  private long getBufferBasedBitrate(Format[] formats, long bufferedDurationUs) {
+    int minBitrate = Integer.MAX_VALUE;
+    int maxBitrate = 0;
+    for (Format format : formats) {
+      minBitrate = Math.min(minBitrate, format.bitrate);
+      maxBitrate = Math.max(maxBitrate, format.bitrate);
+    }
+    if (bufferedDurationUs <= reservoirUs) {
+      return minBitrate;
+    }
+    if (bufferedDurationUs >= cushionUs) {
+      return maxBitrate;
+    }
+    return minBitrate + (maxBitrate - minBitrate) * (bufferedDurationUs - reservoirUs)
+        / (cushionUs - reservoirUs);
+  }
+
+  /**
+   * Returns the format with the highest bitrate which does not exceed the given bitrate, or the
+   * format with the lowest bitrate if they all do.
+   */
+  private static Format getHighestFormatBelow(Format[] formats, long bitrate) {
+    Format highest = null;
+    Format lowest = null;
+    for (Format format : formats) {
+      if (format.bitrate <= bitrate && (highest == null || format.bitrate > highest.bitrate)) {
+        highest = format;
+      }
+      if (lowest == null || format.bitrate < lowest.bitrate) {
+        lowest = format;
+      }
+    }
+    return highest != null ? highest : lowest;
+  }
+
+}
@@ -0,0 +1,432 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import com.google.android.exoplayer.DefaultLoadControl;
+import com.google.android.exoplayer.LoadControl;
+import com.google.android.exoplayer.upstream.Allocation;
+import com.google.android.exoplayer.upstream.Allocator;
+import com.google.android.exoplayer.upstream.BufferPool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A process-wide budget for the memory used to buffer media.
+ *
+ * <p>All the players which take part share a single {@link BufferPool}, so buffers released by
+ * one player are reused by the next instead of being garbage collected. The pool only keeps the
+ * recycled buffers that the registered players still expect to use, and none once the last player
+ * has been released. Each player registers a
+ * {@link Share} with a priority, and the budget is divided between the registered shares in
+ * proportion to the weight of their priority. A player whose buffers exceed its share stops
+ * loading until playback has consumed enough of them.
+ *
+ * <p>Under memory pressure the budget is scaled down (see {@link MemoryPressureHandler}), unused
+ * buffers are released, and non-essential loaders such as text tracks stop loading until the
+ * budget is restored.
+ *
+ * <p>Shares may be registered, re-prioritized and released from any thread.
+ */
+public final class BufferBudget {
+
+  /**
+   * The player the user is watching.
+   */
+  public static final int PRIORITY_FOREGROUND = 0;
+
+  /**
+   * A player which is on screen, but is not the main focus (ex. a muted preview in a feed).
+   */
+  public static final int PRIORITY_VISIBLE = 1;
+
+  /**
+   * A player which plays an ad alongside a paused content player.
+   */
+  public static final int PRIORITY_AD = 2;
+
+  /**
+   * A player which is not visible, for example one which is preloading the next video.
+   */
+  public static final int PRIORITY_BACKGROUND = 3;
+
+  /**
+   * The relative weight of each priority, indexed by the PRIORITY_* constants.
+   */
+  private static final int[] PRIORITY_WEIGHTS = new int[] {8, 4, 3, 1};
+
+  /**
+   * The size of the buffers handed out by the shared pool.
+   */
+  public static final int BUFFER_SEGMENT_SIZE = 64 * 1024;
+
+  /**
+   * The default budget, which is what a single DASH player with the default profile buffers. A
+   * lone player is not limited by it, and concurrent players split it instead of each buffering as
+   * much.
+   */
+  private static final int DEFAULT_TOTAL_BYTES = (PlaybackProfile.DEFAULT.getVideoBufferSegments()
+      + PlaybackProfile.DEFAULT.getAudioBufferSegments()
+      + PlaybackProfile.DEFAULT.getTextBufferSegments()) * BUFFER_SEGMENT_SIZE;
+
+  private static BufferBudget instance;
+
+  private final BufferPool bufferPool;
+  private final List<Share> shares;
+
+  private int totalBytes;
+  private int totalWeight;
+
+  /**
+   * The fraction of totalBytes which may currently be used, which is less than 1 under memory
+   * pressure.
+   */
+  private float memoryScale;
+
+  /**
+   * Returns the process-wide budget.
+   */
+  public static synchronized BufferBudget getInstance() {
+    if (instance == null) {
+      instance = new BufferBudget(DEFAULT_TOTAL_BYTES);
+    }
+    return instance;
+  }
+
+  /**
+   * @param totalBytes The number of bytes shared by all the players.
+   */
+  public BufferBudget(int totalBytes) {
+    this.totalBytes = totalBytes;
+    memoryScale = 1;
+    bufferPool = new BufferPool(BUFFER_SEGMENT_SIZE);
+    shares = new ArrayList<Share>();
+  }
+
+  /**
+   * Change the number of bytes shared by all the players. Players which are above their new share
+   * stop loading until they are back under it.
+   * @param totalBytes The number of bytes shared by all the players.
+   */
+  public synchronized void setTotalBytes(int totalBytes) {
+    this.totalBytes = totalBytes;
+    trimPool();
+  }
+
+  /**
+   * Returns the number of bytes currently shared by all the players, taking memory pressure into
+   * account.
+   */
+  public synchronized int getTotalBytes() {
+    return (int) (totalBytes * memoryScale);
+  }
+
+  /**
+   * Scale the budget down under memory pressure, or back up when the pressure has cleared.
+   * Recycled buffers beyond the scaled budget are released immediately.
+   * @param memoryScale The fraction of the budget which may be used, between 0 and 1.
+   */
+  public synchronized void setMemoryScale(float memoryScale) {
+    this.memoryScale = memoryScale;
+    trimPool();
+  }
+
+  /**
+   * Returns whether the budget is currently scaled down because of memory pressure.
+   */
+  public synchronized boolean isUnderMemoryPressure() {
+    return memoryScale < 1;
+  }
+
+  /**
+   * Returns the number of bytes allocated by the shared pool, including buffers which have been
+   * released by their player but are kept for reuse.
+   */
+  public int getAllocatedSize() {
+    return bufferPool.getAllocatedSize();
+  }
+
+  /**
+   * Returns a snapshot of the registered shares.
+   */
+  public synchronized List<Share> getShares() {
+    return new ArrayList<Share>(shares);
+  }
+
+  /**
+   * Register a new player with the budget.
+   * @param priority One of the PRIORITY_* constants.
+   */
+  public synchronized Share register(int priority) {
+    Share share = new Share(priority);
+    shares.add(share);
+    totalWeight += PRIORITY_WEIGHTS[priority];
+    return share;
+  }
+
+  private synchronized int getCapacity(int priority) {
+    return totalWeight == 0 ? 0
+        : (int) ((long) getTotalBytes() * PRIORITY_WEIGHTS[priority] / totalWeight);
+  }
+
+  private synchronized void setPriority(Share share, int priority) {
+    if (shares.contains(share)) {
+      totalWeight += PRIORITY_WEIGHTS[priority] - PRIORITY_WEIGHTS[share.priority];
+    }
+    share.priority = priority;
+  }
+
+  private synchronized void unregister(Share share) {
+    if (shares.remove(share)) {
+      totalWeight -= PRIORITY_WEIGHTS[share.priority];
+    }
+    trimPool();
+  }
+
+  /**
+   * Release the recycled buffers beyond what the registered players asked to keep, within the
+   * scaled budget. Without players, every recycled buffer is released.
+   */
+  private synchronized void trimPool() {
+    long targetSize = 0;
+    for (Share share : shares) {
+      for (Share.ShareAllocator allocator : share.allocators) {
+        targetSize += allocator.trimTargetSize;
+      }
+    }
+    bufferPool.trim((int) Math.min(targetSize, getTotalBytes()));
+  }
+
+  /**
+   * The part of the budget which belongs to a single player.
+   */
+  public final class Share {
+
+    /**
+     * The number of bytes currently held by the player's buffers.
+     */
+    private final AtomicInteger allocatedSize;
+
+    /**
+     * The allocators of the player's load controls. Guarded by the enclosing budget.
+     */
+    private final List<ShareAllocator> allocators;
+
+    /**
+     * One of the PRIORITY_* constants. Guarded by the enclosing budget.
+     */
+    private int priority;
+
+    private Share(int priority) {
+      this.priority = priority;
+      allocatedSize = new AtomicInteger();
+      allocators = new ArrayList<ShareAllocator>();
+    }
+
+    /**
+     * Returns a load control for the player's sample sources, which allocates from the shared
+     * pool and stops loading when the player is above its share.
+     */
+    public LoadControl createLoadControl() {
+      return createLoadControl(true);
+    }
+
+    /**
+     * Returns a load control for the player's sample sources, which allocates from the shared
+     * pool and stops loading when the player is above its share.
+     * @param essential False if playback can continue without the loaders of this load control
+     *                  (ex. text tracks), in which case they stop loading under memory pressure.
+     */
+    public LoadControl createLoadControl(boolean essential) {
+      ShareAllocator allocator = new ShareAllocator();
+      synchronized (BufferBudget.this) {
+        allocators.add(allocator);
+      }
+      return new ShareLoadControl(new DefaultLoadControl(allocator), essential);
+    }
+
+    /**
+     * Returns the priority of the player, which is one of the PRIORITY_* constants.
+     */
+    public int getPriority() {
+      synchronized (BufferBudget.this) {
+        return priority;
+      }
+    }
+
+    /**
+     * Change the priority of the player, which immediately changes the shares of all players.
+     * @param priority One of the PRIORITY_* constants.
+     */
+    public void setPriority(int priority) {
+      BufferBudget.this.setPriority(this, priority);
+    }
+
+    /**
+     * Returns the number of bytes this player may hold in its buffers.
+     */
+    public int getCapacity() {
+      return BufferBudget.this.getCapacity(getPriority());
+    }
+
+    /**
+     * Returns the number of bytes currently held by this player's buffers.
+     */
+    public int getAllocatedSize() {
+      return allocatedSize.get();
+    }
+
+    /**
+     * Remove the player from the budget, so that its share is given to the other players. Buffers
+     * which are still allocated go back to the shared pool when they are released.
+     */
+    public void release() {
+      unregister(this);
+    }
+
+    /**
+     * Allocates from the shared pool for one load control, and keeps track of the bytes held by
+     * this player.
+     */
+    private final class ShareAllocator implements Allocator {
+
+      /**
+       * The size to which the load control last asked to be trimmed, which is what it expects to
+       * keep buffering. Guarded by the enclosing budget.
+       */
+      private int trimTargetSize;
+
+      @Override
+      public Allocation allocate(int size) {
+        Allocation allocation = new ShareAllocation(bufferPool.allocate(size));
+        allocatedSize.addAndGet(allocation.capacity());
+        return allocation;
+      }
+
+      @Override
+      public void trim(int targetSize) {
+        synchronized (BufferBudget.this) {
+          trimTargetSize = targetSize;
+          trimPool();
+        }
+      }
+
+      @Override
+      public int getAllocatedSize() {
+        return allocatedSize.get();
+      }
+
+    }
+
+    /**
+     * An allocation from the shared pool which updates the bytes held by this player when it
+     * grows or is released.
+     */
+    private final class ShareAllocation implements Allocation {
+
+      private final Allocation wrapped;
+
+      public ShareAllocation(Allocation wrapped) {
+        this.wrapped = wrapped;
+      }
+
+      @Override
+      public void ensureCapacity(int size) {
+        int previousCapacity = wrapped.capacity();
+        wrapped.ensureCapacity(size);
+        allocatedSize.addAndGet(wrapped.capacity() - previousCapacity);
+      }
+
+      @Override
+      public int capacity() {
+        return wrapped.capacity();
+      }
+
+      @Override
+      public byte[][] getBuffers() {
+        return wrapped.getBuffers();
+      }
+
+      @Override
+      public int getFragmentOffset(int index) {
+        return wrapped.getFragmentOffset(index);
+      }
+
+      @Override
+      public int getFragmentLength(int index) {
+        return wrapped.getFragmentLength(index);
+      }
+
+      @Override
+      public void release() {
+        allocatedSize.addAndGet(-wrapped.capacity());
+        wrapped.release();
+      }
+
+    }
+
+    /**
+     * A load control which defers to a {@link DefaultLoadControl}, but never lets a loader start
+     * a new load while the player is above its share, or while memory is low if the loader is not
+     * essential.
+     */
+    private final class ShareLoadControl implements LoadControl {
+
+      private final LoadControl wrapped;
+      private final boolean essential;
+
+      public ShareLoadControl(LoadControl wrapped, boolean essential) {
+        this.wrapped = wrapped;
+        this.essential = essential;
+      }
+
+      @Override
+      public void register(Object loader, int bufferSizeContribution) {
+        wrapped.register(loader, bufferSizeContribution);
+      }
+
+      @Override
+      public void unregister(Object loader) {
+        wrapped.unregister(loader);
+      }
+
+      @Override
+      public Allocator getAllocator() {
+        return wrapped.getAllocator();
+      }
+
+      @Override
+      public void trimAllocator() {
+        wrapped.trimAllocator();
+      }
+
+      @Override
+      public boolean update(Object loader, long playbackPositionUs, long nextLoadPositionUs,
+          boolean loading, boolean failed) {
+        // Always update the wrapped load control, since it tracks the state of every loader.
+        boolean shouldLoad = wrapped.update(loader, playbackPositionUs, nextLoadPositionUs,
+            loading, failed);
+        return shouldLoad && allocatedSize.get() < getCapacity()
+            && (essential || !isUnderMemoryPressure());
+      }
+
+    }
+
+  }
+
+}
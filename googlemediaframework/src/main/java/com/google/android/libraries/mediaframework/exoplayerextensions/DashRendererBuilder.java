@@ -24,13 +24,13 @@ import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.UnsupportedSchemeException;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Pair;
 import android.widget.TextView;
 
-import com.google.android.exoplayer.DefaultLoadControl;
 import com.google.android.exoplayer.LoadControl;
 import com.google.android.exoplayer.MediaCodecAudioTrackRenderer;
-import com.google.android.exoplayer.MediaCodecUtil;
 import com.google.android.exoplayer.MediaCodecUtil.DecoderQueryException;
 import com.google.android.exoplayer.MediaCodecVideoTrackRenderer;
 import com.google.android.exoplayer.SampleSource;
@@ -53,10 +53,10 @@ import com.google.android.exoplayer.drm.StreamingDrmSessionManager;
 import com.google.android.exoplayer.text.TextTrackRenderer;
 import com.google.android.exoplayer.text.ttml.TtmlParser;
 import com.google.android.exoplayer.text.webvtt.WebvttParser;
-import com.google.android.exoplayer.upstream.BufferPool;
+import com.google.android.exoplayer.upstream.BandwidthMeter;
 import com.google.android.exoplayer.upstream.DataSource;
 import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
-import com.google.android.exoplayer.upstream.UriDataSource;
+import com.google.android.exoplayer.upstream.TransferListener;
 import com.google.android.exoplayer.util.ManifestFetcher;
 import com.google.android.exoplayer.util.ManifestFetcher.ManifestCallback;
 import com.google.android.exoplayer.util.MimeTypes;
@@ -74,16 +74,9 @@ import java.util.List;
 public class DashRendererBuilder implements RendererBuilder,
     ManifestCallback<MediaPresentationDescription> {
 
-  private static final int BUFFER_SEGMENT_SIZE = 64 * 1024;
-  private static final int VIDEO_BUFFER_SEGMENTS = 200;
-  private static final int AUDIO_BUFFER_SEGMENTS = 60;
-  private static final int TEXT_BUFFER_SEGMENTS = 2;
+  private static final int BUFFER_SEGMENT_SIZE = BufferBudget.BUFFER_SEGMENT_SIZE;
   private static final int LIVE_EDGE_LATENCY_MS = 30000;
 
-  private static final int SECURITY_LEVEL_UNKNOWN = -1;
-  private static final int SECURITY_LEVEL_1 = 1;
-  private static final int SECURITY_LEVEL_3 = 3;
-
   private static final String AC_3_CODEC = "ac-3";
   private static final String E_AC_3_CODEC = "ec-3";
 
@@ -92,28 +85,179 @@ public class DashRendererBuilder implements RendererBuilder,
   private final String contentId;
   private final MediaDrmCallback drmCallback;
   private final TextView debugTextView;
+  private final DeviceCapabilities capabilities;
+  private final ManifestCache<MediaPresentationDescription> manifestCache;
+  private final SegmentCache segmentCache;
 
   private ExoplayerWrapper player;
   private RendererBuilderCallback callback;
+  private long liveEdgeLatencyMs;
+  private boolean lowLatencyLive;
+  private SharedBandwidthEstimator bandwidthEstimator;
+  private Video.AdaptationPolicy adaptationPolicy;
   private ManifestFetcher<MediaPresentationDescription> manifestFetcher;
+  private StartupOrchestrator.Listener startupListener;
+  private LicensePrefetcher licensePrefetcher;
+  private OfflineLicenseStore offlineLicenseStore;
+  private StartupOrchestrator startup;
 
   public DashRendererBuilder(String userAgent, String url, String contentId,
                              MediaDrmCallback drmCallback, TextView debugTextView) {
+    this(userAgent, url, contentId, drmCallback, debugTextView, null);
+  }
+
+  /**
+   * @param capabilities If not null, decoder and DRM capabilities are read from this cache
+   *                     instead of being probed on every prepare.
+   */
+  public DashRendererBuilder(String userAgent, String url, String contentId,
+                             MediaDrmCallback drmCallback, TextView debugTextView,
+                             DeviceCapabilities capabilities) {
+    this(userAgent, url, contentId, drmCallback, debugTextView, capabilities, null);
+  }
+
+  /**
+   * @param capabilities If not null, decoder and DRM capabilities are read from this cache
+   *                     instead of being probed on every prepare.
+   * @param manifestCache If not null, static manifests are loaded through this cache, so that
+   *                      replaying on-demand content does not download and parse them again.
+   */
+  public DashRendererBuilder(String userAgent, String url, String contentId,
+                             MediaDrmCallback drmCallback, TextView debugTextView,
+                             DeviceCapabilities capabilities,
+                             ManifestCache<MediaPresentationDescription> manifestCache) {
+    this(userAgent, url, contentId, drmCallback, debugTextView, capabilities, manifestCache, null);
+  }
+
+  /**
+   * @param capabilities If not null, decoder and DRM capabilities are read from this cache
+   *                     instead of being probed on every prepare.
+   * @param manifestCache If not null, static manifests are loaded through this cache, so that
+   *                      replaying on-demand content does not download and parse them again.
+   * @param segmentCacheConfig If not null, media segments are read through the disk cache with
+   *                           this configuration.
+   */
+  public DashRendererBuilder(String userAgent, String url, String contentId,
+                             MediaDrmCallback drmCallback, TextView debugTextView,
+                             DeviceCapabilities capabilities,
+                             ManifestCache<MediaPresentationDescription> manifestCache,
+                             SegmentCache.Config segmentCacheConfig) {
     this.userAgent = userAgent;
     this.url = url;
     this.contentId = contentId;
     this.drmCallback = drmCallback;
     this.debugTextView = debugTextView;
+    this.capabilities = capabilities;
+    this.manifestCache = manifestCache;
+    this.segmentCache = segmentCacheConfig != null
+        ? SegmentCache.getInstance(segmentCacheConfig) : null;
+    liveEdgeLatencyMs = LIVE_EDGE_LATENCY_MS;
+    adaptationPolicy = Video.AdaptationPolicy.THROUGHPUT;
+  }
+
+  /**
+   * Choose how the video format is adapted to the network. Must be called before the renderers
+   * are built.
+   * @param adaptationPolicy The policy, which defaults to
+   *                         {@link Video.AdaptationPolicy#THROUGHPUT}.
+   */
+  public void setAdaptationPolicy(Video.AdaptationPolicy adaptationPolicy) {
+    this.adaptationPolicy = adaptationPolicy;
+  }
+
+  /**
+   * Play live streams in low-latency mode: start at the given distance from the live edge
+   * instead of 30 seconds behind it, keep measuring the distance while playing, and jump
+   * forward when the player drifts too far behind. The latency is reported through
+   * {@link ExoplayerWrapper.LiveLatencyListener}. Must be called before the renderers are
+   * built.
+   * @param targetLatencyMs The distance to keep from the live edge. It is raised to the
+   *                        manifest's minimum buffer time if it is lower, since the player could
+   *                        not buffer enough to start otherwise.
+   */
+  public void setLowLatencyLive(long targetLatencyMs) {
+    this.liveEdgeLatencyMs = targetLatencyMs;
+    this.lowLatencyLive = true;
+  }
+
+  /**
+   * Seed adaptive playback with the last bandwidth measured on the same network and host, and
+   * record the bandwidth measured by this player. Must be called before the renderers are built.
+   * @param bandwidthEstimator The shared estimator, or null to start each session without an
+   *                           estimate.
+   */
+  public void setBandwidthEstimator(SharedBandwidthEstimator bandwidthEstimator) {
+    this.bandwidthEstimator = bandwidthEstimator;
+  }
+
+  /**
+   * Report the timeline of each startup, as run by a {@link StartupOrchestrator}, to the given
+   * listener. Must be called before the renderers are built.
+   * @param startupListener The listener, or null.
+   */
+  public void setStartupListener(StartupOrchestrator.Listener startupListener) {
+    this.startupListener = startupListener;
+  }
+
+  /**
+   * Play protected content from the license held by the given prefetcher, if it holds one for
+   * this content, instead of requesting the keys again. Must be called before the renderers are
+   * built.
+   * @param licensePrefetcher The prefetcher, or null.
+   */
+  public void setLicensePrefetcher(LicensePrefetcher licensePrefetcher) {
+    this.licensePrefetcher = licensePrefetcher;
+  }
+
+  /**
+   * Request offline licenses for protected content and keep them in the given store, so that
+   * repeat plays restore the keys instead of requesting them. Must be called before the renderers
+   * are built.
+   * @param offlineLicenseStore The store, or null to request a streaming license for each play.
+   */
+  public void setOfflineLicenseStore(OfflineLicenseStore offlineLicenseStore) {
+    this.offlineLicenseStore = offlineLicenseStore;
   }
 
   @Override
   public void buildRenderers(ExoplayerWrapper player, RendererBuilderCallback callback) {
     this.player = player;
     this.callback = callback;
+    // Connect to the host, probe the decoders and DRM, and provision DRM, while the manifest
+    // loads.
+    startup = new StartupOrchestrator(player.getMainHandler(), startupListener);
+    startup.preconnect(url);
+    boolean mayBeProtected = drmCallback != null && Util.SDK_INT >= 18;
+    startup.prefetchCapabilities(capabilities, mayBeProtected);
+    if (mayBeProtected && capabilities != null) {
+      startup.provision(capabilities, drmCallback);
+    }
+    startup.startPhase(StartupOrchestrator.PHASE_MANIFEST);
+    if (manifestCache != null) {
+      manifestFetcher = null;
+      manifestCache.singleLoad(getCallbackLooper(), contentId, url, userAgent, this);
+    } else {
+      loadManifest();
+    }
+  }
+
+  /**
+   * Load the manifest with a {@link ManifestFetcher}, which is needed to refresh live manifests.
+   */
+  private void loadManifest() {
     MediaPresentationDescriptionParser parser = new MediaPresentationDescriptionParser();
     manifestFetcher = new ManifestFetcher<MediaPresentationDescription>(parser, contentId, url,
         userAgent);
-    manifestFetcher.singleLoad(player.getMainHandler().getLooper(), this);
+    manifestFetcher.singleLoad(getCallbackLooper(), this);
+  }
+
+  /**
+   * Returns the looper on which the manifest is delivered. This is the thread that invoked the
+   * builder, which is the main thread unless the builder is wrapped in an AsyncRendererBuilder.
+   */
+  private Looper getCallbackLooper() {
+    Looper looper = Looper.myLooper();
+    return looper != null ? looper : player.getMainHandler().getLooper();
   }
 
   @Override
@@ -123,10 +267,33 @@ public class DashRendererBuilder implements RendererBuilder,
 
   @Override
   public void onManifest(String contentId, MediaPresentationDescription manifest) {
+    if (ExoplayerWrapper.isCanceled(callback)) {
+      // The player was prepared again, reset or released while the manifest loaded.
+      return;
+    }
+    AsyncRendererBuilder.onManifestLoaded(callback);
+    if (manifest.dynamic && manifestFetcher == null) {
+      // The cache never stores live manifests, but the chunk sources need a fetcher to refresh
+      // them. Start the fetcher from the manifest which the cache just loaded, rather than loading
+      // it a second time.
+      manifestFetcher = new SeededManifestFetcher(contentId, url, userAgent, manifest);
+    }
+    startup.endPhase(StartupOrchestrator.PHASE_MANIFEST);
+    startup.startPhase(StartupOrchestrator.PHASE_RENDERERS);
+    long targetLatencyMs = lowLatencyLive
+        ? Math.max(liveEdgeLatencyMs, manifest.minBufferTime) : liveEdgeLatencyMs;
     Period period = manifest.periods.get(0);
     Handler mainHandler = player.getMainHandler();
-    LoadControl loadControl = new DefaultLoadControl(new BufferPool(BUFFER_SEGMENT_SIZE));
-    DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter(mainHandler, player);
+    PlaybackProfile profile = player.getPlaybackProfile();
+    // Allocate from the process-wide pool, so that concurrent players share one memory budget.
+    BufferBudget.Share bufferShare = player.getBufferShare(callback);
+    if (bufferShare == null) {
+      return;
+    }
+    LoadControl loadControl = bufferShare.createLoadControl();
+    DefaultBandwidthMeter bandwidthMeter = bandwidthEstimator != null
+        ? bandwidthEstimator.createBandwidthMeter(url, mainHandler, player)
+        : new DefaultBandwidthMeter(mainHandler, player);
 
     boolean hasContentProtection = false;
     int videoAdaptationSetIndex = period.getAdaptationSetIndex(AdaptationSet.TYPE_VIDEO);
@@ -157,17 +324,20 @@ public class DashRendererBuilder implements RendererBuilder,
             new UnsupportedDrmException(UnsupportedDrmException.REASON_NO_DRM));
         return;
       }
+      startup.startPhase(StartupOrchestrator.PHASE_DRM_SESSION);
       try {
         Pair<DrmSessionManager, Boolean> drmSessionManagerData =
-            V18Compat.getDrmSessionManagerData(player, drmCallback);
+            V18Compat.getDrmSessionManagerData(player, drmCallback, capabilities, startup,
+                licensePrefetcher, offlineLicenseStore, contentId);
         drmSessionManager = drmSessionManagerData.first;
-        // HD streams require L1 security.
+        // HD streams require L1 security, and HDCP on external displays.
         filterHdContent = videoAdaptationSet != null && videoAdaptationSet.hasContentProtection()
             && !drmSessionManagerData.second;
       } catch (UnsupportedDrmException e) {
         callback.onRenderersError(e);
         return;
       }
+      startup.endPhase(StartupOrchestrator.PHASE_DRM_SESSION);
     }
 
     // Determine which video representations we should use for playback.
@@ -175,7 +345,7 @@ public class DashRendererBuilder implements RendererBuilder,
     if (videoAdaptationSet != null) {
       int maxDecodableFrameSize;
       try {
-        maxDecodableFrameSize = MediaCodecUtil.maxH264DecodableFrameSize();
+        maxDecodableFrameSize = startup.getMaxH264DecodableFrameSize();
       } catch (DecoderQueryException e) {
         callback.onRenderersError(e);
         return;
@@ -204,15 +374,16 @@ public class DashRendererBuilder implements RendererBuilder,
       debugRenderer = null;
     } else {
       int[] videoRepresentationIndices = Util.toArray(videoRepresentationIndexList);
-      DataSource videoDataSource = new UriDataSource(userAgent, bandwidthMeter);
-      ChunkSource videoChunkSource = new DashChunkSource(manifestFetcher, videoAdaptationSetIndex,
-          videoRepresentationIndices, videoDataSource, new AdaptiveEvaluator(bandwidthMeter),
-          LIVE_EDGE_LATENCY_MS);
+      DataSource videoDataSource = newDataSource(bandwidthMeter);
+      ChunkSource videoChunkSource = newChunkSource(manifest, videoAdaptationSetIndex,
+          videoRepresentationIndices, videoDataSource, newVideoFormatEvaluator(bandwidthMeter),
+          targetLatencyMs);
       ChunkSampleSource videoSampleSource = new ChunkSampleSource(videoChunkSource, loadControl,
-          VIDEO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, true, mainHandler, player,
+          profile.getVideoBufferSegments() * BUFFER_SEGMENT_SIZE, true, mainHandler, player,
           ExoplayerWrapper.TYPE_VIDEO);
       videoRenderer = new MediaCodecVideoTrackRenderer(videoSampleSource, drmSessionManager, true,
-          MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 5000, null, mainHandler, player, 50);
+          MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, profile.getAllowedJoiningTimeMs(), null,
+          mainHandler, player, profile.getMaxDroppedFrameCountToNotify());
       debugRenderer = debugTextView != null
           ? new DebugTrackRenderer(debugTextView, videoRenderer, videoSampleSource) : null;
     }
@@ -222,15 +393,15 @@ public class DashRendererBuilder implements RendererBuilder,
     List<ChunkSource> audioChunkSourceList = new ArrayList<ChunkSource>();
     List<String> audioTrackNameList = new ArrayList<String>();
     if (audioAdaptationSet != null) {
-      DataSource audioDataSource = new UriDataSource(userAgent, bandwidthMeter);
+      DataSource audioDataSource = newDataSource(bandwidthMeter);
       FormatEvaluator audioEvaluator = new FormatEvaluator.FixedEvaluator();
       List<Representation> audioRepresentations = audioAdaptationSet.representations;
       for (int i = 0; i < audioRepresentations.size(); i++) {
         Format format = audioRepresentations.get(i).format;
         audioTrackNameList.add(format.id + " (" + format.numChannels + "ch, " +
             format.audioSamplingRate + "Hz)");
-        audioChunkSourceList.add(new DashChunkSource(manifestFetcher, audioAdaptationSetIndex,
-            new int[] {i}, audioDataSource, audioEvaluator, LIVE_EDGE_LATENCY_MS));
+        audioChunkSourceList.add(newChunkSource(manifest, audioAdaptationSetIndex,
+            new int[] {i}, audioDataSource, audioEvaluator, targetLatencyMs));
         haveAc3Tracks |= AC_3_CODEC.equals(format.codecs) || E_AC_3_CODEC.equals(format.codecs);
       }
       // Filter out non-AC-3 tracks if there is an AC-3 track, to avoid having to switch renderers.
@@ -256,16 +427,17 @@ public class DashRendererBuilder implements RendererBuilder,
     } else {
       audioTrackNames = new String[audioTrackNameList.size()];
       audioTrackNameList.toArray(audioTrackNames);
-      audioChunkSource = new MultiTrackChunkSource(audioChunkSourceList);
+      audioChunkSource = new SplicingMultiTrackChunkSource(audioChunkSourceList, mainHandler,
+          player, ExoplayerWrapper.TYPE_AUDIO);
       SampleSource audioSampleSource = new ChunkSampleSource(audioChunkSource, loadControl,
-          AUDIO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, true, mainHandler, player,
+          profile.getAudioBufferSegments() * BUFFER_SEGMENT_SIZE, true, mainHandler, player,
           ExoplayerWrapper.TYPE_AUDIO);
       audioRenderer = new MediaCodecAudioTrackRenderer(audioSampleSource, drmSessionManager, true,
           mainHandler, player);
     }
 
     // Build the text chunk sources.
-    DataSource textDataSource = new UriDataSource(userAgent, bandwidthMeter);
+    DataSource textDataSource = newDataSource(bandwidthMeter);
     FormatEvaluator textEvaluator = new FormatEvaluator.FixedEvaluator();
     List<ChunkSource> textChunkSourceList = new ArrayList<ChunkSource>();
     List<String> textTrackNameList = new ArrayList<String>();
@@ -276,8 +448,8 @@ public class DashRendererBuilder implements RendererBuilder,
         for (int j = 0; j < representations.size(); j++) {
           Representation representation = representations.get(j);
           textTrackNameList.add(representation.format.id);
-          textChunkSourceList.add(new DashChunkSource(manifestFetcher, i, new int[] {j},
-              textDataSource, textEvaluator, LIVE_EDGE_LATENCY_MS));
+          textChunkSourceList.add(newChunkSource(manifest, i, new int[] {j}, textDataSource,
+              textEvaluator, targetLatencyMs));
         }
       }
     }
@@ -293,9 +465,12 @@ public class DashRendererBuilder implements RendererBuilder,
     } else {
       textTrackNames = new String[textTrackNameList.size()];
       textTrackNameList.toArray(textTrackNames);
-      textChunkSource = new MultiTrackChunkSource(textChunkSourceList);
-      SampleSource textSampleSource = new ChunkSampleSource(textChunkSource, loadControl,
-          TEXT_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, true, mainHandler, player,
+      textChunkSource = new SplicingMultiTrackChunkSource(textChunkSourceList, mainHandler,
+          player, ExoplayerWrapper.TYPE_TEXT);
+      // Subtitles are not needed to keep playing, so they stop loading when memory is low.
+      LoadControl textLoadControl = bufferShare.createLoadControl(false);
+      SampleSource textSampleSource = new ChunkSampleSource(textChunkSource, textLoadControl,
+          profile.getTextBufferSegments() * BUFFER_SEGMENT_SIZE, true, mainHandler, player,
           ExoplayerWrapper.TYPE_TEXT);
       textRenderer = new TextTrackRenderer(textSampleSource, player, mainHandler.getLooper(),
           new TtmlParser(), new WebvttParser());
@@ -316,20 +491,122 @@ public class DashRendererBuilder implements RendererBuilder,
     renderers[ExoplayerWrapper.TYPE_AUDIO] = audioRenderer;
     renderers[ExoplayerWrapper.TYPE_TEXT] = textRenderer;
     renderers[ExoplayerWrapper.TYPE_DEBUG] = debugRenderer;
+    if (lowLatencyLive && manifest.dynamic) {
+      player.setLiveLatencyController(new LiveLatencyController(player,
+          manifest.availabilityStartTime, manifest.timeShiftBufferDepth, targetLatencyMs),
+          callback);
+    }
+    startup.complete();
     callback.onRenderers(trackNames, multiTrackChunkSources, renderers);
   }
 
+  /**
+   * Create the evaluator which adapts the video format according to the adaptation policy.
+   */
+  private FormatEvaluator newVideoFormatEvaluator(BandwidthMeter bandwidthMeter) {
+    return adaptationPolicy == Video.AdaptationPolicy.BUFFER_BASED
+        ? new BufferBasedEvaluator(bandwidthMeter) : new AdaptiveEvaluator(bandwidthMeter);
+  }
+
+  /**
+   * Create a data source for chunks, which reads through the segment cache if there is one.
+   */
+  private DataSource newDataSource(TransferListener transferListener) {
+    DataSource dataSource =
+        HttpTransport.getInstance().createDataSource(userAgent, transferListener);
+    return segmentCache != null ? segmentCache.createDataSource(dataSource) : dataSource;
+  }
+
+  /**
+   * Create a chunk source which follows the manifest fetcher if there is one, and otherwise
+   * plays the given static manifest.
+   */
+  private ChunkSource newChunkSource(MediaPresentationDescription manifest,
+      int adaptationSetIndex, int[] representationIndices, DataSource dataSource,
+      FormatEvaluator formatEvaluator, long liveLatencyMs) {
+    if (manifestFetcher != null) {
+      return new DashChunkSource(manifestFetcher, adaptationSetIndex, representationIndices,
+          dataSource, formatEvaluator, liveLatencyMs);
+    }
+    return new DashChunkSource(manifest, adaptationSetIndex, representationIndices, dataSource,
+        formatEvaluator);
+  }
+
+  /**
+   * A manifest fetcher which starts from a manifest loaded elsewhere, and only loads the manifest
+   * itself when it is asked to refresh it.
+   */
+  private static final class SeededManifestFetcher
+      extends ManifestFetcher<MediaPresentationDescription> {
+
+    private final MediaPresentationDescription seedManifest;
+    private final long seedLoadTimestamp;
+
+    public SeededManifestFetcher(String contentId, String url, String userAgent,
+                                 MediaPresentationDescription seedManifest) {
+      super(new MediaPresentationDescriptionParser(), contentId, url, userAgent);
+      this.seedManifest = seedManifest;
+      this.seedLoadTimestamp = SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public MediaPresentationDescription getManifest() {
+      MediaPresentationDescription manifest = super.getManifest();
+      return manifest != null ? manifest : seedManifest;
+    }
+
+    @Override
+    public long getManifestLoadTimestamp() {
+      return super.getManifest() != null ? super.getManifestLoadTimestamp() : seedLoadTimestamp;
+    }
+
+  }
+
   @TargetApi(18)
   private static class V18Compat {
 
+    /**
+     * Returns the DRM session manager, and whether the device may play protected HD content.
+     */
     public static Pair<DrmSessionManager, Boolean> getDrmSessionManagerData(ExoplayerWrapper player,
-        MediaDrmCallback drmCallback) throws UnsupportedDrmException {
+        MediaDrmCallback drmCallback, DeviceCapabilities capabilities, StartupOrchestrator startup,
+        LicensePrefetcher licensePrefetcher, OfflineLicenseStore offlineLicenseStore,
+        String contentId) throws UnsupportedDrmException {
       try {
-        StreamingDrmSessionManager streamingDrmSessionManager = new StreamingDrmSessionManager(
-            ExoplayerUtil.WIDEVINE_UUID, player.getPlaybackLooper(), drmCallback, null,
-            player.getMainHandler(), player);
-        return Pair.create((DrmSessionManager) streamingDrmSessionManager,
-            getWidevineSecurityLevel(streamingDrmSessionManager) == SECURITY_LEVEL_1);
+        DrmSessionManager drmSessionManager;
+        OfflineDrmSessionManager offlineDrmSessionManager = null;
+        StreamingDrmSessionManager streamingDrmSessionManager = null;
+        if (offlineLicenseStore != null) {
+          offlineDrmSessionManager = new OfflineDrmSessionManager(contentId, offlineLicenseStore,
+              drmCallback, player.getMainHandler(), player);
+          drmSessionManager = offlineDrmSessionManager;
+        } else {
+          streamingDrmSessionManager = new StreamingDrmSessionManager(
+              ExoplayerUtil.WIDEVINE_UUID, player.getPlaybackLooper(), drmCallback, null,
+              player.getMainHandler(), player);
+          drmSessionManager = streamingDrmSessionManager;
+        }
+        boolean hdEligible;
+        if (startup.isProbingWidevineSecurityLevel()) {
+          // The levels are probed in parallel with the manifest, so they are not read again here.
+          hdEligible = startup.isWidevineHdEligible();
+        } else {
+          String securityLevel = offlineDrmSessionManager != null
+              ? offlineDrmSessionManager.getPropertyString("securityLevel")
+              : streamingDrmSessionManager.getPropertyString("securityLevel");
+          String hdcpLevel = offlineDrmSessionManager != null
+              ? offlineDrmSessionManager.getPropertyString("hdcpLevel")
+              : getPropertyStringOrNull(streamingDrmSessionManager, "hdcpLevel");
+          hdEligible = "L1".equals(securityLevel)
+              && DeviceCapabilities.isHdcpSufficientForHd(hdcpLevel);
+        }
+        if (licensePrefetcher != null) {
+          // If a license was prefetched, it is taken when the renderers open the session, so
+          // that no key request is made when playback starts.
+          drmSessionManager = new PrefetchedDrmSessionManager(licensePrefetcher, contentId,
+              drmSessionManager);
+        }
+        return Pair.create(drmSessionManager, hdEligible);
       } catch (UnsupportedSchemeException e) {
         throw new UnsupportedDrmException(UnsupportedDrmException.REASON_UNSUPPORTED_SCHEME);
       } catch (Exception e) {
@@ -337,10 +614,16 @@ public class DashRendererBuilder implements RendererBuilder,
       }
     }
 
-    private static int getWidevineSecurityLevel(StreamingDrmSessionManager sessionManager) {
-      String securityLevelProperty = sessionManager.getPropertyString("securityLevel");
-      return securityLevelProperty.equals("L1") ? SECURITY_LEVEL_1 : securityLevelProperty
-          .equals("L3") ? SECURITY_LEVEL_3 : SECURITY_LEVEL_UNKNOWN;
+    /**
+     * Returns a property of the DRM plugin, or null if the plugin doesn't report it.
+     */
+    private static String getPropertyStringOrNull(StreamingDrmSessionManager sessionManager,
+                                                  String key) {
+      try {
+        return sessionManager.getPropertyString(key);
+      } catch (IllegalStateException e) {
+        return null;
+      }
     }
 
   }
@@ -54,9 +54,10 @@ public class DefaultRendererBuilder implements RendererBuilder {
     // Build the video and audio renderers.
     DefaultSampleSource sampleSource =
         new DefaultSampleSource(new FrameworkSampleExtractor(context, uri, null), 2);
+    PlaybackProfile profile = player.getPlaybackProfile();
     MediaCodecVideoTrackRenderer videoRenderer = new MediaCodecVideoTrackRenderer(sampleSource,
-        null, true, MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 5000, null, player.getMainHandler(),
-        player, 50);
+        null, true, MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, profile.getAllowedJoiningTimeMs(),
+        null, player.getMainHandler(), player, profile.getMaxDroppedFrameCountToNotify());
     MediaCodecAudioTrackRenderer audioRenderer = new MediaCodecAudioTrackRenderer(sampleSource,
         null, true, player.getMainHandler(), player);
 
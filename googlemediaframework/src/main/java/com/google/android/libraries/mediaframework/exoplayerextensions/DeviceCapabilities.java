@@ -0,0 +1,370 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaCodecInfo.CodecProfileLevel;
+import android.media.MediaDrm;
+import android.media.NotProvisionedException;
+import android.os.Build;
+import android.util.Log;
+
+import com.google.android.exoplayer.MediaCodecUtil;
+import com.google.android.exoplayer.MediaCodecUtil.DecoderQueryException;
+import com.google.android.exoplayer.drm.MediaDrmCallback;
+import com.google.android.exoplayer.util.MimeTypes;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * A cache of the decoding and DRM capabilities of the device.
+ *
+ * <p>Querying {@code MediaCodecList} and {@code MediaDrm} is slow, and the answers only change
+ * when the system image changes. The results are therefore stored in a small file, keyed by
+ * {@link Build#FINGERPRINT}, so that after the first run no probing is needed at startup.
+ *
+ * <p>Values are probed lazily the first time they are requested. The HDCP level of the output is
+ * the exception: it changes when an external display is connected, so it is probed on every
+ * request. All methods may be called from any thread.
+ */
+public final class DeviceCapabilities {
+
+  public static final int SECURITY_LEVEL_UNKNOWN = -1;
+  public static final int SECURITY_LEVEL_1 = 1;
+  public static final int SECURITY_LEVEL_3 = 3;
+
+  /**
+   * The HDCP level reported by Widevine when an external display without HDCP is connected.
+   */
+  private static final String HDCP_LEVEL_NONE = "HDCP-None";
+
+  private static final String TAG = "DeviceCapabilities";
+
+  /**
+   * The name of the cache file, inside the application's cache directory.
+   */
+  private static final String CACHE_FILE_NAME = "gmf_device_capabilities";
+
+  private static final String KEY_FINGERPRINT = "fingerprint";
+  private static final String KEY_MAX_FRAME_SIZE = "maxFrameSize.";
+  private static final String KEY_MAX_LEVEL = "maxLevel.";
+  private static final String KEY_SECURE_DECODER = "secureDecoder.";
+  private static final String KEY_WIDEVINE_SECURITY_LEVEL = "widevineSecurityLevel";
+
+  /**
+   * H.264 levels, from highest to lowest.
+   */
+  private static final int[] H264_LEVELS = new int[] {
+      CodecProfileLevel.AVCLevel51, CodecProfileLevel.AVCLevel5, CodecProfileLevel.AVCLevel42,
+      CodecProfileLevel.AVCLevel41, CodecProfileLevel.AVCLevel4, CodecProfileLevel.AVCLevel32,
+      CodecProfileLevel.AVCLevel31, CodecProfileLevel.AVCLevel3, CodecProfileLevel.AVCLevel22,
+      CodecProfileLevel.AVCLevel21, CodecProfileLevel.AVCLevel2, CodecProfileLevel.AVCLevel13,
+      CodecProfileLevel.AVCLevel12, CodecProfileLevel.AVCLevel11, CodecProfileLevel.AVCLevel1b,
+      CodecProfileLevel.AVCLevel1};
+
+  private static DeviceCapabilities instance;
+
+  /**
+   * The file in which the capabilities are persisted, or null if they are only kept in memory.
+   */
+  private final File cacheFile;
+
+  /**
+   * The known capabilities. Null until the cache file has been read.
+   */
+  private Properties properties;
+
+  /**
+   * Whether Widevine is known to be provisioned. It is not persisted, since the provisioning is
+   * lost when the DRM data of the device is cleared.
+   */
+  private boolean widevineProvisioned;
+
+  /**
+   * Returns the process-wide instance, which persists its values in the application's cache
+   * directory. This method does not touch the disk; the file is read on first use.
+   * @param context Any context of the application.
+   */
+  public static synchronized DeviceCapabilities getInstance(Context context) {
+    if (instance == null) {
+      File cacheDir = context.getApplicationContext().getCacheDir();
+      instance = new DeviceCapabilities(new File(cacheDir, CACHE_FILE_NAME));
+    }
+    return instance;
+  }
+
+  /**
+   * @param cacheFile The file in which the capabilities are persisted, or null if they should
+   *                  only be kept in memory.
+   */
+  /* package */ DeviceCapabilities(File cacheFile) {
+    this.cacheFile = cacheFile;
+  }
+
+  /**
+   * Returns the maximum frame size (width * height) of H.264 video that the device can decode.
+   */
+  public synchronized int getMaxH264DecodableFrameSize() throws DecoderQueryException {
+    String key = KEY_MAX_FRAME_SIZE + MimeTypes.VIDEO_H264;
+    String value = getProperties().getProperty(key);
+    if (value == null) {
+      value = Integer.toString(MediaCodecUtil.maxH264DecodableFrameSize());
+      putProperty(key, value);
+    }
+    return Integer.parseInt(value);
+  }
+
+  /**
+   * Returns the highest H.264 level the device can decode for the given profile, or 0 if the
+   * profile is not supported.
+   * @param profile A {@link CodecProfileLevel} AVCProfile* constant.
+   */
+  public synchronized int getMaxH264Level(int profile) throws DecoderQueryException {
+    String key = KEY_MAX_LEVEL + MimeTypes.VIDEO_H264 + "." + profile;
+    String value = getProperties().getProperty(key);
+    if (value == null) {
+      int maxLevel = 0;
+      for (int level : H264_LEVELS) {
+        if (MediaCodecUtil.isH264ProfileSupported(profile, level)) {
+          maxLevel = level;
+          break;
+        }
+      }
+      value = Integer.toString(maxLevel);
+      putProperty(key, value);
+    }
+    return Integer.parseInt(value);
+  }
+
+  /**
+   * Returns whether the device has a secure decoder for H.264, which is required to play content
+   * that is protected at Widevine security level 1.
+   */
+  public synchronized boolean hasSecureH264Decoder() throws DecoderQueryException {
+    String key = KEY_SECURE_DECODER + MimeTypes.VIDEO_H264;
+    String value = getProperties().getProperty(key);
+    if (value == null) {
+      value = Boolean.toString(MediaCodecUtil.getDecoderInfo(MimeTypes.VIDEO_H264, true) != null);
+      putProperty(key, value);
+    }
+    return Boolean.parseBoolean(value);
+  }
+
+  /**
+   * Returns the Widevine security level of the device, which is one of the SECURITY_LEVEL_*
+   * constants.
+   */
+  public synchronized int getWidevineSecurityLevel() {
+    String value = getProperties().getProperty(KEY_WIDEVINE_SECURITY_LEVEL);
+    if (value == null) {
+      if (Util.SDK_INT < 18) {
+        value = Integer.toString(SECURITY_LEVEL_UNKNOWN);
+      } else {
+        String securityLevel;
+        try {
+          securityLevel = V18Compat.getWidevineProperties("securityLevel")[0];
+        } catch (Exception e) {
+          // Don't persist a transient failure.
+          Log.w(TAG, "Failed to query the Widevine security level", e);
+          return SECURITY_LEVEL_UNKNOWN;
+        }
+        value = Integer.toString("L1".equals(securityLevel) ? SECURITY_LEVEL_1
+            : "L3".equals(securityLevel) ? SECURITY_LEVEL_3 : SECURITY_LEVEL_UNKNOWN);
+      }
+      putProperty(KEY_WIDEVINE_SECURITY_LEVEL, value);
+    }
+    return Integer.parseInt(value);
+  }
+
+  /**
+   * Returns the HDCP level that Widevine reports for the current output (ex. "HDCP-2.2"), or an
+   * empty string if it is unknown. It is not cached, since the output may change between
+   * playbacks, so every call opens the DRM plugin.
+   */
+  public String getWidevineHdcpLevel() {
+    if (Util.SDK_INT < 18) {
+      return "";
+    }
+    try {
+      String hdcpLevel = V18Compat.getWidevineProperties("hdcpLevel")[0];
+      return hdcpLevel != null ? hdcpLevel : "";
+    } catch (Exception e) {
+      Log.w(TAG, "Failed to query the HDCP level", e);
+      return "";
+    }
+  }
+
+  /**
+   * Provision Widevine if the device needs it, so that opening the DRM session of a playback
+   * doesn't have to. Once the device is known to be provisioned, this returns right away.
+   * This method blocks, so it must not be called on the main thread.
+   * @param drmCallback Performs the provisioning request.
+   */
+  public void provisionWidevine(MediaDrmCallback drmCallback) throws Exception {
+    synchronized (this) {
+      if (widevineProvisioned || Util.SDK_INT < 18) {
+        return;
+      }
+    }
+    // The provisioning request is made without holding the lock, which would block the other
+    // probes for as long as the network takes.
+    V18Compat.provisionWidevine(drmCallback);
+    synchronized (this) {
+      widevineProvisioned = true;
+    }
+  }
+
+  /**
+   * Returns whether the device may play protected HD content: it has Widevine security level 1,
+   * and its current output is not an external display without HDCP.
+   */
+  public boolean isWidevineHdEligible() {
+    return getWidevineSecurityLevel() == SECURITY_LEVEL_1
+        && isHdcpSufficientForHd(getWidevineHdcpLevel());
+  }
+
+  /**
+   * Returns whether a Widevine HDCP level allows protected HD content to be played.
+   * @param hdcpLevel The level, as returned by {@link #getWidevineHdcpLevel}.
+   */
+  public static boolean isHdcpSufficientForHd(String hdcpLevel) {
+    return !HDCP_LEVEL_NONE.equals(hdcpLevel);
+  }
+
+  /**
+   * Forget all the cached capabilities, so that they are probed again on next use.
+   */
+  public synchronized void clear() {
+    properties = new Properties();
+    properties.setProperty(KEY_FINGERPRINT, Build.FINGERPRINT);
+    widevineProvisioned = false;
+    if (cacheFile != null) {
+      cacheFile.delete();
+    }
+  }
+
+  /**
+   * Returns the cached properties, reading them from the cache file if needed. Values written by
+   * a different system image are discarded.
+   */
+  private Properties getProperties() {
+    if (properties != null) {
+      return properties;
+    }
+    properties = new Properties();
+    if (cacheFile != null && cacheFile.exists()) {
+      InputStream in = null;
+      try {
+        in = new FileInputStream(cacheFile);
+        properties.load(in);
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to read " + cacheFile, e);
+        properties.clear();
+      } finally {
+        closeQuietly(in);
+      }
+    }
+    if (!Build.FINGERPRINT.equals(properties.getProperty(KEY_FINGERPRINT))) {
+      properties.clear();
+      properties.setProperty(KEY_FINGERPRINT, Build.FINGERPRINT);
+    }
+    return properties;
+  }
+
+  /**
+   * Store a value and write all the properties to the cache file.
+   */
+  private void putProperty(String key, String value) {
+    getProperties().setProperty(key, value);
+    if (cacheFile == null) {
+      return;
+    }
+    // Write to a temporary file and rename it, so that a crash can't leave a truncated file.
+    File tempFile = new File(cacheFile.getPath() + ".tmp");
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(tempFile);
+      properties.store(out, null);
+      out.close();
+      out = null;
+      if (!tempFile.renameTo(cacheFile)) {
+        Log.w(TAG, "Failed to rename " + tempFile);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write " + tempFile, e);
+    } finally {
+      closeQuietly(out);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        // Ignore.
+      }
+    }
+  }
+
+  @TargetApi(18)
+  private static class V18Compat {
+
+    public static String[] getWidevineProperties(String... names) throws Exception {
+      MediaDrm mediaDrm = new MediaDrm(ExoplayerUtil.WIDEVINE_UUID);
+      try {
+        String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+          try {
+            values[i] = mediaDrm.getPropertyString(names[i]);
+          } catch (IllegalStateException e) {
+            // Older plugins don't report every property.
+            values[i] = null;
+          }
+        }
+        return values;
+      } finally {
+        mediaDrm.release();
+      }
+    }
+
+    public static void provisionWidevine(MediaDrmCallback drmCallback) throws Exception {
+      MediaDrm mediaDrm = new MediaDrm(ExoplayerUtil.WIDEVINE_UUID);
+      try {
+        // Opening a session is the only way to tell whether the device is provisioned.
+        mediaDrm.closeSession(mediaDrm.openSession());
+      } catch (NotProvisionedException e) {
+        byte[] response = drmCallback.executeProvisionRequest(ExoplayerUtil.WIDEVINE_UUID,
+            mediaDrm.getProvisionRequest());
+        mediaDrm.provideProvisionResponse(response);
+      } finally {
+        mediaDrm.release();
+      }
+    }
+
+  }
+
+}
@@ -28,17 +28,13 @@ import android.os.Build;
 
 import com.google.android.exoplayer.ExoPlayerLibraryInfo;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Utility methods for the Exoplayer extension.
@@ -51,6 +47,23 @@ public class ExoplayerUtil {
    */
   public static final UUID WIDEVINE_UUID = new UUID(0xEDEF8BA979D64ACEL, 0xA3C827DCD51D21EDL);
 
+  private static volatile String cachedUserAgent;
+
+  /**
+   * The threads on which the extension runs short background tasks (ex. startup phases and
+   * listener callbacks). They are shared by every player in the process, and idle threads exit
+   * after a while.
+   */
+  private static final ExecutorService backgroundExecutor = Executors.newCachedThreadPool(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "ExoplayerUtil");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
   /**
    * Generate a User-Agent string that should be sent with HTTP requests. A User-Agent string is
    * used to provide information such as the operating system and version to a server when it makes
@@ -61,6 +74,16 @@ public class ExoplayerUtil {
    * @return The User-Agent string.
    */
   public static String getUserAgent(Context context) {
+    // The string only depends on the package, so PackageManager is only asked once.
+    String userAgent = cachedUserAgent;
+    if (userAgent == null) {
+      userAgent = buildUserAgent(context);
+      cachedUserAgent = userAgent;
+    }
+    return userAgent;
+  }
+
+  private static String buildUserAgent(Context context) {
     String versionName;
     try {
       String packageName = context.getPackageName();
@@ -74,54 +97,24 @@ public class ExoplayerUtil {
   }
 
   /**
-   * Do an HTTP POST and return the data as a byte array.
+   * Returns the pool of daemon threads shared by the background tasks of the extension.
    */
-  public static byte[] executePost(String url, byte[] data, Map<String, String> requestProperties)
-      throws MalformedURLException, IOException {
-    HttpURLConnection urlConnection = null;
-    try {
-      urlConnection = (HttpURLConnection) new URL(url).openConnection();
-      urlConnection.setRequestMethod("POST");
-      urlConnection.setDoOutput(data != null);
-      urlConnection.setDoInput(true);
-      if (requestProperties != null) {
-        for (Map.Entry<String, String> requestProperty : requestProperties.entrySet()) {
-          urlConnection.setRequestProperty(requestProperty.getKey(), requestProperty.getValue());
-        }
-      }
-      if (data != null) {
-        OutputStream out = new BufferedOutputStream(urlConnection.getOutputStream());
-        out.write(data);
-        out.close();
-      }
-      InputStream in = new BufferedInputStream(urlConnection.getInputStream());
-      return convertInputStreamToByteArray(in);
-    } finally {
-      if (urlConnection != null) {
-        urlConnection.disconnect();
-      }
-    }
+  /* package */ static ExecutorService getBackgroundExecutor() {
+    return backgroundExecutor;
   }
 
   /**
-   * Write the contents of an input stream into a byte array.
-   * @param inputStream The stream to convert into a byte array.
-   * @return A byte array containing the contents of the input stream.
-   * @throws IOException
+   * Do an HTTP POST through the shared {@link HttpTransport} and return the data as a byte array.
    */
-  private static byte[] convertInputStreamToByteArray(InputStream inputStream) throws IOException {
-    byte[] bytes = null;
-    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-    byte data[] = new byte[1024];
-    int count;
-    while ((count = inputStream.read(data)) != -1) {
-      bos.write(data, 0, count);
+  public static byte[] executePost(String url, byte[] data, Map<String, String> requestProperties)
+      throws MalformedURLException, IOException {
+    HttpTransport.Response response =
+        HttpTransport.getInstance().post(url, data, requestProperties);
+    if (!response.isSuccessful()) {
+      throw new IOException("Unexpected response code " + response.getResponseCode() + " for "
+          + url);
     }
-    bos.flush();
-    bos.close();
-    inputStream.close();
-    bytes = bos.toByteArray();
-    return bytes;
+    return response.getBody();
   }
 
-}
\ No newline at end of file
+}
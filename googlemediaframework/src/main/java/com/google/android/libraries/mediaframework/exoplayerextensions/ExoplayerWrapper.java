@@ -23,6 +23,7 @@ package com.google.android.libraries.mediaframework.exoplayerextensions;
 import android.media.MediaCodec.CryptoException;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.view.Surface;
 
 import com.google.android.exoplayer.DummyTrackRenderer;
@@ -41,6 +42,7 @@ import com.google.android.exoplayer.text.TextRenderer;
 import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -52,7 +54,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.EventListener,
     DefaultBandwidthMeter.EventListener, MediaCodecVideoTrackRenderer.EventListener,
     MediaCodecAudioTrackRenderer.EventListener, TextRenderer,
-    StreamingDrmSessionManager.EventListener {
+    StreamingDrmSessionManager.EventListener, SplicingMultiTrackChunkSource.EventListener {
 
   /**
    * Builds renderers for the player.
@@ -96,6 +98,19 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     void onRenderersError(Exception e);
   }
 
+  /**
+   * A {@link RendererBuilderCallback} which knows whether its build was canceled, because the
+   * wrapper was prepared again, reset or released before the renderers were delivered.
+   */
+  /* package */ interface CancelableRendererBuilderCallback extends RendererBuilderCallback {
+
+    /**
+     * Returns whether the build was canceled. May be called from any thread.
+     */
+    boolean isCanceled();
+
+  }
+
   /**
    * A listener for basic playback events.
    */
@@ -105,6 +120,34 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     void onVideoSizeChanged(int width, int height, float pixelWidthHeightRatio);
   }
 
+  /**
+   * How the callbacks of a listener are delivered.
+   */
+  public enum DispatchPolicy {
+
+    /**
+     * On the thread which reports the event (usually the main thread), before the wrapper
+     * continues. Only suitable for listeners which return quickly.
+     */
+    INLINE,
+
+    /**
+     * In order and one at a time, on the extension's shared pool of background threads, so that
+     * a slow listener delays neither the player nor the other listeners. Every callback is
+     * delivered, so the callbacks of a listener which falls behind pile up.
+     */
+    BACKGROUND,
+
+    /**
+     * As {@link #BACKGROUND}, except that a listener which falls behind only receives the latest
+     * state (the playback state, the video size and the current formats) rather than every
+     * change. Each latest state is delivered after the callbacks which were reported before it.
+     * Dropped frames and bandwidth samples are summed into one callback, and load events are
+     * dropped while the listener is far behind. Errors and text are always delivered.
+     */
+    CONFLATED
+  }
+
   /**
    * A listener for internal errors.
    * <p>
@@ -230,6 +273,57 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     void onLoadCompleted(int sourceId, long bytesLoaded);
   }
 
+  /**
+   * A listener for the completion of audio and text track switches.
+   */
+  public interface TrackSwitchListener {
+
+    /**
+     * Respond to the first sample of a newly selected audio or text track being rendered.
+     * @param type The type of the track (one of the TYPE_* constants).
+     * @param trackIndex The index of the new track.
+     * @param seamless Whether the old track kept playing until the new one was buffered, as
+     *                 opposed to the renderer being flushed.
+     * @param latencyMs The time between the selection and the first sample of the new track.
+     */
+    void onTrackSwitched(int type, int trackIndex, boolean seamless, long latencyMs);
+
+  }
+
+  /**
+   * A listener for the distance to the live edge of live streams played in low-latency mode.
+   */
+  public interface LiveLatencyListener {
+
+    /**
+     * Respond to a new measurement of the distance to the live edge of a live stream.
+     * @param latencyMs The distance between the playback position and the live edge.
+     * @param targetLatencyMs The distance the player tries to keep.
+     */
+    void onLiveLatency(long latencyMs, long targetLatencyMs);
+
+    /**
+     * Respond to the player jumping forward because it had drifted too far behind the live edge.
+     * @param latencyMs The distance to the live edge before the jump.
+     * @param targetLatencyMs The distance to the live edge after the jump.
+     */
+    void onLiveCatchUp(long latencyMs, long targetLatencyMs);
+
+  }
+
+  /**
+   * A listener for the quality of experience of each playback session.
+   */
+  public interface SessionMetricsListener {
+
+    /**
+     * Invoked when a session ends, because the wrapper is prepared again, recycled or released.
+     * @param metrics The metrics of the session.
+     */
+    void onSessionEnded(SessionMetrics metrics);
+
+  }
+
   /**
    * A listener for receiving notifications of timed text.
    */
@@ -249,6 +343,44 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     void onId3Metadata(Map<String, Object> metadata);
   }
 
+  /**
+   * A set of track changes which are applied together by {@link #commit()}, so that changing
+   * several tracks at once (ex. restoring a saved audio language and subtitle choice) pauses and
+   * reconfigures the renderers only once. Obtained from {@link #beginTrackSelection()}.
+   */
+  public final class TrackSelection {
+
+    private final int[] states;
+    private boolean committed;
+
+    private TrackSelection() {
+      states = new int[RENDERER_COUNT];
+      Arrays.fill(states, NO_TRACK_CHANGE);
+    }
+
+    /**
+     * Add a change of the state of a track. A later change of the same type replaces this one.
+     * @param type The index indicating the type of video (ex {@link #TYPE_VIDEO}).
+     * @param state Either {@link #DISABLED_TRACK} or the index of the track to select.
+     */
+    public TrackSelection select(int type, int state) {
+      states[type] = state;
+      return this;
+    }
+
+    /**
+     * Apply all the changes. A selection can only be committed once.
+     */
+    public void commit() {
+      if (committed) {
+        throw new IllegalStateException("This selection has already been committed");
+      }
+      committed = true;
+      applyTrackSelection(states);
+    }
+
+  }
+
   /**
    * Exoplayer renderers are managed in an array (the array representation is used throughout the
    * Exoplayer library).
@@ -257,6 +389,12 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
    */
   public static final int RENDERER_COUNT = 5;
 
+  /**
+   * How often the snapshot returned by {@link #getSnapshot()} is updated while the player is
+   * buffering or playing, in ms.
+   */
+  public static final long SNAPSHOT_INTERVAL_MS = 200;
+
   /**
    * The element at index TYPE_VIDEO is a video type renderer.
    */
@@ -312,12 +450,17 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
    */
   public static final int PRIMARY_TRACK = 0;
 
+  /**
+   * Marks the types which a {@link TrackSelection} leaves unchanged.
+   */
+  private static final int NO_TRACK_CHANGE = Integer.MIN_VALUE;
+
   /**
    * Responsible for loading the data from the source, processing it, and providing byte streams.
    * By modifying the renderer builder, we can support different video formats like DASH, MP4, and
    * SmoothStreaming.
    */
-  private final RendererBuilder rendererBuilder;
+  private RendererBuilder rendererBuilder;
 
   /**
    * The underlying Exoplayer instance responsible for playing the video.
@@ -414,16 +557,125 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
    */
   private InfoListener infoListener;
 
+  /**
+   * Receives the metrics of each session when it ends.
+   */
+  private SessionMetricsListener sessionMetricsListener;
+
+  /**
+   * Receives the distance to the live edge in low-latency live mode.
+   */
+  private LiveLatencyListener liveLatencyListener;
+
+  /**
+   * Receives the latency of each audio and text track switch.
+   */
+  private TrackSwitchListener trackSwitchListener;
+
+  /**
+   * Records the events of this player for a consumer thread, or null.
+   */
+  private PlayerTelemetry telemetry;
+
+  /**
+   * Aggregates the events of the current session into its metrics.
+   */
+  private final SessionMetricsCollector metricsCollector;
+
+  /**
+   * The priority of this player in the process-wide {@link BufferBudget}.
+   */
+  private int bufferPriority;
+
+  /**
+   * This player's part of the process-wide {@link BufferBudget}. Registered when the renderers
+   * are first built, and released when the player is released or recycled.
+   */
+  private BufferBudget.Share bufferShare;
+
+  /**
+   * Keeps a live stream close to the live edge, or null if low-latency live mode is not in use.
+   */
+  private LiveLatencyController liveLatencyController;
+
+  /**
+   * The buffering thresholds and renderer settings of this player. The thresholds are fixed when
+   * the underlying {@link ExoPlayer} is created, so the profile never changes.
+   */
+  private final PlaybackProfile playbackProfile;
+
+  /**
+   * The time at which a track switch was requested for each type, or -1 if no switch is in
+   * progress. Used to report the latency of the switch.
+   */
+  private long[] trackSwitchStartTimesMs;
+
+  /**
+   * Whether the switch in progress for each type is seamless.
+   */
+  private boolean[] trackSwitchSeamless;
+
+  /**
+   * The format of the new track for each type, once it is known from a splice. A flushing switch
+   * is complete on the first format change, so it leaves this null.
+   */
+  private String[] trackSwitchFormatIds;
+
+  /**
+   * The latest snapshot of the state of this player, which any thread may read.
+   */
+  private volatile PlayerSnapshot snapshot;
+
+  /**
+   * The version of the latest snapshot. Only written on the main thread.
+   */
+  private long snapshotVersion;
+
+  /**
+   * The id of the format being played for each type, or null.
+   */
+  private String[] currentFormatIds;
+
+  /**
+   * The bandwidth estimate of the last bandwidth sample.
+   */
+  private long bandwidthEstimate;
+
+  /**
+   * Publishes a new snapshot while the player is buffering or playing, so that the position in
+   * the snapshot keeps up with playback.
+   */
+  private final Runnable snapshotUpdater = new Runnable() {
+    @Override
+    public void run() {
+      publishSnapshot();
+    }
+  };
+
   /**
    * @param rendererBuilder Responsible for loading the data from the source, processing it,
    *                        and providing byte streams. By modifying the renderer builder, we can
    *                        support different video formats like DASH, MP4, and SmoothStreaming.
    */
   public ExoplayerWrapper(RendererBuilder rendererBuilder) {
+    this(rendererBuilder, PlaybackProfile.DEFAULT);
+  }
+
+  /**
+   * @param rendererBuilder Responsible for loading the data from the source, processing it,
+   *                        and providing byte streams. By modifying the renderer builder, we can
+   *                        support different video formats like DASH, MP4, and SmoothStreaming.
+   * @param playbackProfile The buffering thresholds and renderer settings to play with.
+   */
+  public ExoplayerWrapper(RendererBuilder rendererBuilder, PlaybackProfile playbackProfile) {
     this.rendererBuilder = rendererBuilder;
-    player = ExoPlayer.Factory.newInstance(RENDERER_COUNT, 1000, 5000);
+    this.playbackProfile = playbackProfile;
+    player = ExoPlayer.Factory.newInstance(RENDERER_COUNT, playbackProfile.getMinBufferMs(),
+        playbackProfile.getMinRebufferMs());
     player.addListener(this);
+    metricsCollector = new SessionMetricsCollector();
     playerControl = new ObservablePlayerControl(player);
+    playerControl.metricsCollector = metricsCollector;
     mainHandler = new Handler();
     playbackListeners = new CopyOnWriteArrayList<PlaybackListener>();
     lastReportedPlaybackState = ExoPlayer.STATE_IDLE;
@@ -431,6 +683,117 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     trackStateForType = new int[RENDERER_COUNT];
     // Disable text initially.
     trackStateForType[TYPE_TEXT] = DISABLED_TRACK;
+    bufferPriority = BufferBudget.PRIORITY_FOREGROUND;
+    trackSwitchStartTimesMs = new long[RENDERER_COUNT];
+    trackSwitchSeamless = new boolean[RENDERER_COUNT];
+    trackSwitchFormatIds = new String[RENDERER_COUNT];
+    clearTrackSwitches();
+    currentFormatIds = new String[RENDERER_COUNT];
+    bandwidthEstimate = PlayerSnapshot.UNKNOWN;
+    publishSnapshot();
+  }
+
+  /**
+   * Replace the renderer builder used by the next call to {@link #prepare()}. This is used by
+   * {@link ExoplayerWrapperPool} to hand out a recycled wrapper for a different video.
+   * @param rendererBuilder The renderer builder for the video that will be played next.
+   */
+  /* package */ void setRendererBuilder(RendererBuilder rendererBuilder) {
+    this.rendererBuilder = rendererBuilder;
+  }
+
+  /**
+   * Return the wrapper to the state it was in right after construction, while keeping the
+   * underlying {@link ExoPlayer} (and its playback thread) alive so that it can be reused.
+   *
+   * <p>All listeners and player control callbacks are dropped, since they belong to the previous
+   * owner of the wrapper.
+   */
+  /* package */ void reset() {
+    if (builderCallback != null) {
+      builderCallback.cancel();
+      builderCallback = null;
+    }
+    endSession();
+    player.stop();
+    player.setPlayWhenReady(false);
+    player.seekTo(0);
+    rendererBuildingState = RENDERER_BUILDING_STATE_IDLE;
+    lastReportedPlaybackState = ExoPlayer.STATE_IDLE;
+    lastReportedPlayWhenReady = false;
+    surface = null;
+    videoRenderer = null;
+    multiTrackSources = null;
+    trackNames = null;
+    trackStateForType = new int[RENDERER_COUNT];
+    // Disable text initially.
+    trackStateForType[TYPE_TEXT] = DISABLED_TRACK;
+    playbackListeners.clear();
+    playerControl.callbacks.clear();
+    textListener = null;
+    id3MetadataListener = null;
+    internalErrorListener = null;
+    infoListener = null;
+    sessionMetricsListener = null;
+    liveLatencyListener = null;
+    trackSwitchListener = null;
+    telemetry = null;
+    releaseBufferShare();
+    bufferPriority = BufferBudget.PRIORITY_FOREGROUND;
+    setLiveLatencyController(null, null);
+    clearTrackSwitches();
+    clearSnapshotState();
+  }
+
+  /**
+   * Set the priority of this player in the process-wide {@link BufferBudget}, which decides how
+   * much memory it may use to buffer media when other players are active.
+   * @param priority One of the BufferBudget.PRIORITY_* constants.
+   */
+  public synchronized void setBufferPriority(int priority) {
+    bufferPriority = priority;
+    if (bufferShare != null) {
+      bufferShare.setPriority(priority);
+    }
+  }
+
+  /**
+   * Returns this player's part of the process-wide {@link BufferBudget}, registering it if
+   * needed. Renderer builders allocate their buffers through it, and its allocated size is the
+   * memory currently held by this player's buffers.
+   */
+  public synchronized BufferBudget.Share getBufferShare() {
+    if (bufferShare == null) {
+      bufferShare = BufferBudget.getInstance().register(bufferPriority);
+    }
+    return bufferShare;
+  }
+
+  /**
+   * Returns this player's part of the process-wide {@link BufferBudget} for a renderer build, or
+   * null if the build was canceled, in which case no share is registered.
+   * @param callback The callback of the build.
+   */
+  /* package */ synchronized BufferBudget.Share getBufferShare(RendererBuilderCallback callback) {
+    // Checked under the lock, so that a release either sees the new share or prevents it.
+    return isCanceled(callback) ? null : getBufferShare();
+  }
+
+  /**
+   * Returns whether the build to which a callback belongs was canceled. Callbacks which can't
+   * tell are never canceled.
+   * @param callback The callback passed to {@link RendererBuilder#buildRenderers}.
+   */
+  /* package */ static boolean isCanceled(RendererBuilderCallback callback) {
+    return callback instanceof CancelableRendererBuilderCallback
+        && ((CancelableRendererBuilderCallback) callback).isCanceled();
+  }
+
+  private synchronized void releaseBufferShare() {
+    if (bufferShare != null) {
+      bufferShare.release();
+      bufferShare = null;
+    }
   }
 
   /**
@@ -447,7 +810,17 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
    * @param playbackListener
    */
   public void addListener(PlaybackListener playbackListener) {
-    playbackListeners.add(playbackListener);
+    addListener(playbackListener, DispatchPolicy.INLINE);
+  }
+
+  /**
+   * Add a listener to respond to size change and error events.
+   *
+   * @param playbackListener The listener.
+   * @param policy How the callbacks of the listener are delivered.
+   */
+  public void addListener(PlaybackListener playbackListener, DispatchPolicy policy) {
+    playbackListeners.add(ListenerDispatcher.wrap(playbackListener, policy));
   }
 
   /**
@@ -456,7 +829,11 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
    * @param playbackListener
    */
   public void removeListener(PlaybackListener playbackListener) {
-    playbackListeners.remove(playbackListener);
+    for (PlaybackListener registered : playbackListeners) {
+      if (ListenerDispatcher.isFor(registered, playbackListener)) {
+        playbackListeners.remove(registered);
+      }
+    }
   }
 
   /**
@@ -474,7 +851,81 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
    *                 frames.
    */
   public void setInfoListener(InfoListener listener) {
-    infoListener = listener;
+    setInfoListener(listener, DispatchPolicy.INLINE);
+  }
+
+  /**
+   * Set a listener to respond to media format changes, bandwidth samples, load events, and dropped
+   * frames.
+   * @param listener The listener, or null.
+   * @param policy How the callbacks of the listener are delivered.
+   */
+  public void setInfoListener(InfoListener listener, DispatchPolicy policy) {
+    infoListener = ListenerDispatcher.wrap(listener, policy);
+  }
+
+  /**
+   * Set a listener to receive the distance to the live edge of live streams played in
+   * low-latency mode.
+   * @param listener The listener, or null.
+   */
+  public void setLiveLatencyListener(LiveLatencyListener listener) {
+    liveLatencyListener = listener;
+  }
+
+  /**
+   * Set a listener to receive the latency of each audio and text track switch.
+   * @param listener The listener, or null.
+   */
+  public void setTrackSwitchListener(TrackSwitchListener listener) {
+    trackSwitchListener = listener;
+  }
+
+  /**
+   * Set a listener to receive the metrics of each playback session when it ends.
+   * @param listener The listener, or null.
+   */
+  public void setSessionMetricsListener(SessionMetricsListener listener) {
+    sessionMetricsListener = listener;
+  }
+
+  /**
+   * Record the events of this player into the given telemetry ring, in addition to reporting them
+   * to the listeners. The ring is drained on its own thread, so heavy analytics can consume the
+   * events there instead of in a listener on the main thread.
+   * @param telemetry The telemetry ring, or null.
+   */
+  public void setTelemetry(PlayerTelemetry telemetry) {
+    this.telemetry = telemetry;
+  }
+
+  /**
+   * Returns the latest snapshot of the state of this player. Unlike the other getters, this may
+   * be called on any thread: it never blocks, and the snapshot is immutable. The snapshot is
+   * updated whenever the state changes, and every {@link #SNAPSHOT_INTERVAL_MS} while the player
+   * is buffering or playing, so its position may be that many ms old (see
+   * {@link PlayerSnapshot#getPositionMs(long)}).
+   */
+  public PlayerSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Returns the metrics of the current playback session so far, or null if the wrapper has not
+   * been prepared. Must be called on the main thread.
+   */
+  public SessionMetrics getSessionMetrics() {
+    return metricsCollector.getMetrics();
+  }
+
+  /**
+   * End the current session, if any, and report its metrics.
+   */
+  private void endSession() {
+    SessionMetrics metrics = metricsCollector.stop();
+    if (metrics != null && sessionMetricsListener != null) {
+      sessionMetricsListener.onSessionEnded(metrics);
+    }
   }
 
   /**
@@ -483,7 +934,17 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
    * @param listener The listener which can respond to text like subtitles and captions.
    */
   public void setTextListener(TextListener listener) {
-    textListener = listener;
+    setTextListener(listener, DispatchPolicy.INLINE);
+  }
+
+  /**
+   * Set the listener which responds to incoming text (ex subtitles or captions).
+   *
+   * @param listener The listener, or null.
+   * @param policy How the callbacks of the listener are delivered.
+   */
+  public void setTextListener(TextListener listener, DispatchPolicy policy) {
+    textListener = ListenerDispatcher.wrap(listener, policy);
   }
 
   public void setMetadataListener(Id3MetadataListener listener) {
@@ -532,19 +993,69 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   /**
    * Change the state of a track and push it onto the surface if needed.
+   *
+   * <p>Switching between two audio or text tracks of a {@link SplicingMultiTrackChunkSource}
+   * keeps the old track playing until the new one is buffered, instead of flushing the renderer.
+   * The latency of the switch is reported through {@link TrackSwitchListener}.
    * @param type The index indicating the type of video (ex {@link #TYPE_VIDEO}).
    * @param state Either {@link #PRIMARY_TRACK} or {@link #DISABLED_TRACK).
    */
   public void selectTrack(int type, int state) {
-    if (trackStateForType[type] == state) {
-      return;
+    beginTrackSelection().select(type, state).commit();
+  }
+
+  /**
+   * Start a set of track changes which are applied together when it is committed.
+   */
+  public TrackSelection beginTrackSelection() {
+    return new TrackSelection();
+  }
+
+  /**
+   * Apply the changes of a {@link TrackSelection}. Tracks which can be spliced are switched
+   * without touching their renderers, and all the other changes share a single reconfiguration.
+   * @param states The new state for each type, or NO_TRACK_CHANGE.
+   */
+  private void applyTrackSelection(int[] states) {
+    boolean built = rendererBuildingState == RENDERER_BUILDING_STATE_BUILT;
+    boolean[] pushTypes = new boolean[RENDERER_COUNT];
+    boolean pushAny = false;
+    for (int type = 0; type < RENDERER_COUNT; type++) {
+      int state = states[type];
+      if (state == NO_TRACK_CHANGE || trackStateForType[type] == state) {
+        continue;
+      }
+      int previousState = trackStateForType[type];
+      trackStateForType[type] = state;
+      if (type == TYPE_VIDEO) {
+        pushTypes[type] = true;
+        pushAny = true;
+        continue;
+      }
+
+      boolean seamless = built && previousState != DISABLED_TRACK && state != DISABLED_TRACK
+          && multiTrackSources[type] instanceof SplicingMultiTrackChunkSource
+          && player.getRendererEnabled(type);
+      if (built && state != DISABLED_TRACK) {
+        trackSwitchStartTimesMs[type] = SystemClock.elapsedRealtime();
+        trackSwitchSeamless[type] = seamless;
+        trackSwitchFormatIds[type] = null;
+      } else {
+        trackSwitchStartTimesMs[type] = -1;
+      }
+      if (seamless) {
+        // Keep the renderer enabled, so that the old track plays until the new one is buffered.
+        player.sendMessage(multiTrackSources[type],
+            SplicingMultiTrackChunkSource.MSG_SPLICE_TRACK, state);
+      } else {
+        pushTypes[type] = true;
+        pushAny = true;
+      }
     }
-    trackStateForType[type] = state;
-    if (type == TYPE_VIDEO) {
-      pushSurfaceAndVideoTrack(false);
-    } else {
-      pushTrackSelection(type, true);
+    if (pushAny) {
+      pushTrackSelections(pushTypes);
     }
+    publishSnapshot();
   }
 
   /**
@@ -557,8 +1068,13 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     if (builderCallback != null) {
       builderCallback.cancel();
     }
+    endSession();
+    metricsCollector.start();
     rendererBuildingState = RENDERER_BUILDING_STATE_BUILDING;
     maybeReportPlayerState();
+    setLiveLatencyController(null, null);
+    clearTrackSwitches();
+    clearSnapshotState();
     builderCallback = new InternalRendererBuilderCallback();
     rendererBuilder.buildRenderers(this, builderCallback);
   }
@@ -606,8 +1122,10 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     rendererBuildingState = RENDERER_BUILDING_STATE_BUILT;
     maybeReportPlayerState();
     pushSurfaceAndVideoTrack(false);
-    pushTrackSelection(TYPE_AUDIO, true);
-    pushTrackSelection(TYPE_TEXT, true);
+    boolean[] pushTypes = new boolean[RENDERER_COUNT];
+    pushTypes[TYPE_AUDIO] = true;
+    pushTypes[TYPE_TEXT] = true;
+    pushTrackSelections(pushTypes);
     player.prepare(renderers);
   }
 
@@ -617,6 +1135,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
    */
   public void onRenderersError(Exception e) {
     builderCallback = null;
+    recordError(PlayerTelemetry.ERROR_RENDERER_INITIALIZATION, -1);
     if (internalErrorListener != null) {
       internalErrorListener.onRendererInitializationError(e);
     }
@@ -634,6 +1153,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
    */
   public void setPlayWhenReady(boolean playWhenReady) {
     player.setPlayWhenReady(playWhenReady);
+    publishSnapshot();
   }
 
   /**
@@ -641,7 +1161,9 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
    * @param positionMs A number of milliseconds after the start of the video.
    */
   public void seekTo(int positionMs) {
+    metricsCollector.onSeek();
     player.seekTo(positionMs);
+    publishSnapshot();
   }
 
   /**
@@ -652,9 +1174,57 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
       builderCallback.cancel();
       builderCallback = null;
     }
+    endSession();
     rendererBuildingState = RENDERER_BUILDING_STATE_IDLE;
     surface = null;
     player.release();
+    releaseBufferShare();
+    setLiveLatencyController(null, null);
+    mainHandler.removeCallbacks(snapshotUpdater);
+  }
+
+  /**
+   * Replace the controller which keeps a live stream close to the live edge. Renderer builders
+   * set it when they build a live stream in low-latency mode.
+   * @param controller The new controller, or null to stop tracking the live edge.
+   * @param callback The callback of the build which sets the controller, whose controller is
+   *                 ignored if the build has been canceled by then, or null.
+   */
+  /* package */ void setLiveLatencyController(final LiveLatencyController controller,
+                                              final RendererBuilderCallback callback) {
+    // Builders may run off the main thread, and the controller runs on it.
+    mainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (isCanceled(callback)) {
+          // Builds are canceled on the main thread, so the build can't be canceled after this.
+          return;
+        }
+        if (liveLatencyController != null) {
+          liveLatencyController.stop();
+        }
+        liveLatencyController = controller;
+        if (controller != null) {
+          controller.start();
+        }
+      }
+    });
+  }
+
+  /* package */ void onLiveLatency(long latencyMs, long targetLatencyMs) {
+    if (telemetry != null) {
+      telemetry.record(PlayerTelemetry.EVENT_LIVE_LATENCY, -1, 0, latencyMs, targetLatencyMs,
+          null);
+    }
+    if (liveLatencyListener != null) {
+      liveLatencyListener.onLiveLatency(latencyMs, targetLatencyMs);
+    }
+  }
+
+  /* package */ void onLiveCatchUp(long latencyMs, long targetLatencyMs) {
+    if (liveLatencyListener != null) {
+      liveLatencyListener.onLiveCatchUp(latencyMs, targetLatencyMs);
+    }
   }
 
   /**
@@ -710,6 +1280,14 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     return player.getPlaybackLooper();
   }
 
+  /**
+   * Returns the buffering thresholds and renderer settings of this player, which the renderer
+   * builders apply to the renderers they build.
+   */
+  public PlaybackProfile getPlaybackProfile() {
+    return playbackProfile;
+  }
+
   /**
    * Returns the handler which responds to messages.
    */
@@ -719,6 +1297,11 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onPlayerStateChanged(boolean playWhenReady, int state) {
+    metricsCollector.onPlayerStateChanged(playWhenReady, state);
+    if (telemetry != null) {
+      telemetry.record(PlayerTelemetry.EVENT_STATE_CHANGED, -1, state, playWhenReady ? 1 : 0, 0,
+          null);
+    }
     maybeReportPlayerState();
   }
 
@@ -739,6 +1322,10 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onDroppedFrames(int count, long elapsed) {
+    metricsCollector.onDroppedFrames(count);
+    if (telemetry != null) {
+      telemetry.record(PlayerTelemetry.EVENT_DROPPED_FRAMES, TYPE_VIDEO, count, elapsed, 0, null);
+    }
     if (infoListener != null) {
       infoListener.onDroppedFrames(count, elapsed);
     }
@@ -746,6 +1333,11 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onBandwidthSample(int elapsedMs, long bytes, long bandwidthEstimate) {
+    this.bandwidthEstimate = bandwidthEstimate;
+    if (telemetry != null) {
+      telemetry.record(PlayerTelemetry.EVENT_BANDWIDTH_SAMPLE, -1, elapsedMs, bytes,
+          bandwidthEstimate, null);
+    }
     if (infoListener != null) {
       infoListener.onBandwidthSample(elapsedMs, bytes, bandwidthEstimate);
     }
@@ -759,6 +1351,12 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
                             int mediaStartTimeMs,
                             int mediaEndTimeMs,
                             long totalBytes) {
+    metricsCollector.onLoadStarted(sourceId, formatId, isInitialization, mediaStartTimeMs,
+        mediaEndTimeMs);
+    if (telemetry != null) {
+      telemetry.record(PlayerTelemetry.EVENT_LOAD_STARTED, sourceId, trigger, mediaStartTimeMs,
+          mediaEndTimeMs, formatId);
+    }
     if (infoListener != null) {
       infoListener.onLoadStarted(sourceId, formatId, trigger, isInitialization, mediaStartTimeMs,
           mediaEndTimeMs, totalBytes);
@@ -767,6 +1365,10 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onLoadCompleted(int sourceId, long bytesLoaded) {
+    metricsCollector.onLoadCompleted(sourceId, bytesLoaded);
+    if (telemetry != null) {
+      telemetry.record(PlayerTelemetry.EVENT_LOAD_COMPLETED, sourceId, 0, bytesLoaded, 0, null);
+    }
     if (infoListener != null) {
       infoListener.onLoadCompleted(sourceId, bytesLoaded);
     }
@@ -777,11 +1379,41 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     // Do nothing.
   }
 
+  @Override
+  public void onTrackSpliced(int sourceId, int trackIndex, String formatId, int spliceTimeMs) {
+    if (trackSwitchStartTimesMs[sourceId] != -1 && trackStateForType[sourceId] == trackIndex) {
+      // The switch completes when playback reaches the first chunk of the new track.
+      trackSwitchFormatIds[sourceId] = formatId;
+    }
+  }
+
+  @Override
+  public void onTrackSpliceFailed(int sourceId, int trackIndex) {
+    if (trackStateForType[sourceId] != trackIndex) {
+      // A later selection has replaced this one.
+      return;
+    }
+    // Fall back to flushing the renderer.
+    trackSwitchSeamless[sourceId] = false;
+    trackSwitchFormatIds[sourceId] = null;
+    boolean[] pushTypes = new boolean[RENDERER_COUNT];
+    pushTypes[sourceId] = true;
+    pushTrackSelections(pushTypes);
+  }
+
   @Override
   public void onDownstreamFormatChanged(int sourceId,
                                         String formatId,
                                         int trigger,
                                         int mediaTimeMs) {
+    maybeReportTrackSwitch(sourceId, formatId);
+    metricsCollector.onDownstreamFormatChanged(sourceId, formatId);
+    currentFormatIds[sourceId] = formatId;
+    publishSnapshot();
+    if (telemetry != null) {
+      telemetry.record(PlayerTelemetry.EVENT_FORMAT_CHANGED, sourceId, trigger, mediaTimeMs, 0,
+          formatId);
+    }
     if (infoListener == null) {
       return;
     }
@@ -794,6 +1426,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onDrmSessionManagerError(Exception e) {
+    recordError(PlayerTelemetry.ERROR_DRM_SESSION, -1);
     if (internalErrorListener != null) {
       internalErrorListener.onDrmSessionManagerError(e);
     }
@@ -801,6 +1434,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onDecoderInitializationError(DecoderInitializationException e) {
+    recordError(PlayerTelemetry.ERROR_DECODER_INITIALIZATION, -1);
     if (internalErrorListener != null) {
       internalErrorListener.onDecoderInitializationError(e);
     }
@@ -808,6 +1442,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onAudioTrackInitializationError(AudioTrack.InitializationException e) {
+    recordError(PlayerTelemetry.ERROR_AUDIO_TRACK, -1);
     if (internalErrorListener != null) {
       internalErrorListener.onAudioTrackInitializationError(e);
     }
@@ -815,6 +1450,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onAudioTrackWriteError(AudioTrack.WriteException e) {
+    recordError(PlayerTelemetry.ERROR_AUDIO_TRACK, -1);
     if (internalErrorListener != null) {
       internalErrorListener.onAudioTrackWriteError(e);
     }
@@ -822,6 +1458,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onCryptoError(CryptoException e) {
+    recordError(PlayerTelemetry.ERROR_CRYPTO, -1);
     if (internalErrorListener != null) {
       internalErrorListener.onCryptoError(e);
     }
@@ -829,6 +1466,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onUpstreamError(int sourceId, IOException e) {
+    recordError(PlayerTelemetry.ERROR_UPSTREAM, sourceId);
     if (internalErrorListener != null) {
       internalErrorListener.onUpstreamError(sourceId, e);
     }
@@ -836,6 +1474,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onConsumptionError(int sourceId, IOException e) {
+    recordError(PlayerTelemetry.ERROR_CONSUMPTION, sourceId);
     if (internalErrorListener != null) {
       internalErrorListener.onConsumptionError(sourceId, e);
     }
@@ -848,6 +1487,12 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     }
   }
 
+  private void recordError(int error, int sourceId) {
+    if (telemetry != null) {
+      telemetry.record(PlayerTelemetry.EVENT_ERROR, sourceId, error, 0, 0, null);
+    }
+  }
+
   /* package */ MetadataTrackRenderer.MetadataRenderer<Map<String, Object>>
       getId3MetadataRenderer() {
     return new MetadataTrackRenderer.MetadataRenderer<Map<String, Object>>() {
@@ -867,7 +1512,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onDrawnToSurface(Surface surface) {
-    // Do nothing.
+    metricsCollector.onDrawnToSurface();
   }
 
   @Override
@@ -896,6 +1541,37 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
       lastReportedPlayWhenReady = playWhenReady;
       lastReportedPlaybackState = playbackState;
     }
+    publishSnapshot();
+  }
+
+  /**
+   * Publish a snapshot of the current state, and schedule the next one if the player is
+   * buffering or playing. Must be called on the main thread.
+   */
+  private void publishSnapshot() {
+    int playbackState = getPlaybackState();
+    long bufferedPositionMs = player.getBufferedPosition();
+    long durationMs = player.getDuration();
+    snapshot = new PlayerSnapshot(++snapshotVersion, playbackState, player.getPlayWhenReady(),
+        player.getCurrentPosition(),
+        bufferedPositionMs == ExoPlayer.UNKNOWN_TIME ? PlayerSnapshot.UNKNOWN : bufferedPositionMs,
+        durationMs == ExoPlayer.UNKNOWN_TIME ? PlayerSnapshot.UNKNOWN : durationMs,
+        bandwidthEstimate, trackStateForType, currentFormatIds);
+    mainHandler.removeCallbacks(snapshotUpdater);
+    if (playbackState == ExoPlayer.STATE_BUFFERING || playbackState == ExoPlayer.STATE_READY) {
+      mainHandler.postDelayed(snapshotUpdater, SNAPSHOT_INTERVAL_MS);
+    }
+  }
+
+  /**
+   * Forget the formats and bandwidth of the previous video, and publish a snapshot without them.
+   */
+  private void clearSnapshotState() {
+    for (int i = 0; i < RENDERER_COUNT; i++) {
+      currentFormatIds[i] = null;
+    }
+    bandwidthEstimate = PlayerSnapshot.UNKNOWN;
+    publishSnapshot();
   }
 
   /**
@@ -915,35 +1591,89 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
       player.sendMessage(
           videoRenderer, MediaCodecVideoTrackRenderer.MSG_SET_SURFACE, surface);
     }
-    pushTrackSelection(TYPE_VIDEO, surface != null && surface.isValid());
+    boolean[] pushTypes = new boolean[RENDERER_COUNT];
+    pushTypes[TYPE_VIDEO] = true;
+    pushTrackSelections(pushTypes);
   }
 
   /**
-   * Send the renderer at trackIndex to the underlying player.
-   * @param type The index of the video type (it must be one of the TYPE_* constants).
-   * @param allowRendererEnable If true, the renderer is enabled.
+   * Send the track selections of the given types to the underlying player. Switching the track of
+   * a multi-track source requires its renderer to be disabled, so the player is paused once while
+   * all of those renderers are disabled, switched and enabled again together.
+   * @param pushTypes Whether to push the selection of each type (indexed by the TYPE_* constants).
    */
-  private void pushTrackSelection(int type, boolean allowRendererEnable) {
+  private void pushTrackSelections(boolean[] pushTypes) {
     if (rendererBuildingState != RENDERER_BUILDING_STATE_BUILT) {
       return;
     }
 
-    int trackState = trackStateForType[type];
-    if (trackState == DISABLED_TRACK) {
-      player.setRendererEnabled(type, false);
-    } else if (multiTrackSources[type] == null) {
-      player.setRendererEnabled(type, allowRendererEnable);
-    } else {
-      boolean playWhenReady = player.getPlayWhenReady();
+    boolean switchesTracks = false;
+    for (int type = 0; type < RENDERER_COUNT; type++) {
+      if (pushTypes[type] && trackStateForType[type] != DISABLED_TRACK
+          && multiTrackSources[type] != null) {
+        switchesTracks = true;
+      }
+    }
+
+    boolean playWhenReady = player.getPlayWhenReady();
+    if (switchesTracks) {
       player.setPlayWhenReady(false);
-      player.setRendererEnabled(type, false);
-      player.sendMessage(multiTrackSources[type], MultiTrackChunkSource.MSG_SELECT_TRACK,
-          trackState);
-      player.setRendererEnabled(type, allowRendererEnable);
+      for (int type = 0; type < RENDERER_COUNT; type++) {
+        if (pushTypes[type] && trackStateForType[type] != DISABLED_TRACK
+            && multiTrackSources[type] != null) {
+          player.setRendererEnabled(type, false);
+          player.sendMessage(multiTrackSources[type], MultiTrackChunkSource.MSG_SELECT_TRACK,
+              trackStateForType[type]);
+        }
+      }
+    }
+    for (int type = 0; type < RENDERER_COUNT; type++) {
+      if (!pushTypes[type]) {
+        continue;
+      }
+      // The video renderer can only be enabled once it has somewhere to draw.
+      boolean allowRendererEnable = type != TYPE_VIDEO || (surface != null && surface.isValid());
+      player.setRendererEnabled(type,
+          trackStateForType[type] != DISABLED_TRACK && allowRendererEnable);
+    }
+    if (switchesTracks) {
       player.setPlayWhenReady(playWhenReady);
     }
   }
 
+  /**
+   * Report the latency of the track switch in progress for the given type if the given format
+   * change completes it.
+   */
+  private void maybeReportTrackSwitch(int type, String formatId) {
+    if (type < 0 || type >= RENDERER_COUNT || trackSwitchStartTimesMs[type] == -1) {
+      return;
+    }
+    if (trackSwitchSeamless[type] && !formatId.equals(trackSwitchFormatIds[type])) {
+      // Still playing the old track, or the splice has not happened yet.
+      return;
+    }
+    long latencyMs = SystemClock.elapsedRealtime() - trackSwitchStartTimesMs[type];
+    trackSwitchStartTimesMs[type] = -1;
+    trackSwitchFormatIds[type] = null;
+    if (telemetry != null) {
+      telemetry.record(PlayerTelemetry.EVENT_TRACK_SWITCHED, type, trackStateForType[type],
+          latencyMs, trackSwitchSeamless[type] ? 1 : 0, formatId);
+    }
+    if (trackSwitchListener != null) {
+      trackSwitchListener.onTrackSwitched(type, trackStateForType[type],
+          trackSwitchSeamless[type], latencyMs);
+    }
+  }
+
+  private void clearTrackSwitches() {
+    for (int i = 0; i < RENDERER_COUNT; i++) {
+      trackSwitchStartTimesMs[i] = -1;
+      trackSwitchSeamless[i] = false;
+      trackSwitchFormatIds[i] = null;
+    }
+  }
+
   /* package */ void processText(String text) {
     if (textListener == null || selectedTracks[TYPE_TEXT] == DISABLED_TRACK) {
       return;
@@ -954,14 +1684,19 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
   /**
    * Responds to a successful renderer build or an error.
    */
-  private class InternalRendererBuilderCallback implements RendererBuilderCallback {
+  private class InternalRendererBuilderCallback implements CancelableRendererBuilderCallback {
 
-    private boolean canceled;
+    private volatile boolean canceled;
 
     public void cancel() {
       canceled = true;
     }
 
+    @Override
+    public boolean isCanceled() {
+      return canceled;
+    }
+
     @Override
     public void onRenderers(String[][] trackNames, MultiTrackChunkSource[] multiTrackSources,
                                  TrackRenderer[] renderers) {
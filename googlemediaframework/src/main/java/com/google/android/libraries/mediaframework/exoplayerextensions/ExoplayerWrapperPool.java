@@ -0,0 +1,178 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A bounded pool of idle {@link ExoplayerWrapper} instances.
+ *
+ * <p>Creating an {@link ExoplayerWrapper} starts a new {@link com.google.android.exoplayer.ExoPlayer}
+ * playback thread. Screens which open and close players frequently can instead acquire a warm
+ * wrapper from this pool and recycle it when they are done, so that the thread is reused.
+ *
+ * <p>An {@link ExoplayerWrapper} binds its handler to the looper of the thread that creates it,
+ * so a pool must only be used from the main thread.
+ */
+public class ExoplayerWrapperPool {
+
+  /**
+   * The maximum number of idle wrappers kept by the pool.
+   */
+  private final int maxIdleWrappers;
+
+  /**
+   * The idle wrappers, ready to be handed out.
+   */
+  private final ArrayDeque<ExoplayerWrapper> idleWrappers;
+
+  /**
+   * The number of times {@link #acquire} was served by an idle wrapper.
+   */
+  private int hitCount;
+
+  /**
+   * The number of times {@link #acquire} had to create a new wrapper.
+   */
+  private int missCount;
+
+  /**
+   * The number of wrappers released because the pool was full or cleared.
+   */
+  private int evictionCount;
+
+  /**
+   * @param maxIdleWrappers The maximum number of idle wrappers kept by the pool.
+   */
+  public ExoplayerWrapperPool(int maxIdleWrappers) {
+    if (maxIdleWrappers < 0) {
+      throw new IllegalArgumentException("maxIdleWrappers must not be negative");
+    }
+    this.maxIdleWrappers = maxIdleWrappers;
+    idleWrappers = new ArrayDeque<ExoplayerWrapper>(maxIdleWrappers);
+  }
+
+  /**
+   * Create idle wrappers until the pool holds {@code count} of them (or is full).
+   * @param count The number of idle wrappers that should be available.
+   */
+  public void prewarm(int count) {
+    prewarm(count, PlaybackProfile.DEFAULT);
+  }
+
+  /**
+   * Create idle wrappers with the given playback profile until the pool holds {@code count}
+   * wrappers (or is full).
+   * @param count The number of idle wrappers that should be available.
+   * @param playbackProfile The profile of the new wrappers.
+   */
+  public void prewarm(int count, PlaybackProfile playbackProfile) {
+    int target = Math.min(count, maxIdleWrappers);
+    while (idleWrappers.size() < target) {
+      idleWrappers.push(new ExoplayerWrapper(null, playbackProfile));
+    }
+  }
+
+  /**
+   * Returns an idle wrapper configured with the given renderer builder, or a new one if the pool
+   * is empty. The wrapper is not prepared; call {@link ExoplayerWrapper#prepare()} as usual.
+   * @param rendererBuilder The renderer builder for the video that will be played.
+   */
+  public ExoplayerWrapper acquire(ExoplayerWrapper.RendererBuilder rendererBuilder) {
+    return acquire(rendererBuilder, PlaybackProfile.DEFAULT);
+  }
+
+  /**
+   * Returns an idle wrapper with the given playback profile, configured with the given renderer
+   * builder, or a new one if the pool holds no wrapper with that profile. The buffering
+   * thresholds of a wrapper cannot change once it is created, so only a wrapper with an equal
+   * profile can be reused.
+   * @param rendererBuilder The renderer builder for the video that will be played.
+   * @param playbackProfile The profile to play the video with.
+   */
+  public ExoplayerWrapper acquire(ExoplayerWrapper.RendererBuilder rendererBuilder,
+                                  PlaybackProfile playbackProfile) {
+    Iterator<ExoplayerWrapper> iterator = idleWrappers.iterator();
+    while (iterator.hasNext()) {
+      ExoplayerWrapper wrapper = iterator.next();
+      if (wrapper.getPlaybackProfile().equals(playbackProfile)) {
+        iterator.remove();
+        hitCount++;
+        wrapper.setRendererBuilder(rendererBuilder);
+        return wrapper;
+      }
+    }
+    missCount++;
+    return new ExoplayerWrapper(rendererBuilder, playbackProfile);
+  }
+
+  /**
+   * Give a wrapper back to the pool. The wrapper is stopped and reset; if the pool is already
+   * full, it is released instead. The caller must not use the wrapper after this call.
+   * @param wrapper A wrapper that is no longer needed.
+   */
+  public void recycle(ExoplayerWrapper wrapper) {
+    if (idleWrappers.size() >= maxIdleWrappers) {
+      evictionCount++;
+      wrapper.release();
+      return;
+    }
+    wrapper.reset();
+    wrapper.setRendererBuilder(null);
+    idleWrappers.push(wrapper);
+  }
+
+  /**
+   * Release all the idle wrappers held by the pool.
+   */
+  public void clear() {
+    ExoplayerWrapper wrapper;
+    while ((wrapper = idleWrappers.poll()) != null) {
+      evictionCount++;
+      wrapper.release();
+    }
+  }
+
+  /**
+   * Returns the number of idle wrappers currently held by the pool.
+   */
+  public int getIdleCount() {
+    return idleWrappers.size();
+  }
+
+  /**
+   * Returns the number of times {@link #acquire} was served by an idle wrapper.
+   */
+  public int getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Returns the number of times {@link #acquire} had to create a new wrapper.
+   */
+  public int getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the number of wrappers released because the pool was full or cleared.
+   */
+  public int getEvictionCount() {
+    return evictionCount;
+  }
+}
@@ -21,26 +21,32 @@
 package com.google.android.libraries.mediaframework.exoplayerextensions;
 
 import android.media.MediaCodec;
+import android.os.Looper;
 
 import com.google.android.exoplayer.MediaCodecAudioTrackRenderer;
+import com.google.android.exoplayer.MediaCodecUtil.DecoderQueryException;
 import com.google.android.exoplayer.MediaCodecVideoTrackRenderer;
 import com.google.android.exoplayer.TrackRenderer;
 import com.google.android.exoplayer.hls.HlsChunkSource;
+import com.google.android.exoplayer.hls.HlsMasterPlaylist;
 import com.google.android.exoplayer.hls.HlsPlaylist;
 import com.google.android.exoplayer.hls.HlsPlaylistParser;
 import com.google.android.exoplayer.hls.HlsSampleSource;
+import com.google.android.exoplayer.hls.Variant;
 import com.google.android.exoplayer.metadata.Id3Parser;
 import com.google.android.exoplayer.metadata.MetadataTrackRenderer;
 import com.google.android.exoplayer.text.eia608.Eia608TrackRenderer;
 import com.google.android.exoplayer.upstream.DataSource;
 import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
-import com.google.android.exoplayer.upstream.UriDataSource;
 import com.google.android.exoplayer.util.ManifestFetcher;
 import com.google.android.exoplayer.util.ManifestFetcher.ManifestCallback;
+import com.google.android.exoplayer.util.Util;
 import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper.RendererBuilder;
 import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper.RendererBuilderCallback;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -51,24 +57,106 @@ public class HlsRendererBuilder implements RendererBuilder, ManifestCallback<Hls
   private final String userAgent;
   private final String url;
   private final String contentId;
+  private final DeviceCapabilities capabilities;
+  private final ManifestCache<HlsPlaylist> playlistCache;
+  private final SegmentCache segmentCache;
 
   private ExoplayerWrapper player;
   private RendererBuilderCallback callback;
+  private SharedBandwidthEstimator bandwidthEstimator;
+  private StartupOrchestrator.Listener startupListener;
+  private StartupOrchestrator startup;
 
   public HlsRendererBuilder(String userAgent, String url, String contentId) {
+    this(userAgent, url, contentId, null);
+  }
+
+  /**
+   * @param capabilities If not null, variants which the device cannot decode are filtered out
+   *                     using this cache of decoder capabilities.
+   */
+  public HlsRendererBuilder(String userAgent, String url, String contentId,
+                            DeviceCapabilities capabilities) {
+    this(userAgent, url, contentId, capabilities, null);
+  }
+
+  /**
+   * @param capabilities If not null, variants which the device cannot decode are filtered out
+   *                     using this cache of decoder capabilities.
+   * @param playlistCache If not null, the playlist is loaded through this cache, so that
+   *                      replaying on-demand content does not download it again.
+   */
+  public HlsRendererBuilder(String userAgent, String url, String contentId,
+                            DeviceCapabilities capabilities,
+                            ManifestCache<HlsPlaylist> playlistCache) {
+    this(userAgent, url, contentId, capabilities, playlistCache, null);
+  }
+
+  /**
+   * @param capabilities If not null, variants which the device cannot decode are filtered out
+   *                     using this cache of decoder capabilities.
+   * @param playlistCache If not null, the playlist is loaded through this cache, so that
+   *                      replaying on-demand content does not download it again.
+   * @param segmentCacheConfig If not null, media segments are read through the disk cache with
+   *                           this configuration. Media playlists and keys are never cached.
+   */
+  public HlsRendererBuilder(String userAgent, String url, String contentId,
+                            DeviceCapabilities capabilities,
+                            ManifestCache<HlsPlaylist> playlistCache,
+                            SegmentCache.Config segmentCacheConfig) {
     this.userAgent = userAgent;
     this.url = url;
     this.contentId = contentId;
+    this.capabilities = capabilities;
+    this.playlistCache = playlistCache;
+    this.segmentCache = segmentCacheConfig != null
+        ? SegmentCache.getInstance(segmentCacheConfig) : null;
+  }
+
+  /**
+   * Seed adaptive playback with the last bandwidth measured on the same network and host, and
+   * record the bandwidth measured by this player. Must be called before the renderers are built.
+   * @param bandwidthEstimator The shared estimator, or null to start each session without an
+   *                           estimate.
+   */
+  public void setBandwidthEstimator(SharedBandwidthEstimator bandwidthEstimator) {
+    this.bandwidthEstimator = bandwidthEstimator;
+  }
+
+  /**
+   * Report the timeline of each startup, as run by a {@link StartupOrchestrator}, to the given
+   * listener. Must be called before the renderers are built.
+   * @param startupListener The listener, or null.
+   */
+  public void setStartupListener(StartupOrchestrator.Listener startupListener) {
+    this.startupListener = startupListener;
   }
 
   @Override
   public void buildRenderers(ExoplayerWrapper player, RendererBuilderCallback callback) {
     this.player = player;
     this.callback = callback;
-    HlsPlaylistParser parser = new HlsPlaylistParser();
-    ManifestFetcher<HlsPlaylist> playlistFetcher =
-        new ManifestFetcher<HlsPlaylist>(parser, contentId, url, userAgent);
-    playlistFetcher.singleLoad(player.getMainHandler().getLooper(), this);
+    // Connect to the host, and probe the decoders, while the playlist loads.
+    startup = new StartupOrchestrator(player.getMainHandler(), startupListener);
+    startup.preconnect(url);
+    if (capabilities != null) {
+      startup.prefetchCapabilities(capabilities, false);
+    }
+    startup.startPhase(StartupOrchestrator.PHASE_MANIFEST);
+    // Deliver the manifest on the thread that invoked the builder. This is the main thread unless
+    // the builder is wrapped in an AsyncRendererBuilder.
+    Looper looper = Looper.myLooper();
+    if (looper == null) {
+      looper = player.getMainHandler().getLooper();
+    }
+    if (playlistCache != null) {
+      playlistCache.singleLoad(looper, contentId, url, userAgent, this);
+    } else {
+      HlsPlaylistParser parser = new HlsPlaylistParser();
+      ManifestFetcher<HlsPlaylist> playlistFetcher =
+          new ManifestFetcher<HlsPlaylist>(parser, contentId, url, userAgent);
+      playlistFetcher.singleLoad(looper, this);
+    }
   }
 
   @Override
@@ -78,14 +166,34 @@ public class HlsRendererBuilder implements RendererBuilder, ManifestCallback<Hls
 
   @Override
   public void onManifest(String contentId, HlsPlaylist manifest) {
-    DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter();
-
-    DataSource dataSource = new UriDataSource(userAgent, bandwidthMeter);
-    HlsChunkSource chunkSource = new HlsChunkSource(dataSource, url, manifest, bandwidthMeter, null,
-        HlsChunkSource.ADAPTIVE_MODE_SPLICE);
+    AsyncRendererBuilder.onManifestLoaded(callback);
+    startup.endPhase(StartupOrchestrator.PHASE_MANIFEST);
+    startup.startPhase(StartupOrchestrator.PHASE_RENDERERS);
+    int[] variantIndices;
+    try {
+      variantIndices = getDecodableVariantIndices(manifest);
+    } catch (DecoderQueryException e) {
+      callback.onRenderersError(e);
+      return;
+    }
+
+    DefaultBandwidthMeter bandwidthMeter = bandwidthEstimator != null
+        ? bandwidthEstimator.createBandwidthMeter(url, null, null)
+        : new DefaultBandwidthMeter();
+
+    DataSource dataSource =
+        HttpTransport.getInstance().createDataSource(userAgent, bandwidthMeter);
+    if (segmentCache != null) {
+      // Media playlists and keys must not be cached, so only the segments go through the cache.
+      dataSource = segmentCache.createHlsDataSource(dataSource);
+    }
+    HlsChunkSource chunkSource = new HlsChunkSource(dataSource, url, manifest, bandwidthMeter,
+        variantIndices, HlsChunkSource.ADAPTIVE_MODE_SPLICE);
     HlsSampleSource sampleSource = new HlsSampleSource(chunkSource, true, 3);
+    PlaybackProfile profile = player.getPlaybackProfile();
     MediaCodecVideoTrackRenderer videoRenderer = new MediaCodecVideoTrackRenderer(sampleSource,
-        MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 5000, player.getMainHandler(), player, 50);
+        MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, profile.getAllowedJoiningTimeMs(),
+        player.getMainHandler(), player, profile.getMaxDroppedFrameCountToNotify());
     MediaCodecAudioTrackRenderer audioRenderer = new MediaCodecAudioTrackRenderer(sampleSource);
 
     MetadataTrackRenderer<Map<String, Object>> id3Renderer =
@@ -100,7 +208,32 @@ public class HlsRendererBuilder implements RendererBuilder, ManifestCallback<Hls
     renderers[ExoplayerWrapper.TYPE_AUDIO] = audioRenderer;
     renderers[ExoplayerWrapper.TYPE_TIMED_METADATA] = id3Renderer;
     renderers[ExoplayerWrapper.TYPE_TEXT] = closedCaptionRenderer;
+    startup.complete();
     callback.onRenderers(null, null, renderers);
   }
 
-}
\ No newline at end of file
+  /**
+   * Returns the indices of the variants of a master playlist which the device can decode, or null
+   * if all the variants should be used.
+   */
+  private int[] getDecodableVariantIndices(HlsPlaylist manifest) throws DecoderQueryException {
+    if (capabilities == null || manifest.type != HlsPlaylist.TYPE_MASTER) {
+      return null;
+    }
+    int maxDecodableFrameSize = startup.getMaxH264DecodableFrameSize();
+    List<Variant> variants = ((HlsMasterPlaylist) manifest).variants;
+    List<Integer> variantIndexList = new ArrayList<Integer>();
+    for (int i = 0; i < variants.size(); i++) {
+      Variant variant = variants.get(i);
+      // Variants without a declared resolution are kept.
+      if (variant.width <= 0 || variant.height <= 0
+          || variant.width * variant.height <= maxDecodableFrameSize) {
+        variantIndexList.add(i);
+      }
+    }
+    // If nothing is known to be decodable, let the chunk source try every variant.
+    return variantIndexList.isEmpty() || variantIndexList.size() == variants.size()
+        ? null : Util.toArray(variantIndexList);
+  }
+
+}
@@ -0,0 +1,360 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.FileDataSource;
+import com.google.android.exoplayer.upstream.TransferListener;
+import com.google.android.exoplayer.upstream.UriDataSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Performs the HTTP requests of the players: license and provisioning requests, manifest loads,
+ * and (through {@link #createDataSource}) the loads of media chunks.
+ *
+ * <p>Connections are never disconnected after a complete response. Instead, the response is read
+ * to the end and its stream closed, which returns the connection to the HTTP client's keep-alive
+ * pool, where the HTTP client can reuse it for the next request to the same host. Responses are
+ * read into a buffer of the exact size when the server sends a Content-Length, and otherwise
+ * through a small pool of reusable read buffers. Compression is left to the HTTP client: the
+ * platform's client requests gzip and decompresses responses transparently, so manifests are
+ * compressed without the transport handling it.
+ *
+ * <p>Connections are opened by a {@link ConnectionFactory}, which an application can replace to
+ * use its own HTTP client, by installing its own transport with {@link #setInstance}.
+ */
+public class HttpTransport {
+
+  public static final int DEFAULT_CONNECT_TIMEOUT_MS = 8000;
+  public static final int DEFAULT_READ_TIMEOUT_MS = 8000;
+
+  /**
+   * The size of the pooled buffers into which responses of unknown length are read.
+   */
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  /**
+   * The maximum number of buffers kept in the pool.
+   */
+  private static final int MAX_POOLED_BUFFERS = 4;
+
+  /**
+   * Opens connections with {@link URL#openConnection()}, which uses the platform's HTTP client
+   * and its connection pool.
+   */
+  public static final ConnectionFactory DEFAULT_CONNECTION_FACTORY = new ConnectionFactory() {
+    @Override
+    public HttpURLConnection openConnection(URL url) throws IOException {
+      return (HttpURLConnection) url.openConnection();
+    }
+  };
+
+  private static HttpTransport instance;
+
+  /**
+   * Opens the connections of a transport.
+   */
+  public interface ConnectionFactory {
+
+    /**
+     * Returns a new, unconnected, connection to the given URL.
+     * @param url An HTTP or HTTPS URL.
+     */
+    HttpURLConnection openConnection(URL url) throws IOException;
+
+  }
+
+  /**
+   * A complete response.
+   */
+  public static final class Response {
+
+    private final int responseCode;
+    private final String url;
+    private final Map<String, List<String>> headerFields;
+    private final byte[] body;
+
+    private Response(int responseCode, String url, Map<String, List<String>> headerFields,
+                     byte[] body) {
+      this.responseCode = responseCode;
+      this.url = url;
+      this.headerFields = headerFields;
+      this.body = body;
+    }
+
+    public int getResponseCode() {
+      return responseCode;
+    }
+
+    /**
+     * Returns whether the response code is in the 2xx range.
+     */
+    public boolean isSuccessful() {
+      return responseCode >= 200 && responseCode <= 299;
+    }
+
+    /**
+     * Returns the URL of the response, which differs from the requested URL after a redirect.
+     */
+    public String getUrl() {
+      return url;
+    }
+
+    /**
+     * Returns the value of the given header, or null if the response doesn't have it.
+     * @param name The name of the header, which is not case sensitive.
+     */
+    public String getHeaderField(String name) {
+      for (Map.Entry<String, List<String>> header : headerFields.entrySet()) {
+        if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+          return header.getValue().get(header.getValue().size() - 1);
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Returns the body of the response.
+     */
+    public byte[] getBody() {
+      return body;
+    }
+
+  }
+
+  private final ConnectionFactory connectionFactory;
+  private final int connectTimeoutMs;
+  private final int readTimeoutMs;
+  private final ArrayDeque<byte[]> bufferPool;
+
+  /**
+   * Returns the transport used by the players.
+   */
+  public static synchronized HttpTransport getInstance() {
+    if (instance == null) {
+      instance = new HttpTransport(DEFAULT_CONNECTION_FACTORY, DEFAULT_CONNECT_TIMEOUT_MS,
+          DEFAULT_READ_TIMEOUT_MS);
+    }
+    return instance;
+  }
+
+  /**
+   * Replace the transport used by the players. Players which are already prepared keep the
+   * transport they were built with.
+   * @param transport The new transport.
+   */
+  public static synchronized void setInstance(HttpTransport transport) {
+    instance = transport;
+  }
+
+  /**
+   * @param connectionFactory Opens the connections.
+   * @param connectTimeoutMs The connect timeout of each request.
+   * @param readTimeoutMs The read timeout of each request.
+   */
+  public HttpTransport(ConnectionFactory connectionFactory, int connectTimeoutMs,
+                       int readTimeoutMs) {
+    this.connectionFactory = connectionFactory;
+    this.connectTimeoutMs = connectTimeoutMs;
+    this.readTimeoutMs = readTimeoutMs;
+    bufferPool = new ArrayDeque<byte[]>();
+  }
+
+  /**
+   * Do an HTTP GET. This method blocks.
+   * @param url The URL.
+   * @param requestProperties The request headers, or null.
+   */
+  public Response get(String url, Map<String, String> requestProperties) throws IOException {
+    return execute("GET", url, null, requestProperties);
+  }
+
+  /**
+   * Do an HTTP POST. This method blocks.
+   * @param url The URL.
+   * @param data The body of the request, or null.
+   * @param requestProperties The request headers, or null.
+   */
+  public Response post(String url, byte[] data, Map<String, String> requestProperties)
+      throws IOException {
+    return execute("POST", url, data, requestProperties);
+  }
+
+  /**
+   * Do an HTTP request and read its complete response. This method blocks.
+   * @param method The HTTP method.
+   * @param url The URL.
+   * @param data The body of the request, or null.
+   * @param requestProperties The request headers, or null.
+   */
+  public Response execute(String method, String url, byte[] data,
+                          Map<String, String> requestProperties) throws IOException {
+    HttpURLConnection connection = openConnection(url, requestProperties);
+    try {
+      connection.setRequestMethod(method);
+      if (data != null) {
+        // Not streamed with a fixed length: the bodies are small, and a streamed body may be sent in
+        // a packet of its own after the headers, which Nagle's algorithm then delays.
+        connection.setDoOutput(true);
+        OutputStream outputStream = connection.getOutputStream();
+        outputStream.write(data);
+        outputStream.close();
+      }
+      int responseCode = connection.getResponseCode();
+      InputStream inputStream = responseCode >= 400
+          ? connection.getErrorStream() : connection.getInputStream();
+      boolean hasBody = !"HEAD".equals(method)
+          && responseCode != HttpURLConnection.HTTP_NO_CONTENT
+          && responseCode != HttpURLConnection.HTTP_NOT_MODIFIED;
+      byte[] body;
+      if (inputStream == null) {
+        body = new byte[0];
+      } else if (!hasBody) {
+        body = new byte[0];
+        inputStream.close();
+      } else {
+        try {
+          // The length is -1 when the client decompresses the response.
+          body = readBody(inputStream, connection.getContentLength());
+        } finally {
+          // Closing the fully read stream releases the connection to the pool.
+          inputStream.close();
+        }
+      }
+      return new Response(responseCode, connection.getURL().toString(),
+          connection.getHeaderFields(), body);
+    } catch (IOException e) {
+      // The connection may be in an unknown state, so it must not be reused.
+      connection.disconnect();
+      throw e;
+    }
+  }
+
+  /**
+   * Open a connection to the host of the URL ahead of the requests which will need it, so that
+   * they find it in the keep-alive pool and skip the TCP and TLS handshakes. Since HTTP clients
+   * can't open a connection without a request, a HEAD request is made for the URL.
+   * @param url The URL.
+   */
+  public void preconnect(String url) throws IOException {
+    execute("HEAD", url, null, null);
+  }
+
+  /**
+   * Returns a data source which loads HTTP URIs through this transport, and file URIs from the
+   * file system, in the same way as {@link UriDataSource}.
+   * @param userAgent The User-Agent sent with requests.
+   * @param transferListener A listener for transfers, or null.
+   */
+  public DataSource createDataSource(String userAgent, TransferListener transferListener) {
+    return new UriDataSource(new FileDataSource(transferListener),
+        new TransportHttpDataSource(this, userAgent, transferListener));
+  }
+
+  /**
+   * Open a connection with the transport's timeouts and the given request headers.
+   */
+  /* package */ HttpURLConnection openConnection(String url,
+                                                 Map<String, String> requestProperties)
+      throws IOException {
+    HttpURLConnection connection = connectionFactory.openConnection(new URL(url));
+    connection.setConnectTimeout(connectTimeoutMs);
+    connection.setReadTimeout(readTimeoutMs);
+    if (requestProperties != null) {
+      for (Map.Entry<String, String> requestProperty : requestProperties.entrySet()) {
+        connection.setRequestProperty(requestProperty.getKey(), requestProperty.getValue());
+      }
+    }
+    return connection;
+  }
+
+  /**
+   * Read a stream to its end.
+   * @param inputStream The stream.
+   * @param contentLength The length of the stream, or -1 if it is unknown.
+   */
+  private byte[] readBody(InputStream inputStream, int contentLength) throws IOException {
+    if (contentLength >= 0) {
+      byte[] body = new byte[contentLength];
+      int size = 0;
+      while (size < contentLength) {
+        int read = inputStream.read(body, size, contentLength - size);
+        if (read == -1) {
+          throw new IOException("Response ended after " + size + " of " + contentLength
+              + " bytes");
+        }
+        size += read;
+      }
+      return body;
+    }
+    // Read into pooled buffers, and copy them once into a body of the exact size.
+    List<byte[]> buffers = new ArrayList<byte[]>();
+    try {
+      byte[] buffer = acquireBuffer();
+      buffers.add(buffer);
+      int size = 0;
+      int position = 0;
+      int read;
+      while ((read = inputStream.read(buffer, position, buffer.length - position)) != -1) {
+        position += read;
+        size += read;
+        if (position == buffer.length) {
+          buffer = acquireBuffer();
+          buffers.add(buffer);
+          position = 0;
+        }
+      }
+      byte[] body = new byte[size];
+      int offset = 0;
+      for (byte[] filledBuffer : buffers) {
+        int length = Math.min(filledBuffer.length, size - offset);
+        System.arraycopy(filledBuffer, 0, body, offset, length);
+        offset += length;
+      }
+      return body;
+    } finally {
+      for (byte[] usedBuffer : buffers) {
+        releaseBuffer(usedBuffer);
+      }
+    }
+  }
+
+  private byte[] acquireBuffer() {
+    synchronized (bufferPool) {
+      byte[] buffer = bufferPool.poll();
+      return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+  }
+
+  private void releaseBuffer(byte[] buffer) {
+    synchronized (bufferPool) {
+      if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+        bufferPool.push(buffer);
+      }
+    }
+  }
+
+}
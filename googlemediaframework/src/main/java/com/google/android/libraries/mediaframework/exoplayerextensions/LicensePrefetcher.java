@@ -0,0 +1,452 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaCrypto;
+import android.media.MediaCryptoException;
+import android.media.MediaDrm;
+import android.media.NotProvisionedException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.exoplayer.dash.mpd.AdaptationSet;
+import com.google.android.exoplayer.dash.mpd.ContentProtection;
+import com.google.android.exoplayer.dash.mpd.MediaPresentationDescription;
+import com.google.android.exoplayer.dash.mpd.RangedUri;
+import com.google.android.exoplayer.dash.mpd.Representation;
+import com.google.android.exoplayer.drm.MediaDrmCallback;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Fetches and holds Widevine licenses for DASH videos which the app expects to play next (ex. the
+ * next entry of a playlist, or the focused tile of a grid).
+ *
+ * <p>Normally the license is requested once the player has loaded the manifest and the first
+ * chunk, so every protected video pays the license round trip before its first frame. A
+ * prefetch loads the manifest (through the shared {@link ManifestCache}, which also warms it for
+ * the player) and the initialization data of the content, opens a DRM session and loads the keys
+ * into it. A later {@link DashRendererBuilder} prepare for the same content takes the session
+ * with its keys instead of requesting them again.
+ *
+ * <p>DRM sessions are a scarce resource, so only a few licenses are held, and licenses which are
+ * not used within a few minutes are released, whether or not the prefetcher is used again.
+ */
+@TargetApi(18)
+public final class LicensePrefetcher {
+
+  private static final String TAG = "LicensePrefetcher";
+
+  /**
+   * The maximum number of licenses held at once. Holding one opens a DRM session.
+   */
+  private static final int MAX_HELD_LICENSES = 2;
+
+  /**
+   * How long a license is held before it is released. Streaming licenses are short-lived, and a
+   * video which is not played soon after being expected is unlikely to be played at all.
+   */
+  private static final long MAX_HOLD_TIME_MS = 5 * 60 * 1000;
+
+  /**
+   * The maximum size of an initialization segment read to find the PSSH data.
+   */
+  private static final int MAX_INIT_SEGMENT_SIZE = 1024 * 1024;
+
+  private static final int PSSH_BOX_TYPE = 0x70737368;
+  private static final int MOOV_BOX_TYPE = 0x6D6F6F76;
+
+  private static LicensePrefetcher instance;
+
+  private final Context context;
+  private final ExecutorService executor;
+
+  /**
+   * Times the expiry of the held licenses.
+   */
+  private final Handler expiryHandler;
+
+  /**
+   * The held licenses keyed by content id, from the oldest to the most recent.
+   */
+  private final LinkedHashMap<String, HeldLicense> heldLicenses;
+
+  /**
+   * Returns the process-wide prefetcher.
+   * @param context Any context of the application.
+   */
+  public static synchronized LicensePrefetcher getInstance(Context context) {
+    if (instance == null) {
+      instance = new LicensePrefetcher(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private LicensePrefetcher(Context context) {
+    this.context = context;
+    executor = Util.newSingleThreadExecutor(TAG);
+    expiryHandler = new Handler(Looper.getMainLooper());
+    heldLicenses = new LinkedHashMap<String, HeldLicense>();
+  }
+
+  /**
+   * Fetch the license of a video in the background, using the same DRM callback as
+   * {@link RendererBuilderFactory}. Videos which are not DASH, or not protected, are ignored.
+   * @param video The video which is expected to be played next.
+   */
+  public void prefetch(Video video) {
+    prefetch(video, new WidevineTestMediaDrmCallback(video.getContentId()));
+  }
+
+  /**
+   * Fetch the license of a video in the background.
+   * @param video The video which is expected to be played next.
+   * @param drmCallback Performs the key (and provisioning) requests.
+   */
+  public void prefetch(final Video video, final MediaDrmCallback drmCallback) {
+    if (video.getVideoType() != Video.VideoType.DASH || Util.SDK_INT < 18) {
+      return;
+    }
+    final String contentId = video.getContentId();
+    synchronized (this) {
+      releaseExpiredLicenses();
+      if (heldLicenses.containsKey(contentId)) {
+        return;
+      }
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (LicensePrefetcher.this) {
+          if (heldLicenses.containsKey(contentId)) {
+            return;
+          }
+        }
+        HeldLicense license;
+        try {
+          license = fetchLicense(video, drmCallback);
+        } catch (Exception e) {
+          // The player will request the license itself.
+          Log.w(TAG, "Failed to prefetch the license of " + contentId, e);
+          return;
+        }
+        if (license != null) {
+          putLicense(contentId, license);
+        }
+      }
+    });
+  }
+
+  /**
+   * Release the license held for a video, if any, because it is no longer expected to be played.
+   * @param contentId The id of the content of the video.
+   */
+  public synchronized void release(String contentId) {
+    HeldLicense license = heldLicenses.remove(contentId);
+    if (license != null) {
+      discardLicense(license);
+    }
+  }
+
+  /**
+   * Release all the held licenses.
+   */
+  public synchronized void clear() {
+    for (HeldLicense license : heldLicenses.values()) {
+      discardLicense(license);
+    }
+    heldLicenses.clear();
+  }
+
+  /**
+   * Returns the license held for the given content and stops holding it, or null if there is
+   * none. The caller becomes responsible for releasing the license.
+   * @param contentId The id of the content.
+   */
+  /* package */ synchronized HeldLicense take(String contentId) {
+    releaseExpiredLicenses();
+    HeldLicense license = heldLicenses.remove(contentId);
+    if (license != null) {
+      expiryHandler.removeCallbacks(license.expiryTask);
+    }
+    return license;
+  }
+
+  private synchronized void putLicense(final String contentId, final HeldLicense license) {
+    HeldLicense previousLicense = heldLicenses.put(contentId, license);
+    if (previousLicense != null && previousLicense != license) {
+      // Two prefetches of the same content raced, so keep the most recent license.
+      discardLicense(previousLicense);
+    }
+    Iterator<HeldLicense> iterator = heldLicenses.values().iterator();
+    while (heldLicenses.size() > MAX_HELD_LICENSES && iterator.hasNext()) {
+      discardLicense(iterator.next());
+      iterator.remove();
+    }
+    if (!license.released) {
+      license.expiryTask = new Runnable() {
+        @Override
+        public void run() {
+          // Closing a DRM session may block, so release it on the prefetcher's thread.
+          executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              expireLicense(contentId, license);
+            }
+          });
+        }
+      };
+      expiryHandler.postDelayed(license.expiryTask, MAX_HOLD_TIME_MS);
+    }
+  }
+
+  private synchronized void expireLicense(String contentId, HeldLicense license) {
+    if (heldLicenses.get(contentId) == license) {
+      heldLicenses.remove(contentId);
+      license.release();
+    }
+  }
+
+  /**
+   * Release a license which is no longer held, and cancel its expiry.
+   */
+  private void discardLicense(HeldLicense license) {
+    if (license.expiryTask != null) {
+      expiryHandler.removeCallbacks(license.expiryTask);
+    }
+    license.release();
+  }
+
+  private void releaseExpiredLicenses() {
+    long nowMs = SystemClock.elapsedRealtime();
+    Iterator<HeldLicense> iterator = heldLicenses.values().iterator();
+    while (iterator.hasNext()) {
+      HeldLicense license = iterator.next();
+      if (nowMs - license.acquiredAtMs > MAX_HOLD_TIME_MS) {
+        discardLicense(license);
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Load the manifest and the PSSH data of a video, and load its keys into a new DRM session.
+   * Returns null if the video is not protected by Widevine.
+   */
+  private HeldLicense fetchLicense(Video video, MediaDrmCallback drmCallback) throws Exception {
+    String userAgent = ExoplayerUtil.getUserAgent(context);
+    MediaPresentationDescription manifest = ManifestCache.getDashInstance(context)
+        .load(video.getContentId(), video.getUrl(), userAgent);
+    Representation representation = getProtectedRepresentation(manifest);
+    if (representation == null) {
+      return null;
+    }
+    byte[] psshData = getPsshData(manifest, representation, userAgent);
+    if (psshData == null) {
+      return null;
+    }
+
+    MediaDrm mediaDrm = new MediaDrm(ExoplayerUtil.WIDEVINE_UUID);
+    byte[] sessionId = null;
+    try {
+      try {
+        sessionId = mediaDrm.openSession();
+      } catch (NotProvisionedException e) {
+        byte[] response = drmCallback.executeProvisionRequest(ExoplayerUtil.WIDEVINE_UUID,
+            mediaDrm.getProvisionRequest());
+        mediaDrm.provideProvisionResponse(response);
+        sessionId = mediaDrm.openSession();
+      }
+      MediaDrm.KeyRequest keyRequest = mediaDrm.getKeyRequest(sessionId, psshData,
+          representation.format.mimeType, MediaDrm.KEY_TYPE_STREAMING, null);
+      byte[] response = drmCallback.executeKeyRequest(ExoplayerUtil.WIDEVINE_UUID, keyRequest);
+      mediaDrm.provideKeyResponse(sessionId, response);
+      return new HeldLicense(mediaDrm, sessionId);
+    } catch (Exception e) {
+      if (sessionId != null) {
+        mediaDrm.closeSession(sessionId);
+      }
+      mediaDrm.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the first representation of the first protected video or audio adaptation set, or
+   * null if the content is not protected.
+   */
+  private static Representation getProtectedRepresentation(
+      MediaPresentationDescription manifest) {
+    List<AdaptationSet> adaptationSets = manifest.periods.get(0).adaptationSets;
+    for (int type : new int[] {AdaptationSet.TYPE_VIDEO, AdaptationSet.TYPE_AUDIO}) {
+      for (AdaptationSet adaptationSet : adaptationSets) {
+        if (adaptationSet.type == type && adaptationSet.hasContentProtection()
+            && !adaptationSet.representations.isEmpty()) {
+          return adaptationSet.representations.get(0);
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the Widevine PSSH data of the content, from the manifest if it carries it, and
+   * otherwise from the initialization segment of the given representation.
+   */
+  private static byte[] getPsshData(MediaPresentationDescription manifest,
+                                    Representation representation, String userAgent)
+      throws IOException {
+    for (AdaptationSet adaptationSet : manifest.periods.get(0).adaptationSets) {
+      for (ContentProtection contentProtection : adaptationSet.contentProtections) {
+        if (ExoplayerUtil.WIDEVINE_UUID.equals(contentProtection.uuid)
+            && contentProtection.data != null) {
+          byte[] boxData = findPsshData(contentProtection.data, 0,
+              contentProtection.data.length);
+          return boxData != null ? boxData : contentProtection.data;
+        }
+      }
+    }
+    RangedUri initializationUri = representation.getInitializationUri();
+    if (initializationUri == null) {
+      return null;
+    }
+    byte[] initSegment = readRange(initializationUri, userAgent);
+    return findPsshData(initSegment, 0, initSegment.length);
+  }
+
+  private static byte[] readRange(RangedUri rangedUri, String userAgent) throws IOException {
+    Map<String, String> requestProperties = new HashMap<String, String>();
+    requestProperties.put("User-Agent", userAgent);
+    long length = rangedUri.length > 0
+        ? Math.min(rangedUri.length, MAX_INIT_SEGMENT_SIZE) : MAX_INIT_SEGMENT_SIZE;
+    requestProperties.put("Range",
+        "bytes=" + rangedUri.start + "-" + (rangedUri.start + length - 1));
+    HttpTransport.Response response =
+        HttpTransport.getInstance().get(rangedUri.getUri().toString(), requestProperties);
+    if (!response.isSuccessful()) {
+      throw new IOException("Unexpected response code " + response.getResponseCode());
+    }
+    return response.getBody();
+  }
+
+  /**
+   * Returns the data of the Widevine 'pssh' box within the given range of an MP4 file, looking
+   * inside the 'moov' box, or null if there is none.
+   */
+  private static byte[] findPsshData(byte[] data, int start, int end) {
+    int position = start;
+    while (position + 8 <= end) {
+      int size = readInt(data, position);
+      int type = readInt(data, position + 4);
+      if (size < 8 || position + size > end) {
+        return null;
+      }
+      if (type == MOOV_BOX_TYPE) {
+        byte[] psshData = findPsshData(data, position + 8, position + size);
+        if (psshData != null) {
+          return psshData;
+        }
+      } else if (type == PSSH_BOX_TYPE && size >= 32) {
+        int version = data[position + 8] & 0xFF;
+        UUID systemId = new UUID(readLong(data, position + 12), readLong(data, position + 20));
+        int dataSizePosition = position + 28;
+        if (version > 0) {
+          int keyIdCount = readInt(data, dataSizePosition);
+          dataSizePosition += 4 + 16 * keyIdCount;
+        }
+        if (ExoplayerUtil.WIDEVINE_UUID.equals(systemId) && dataSizePosition + 4 <= end) {
+          int dataSize = readInt(data, dataSizePosition);
+          if (dataSize >= 0 && dataSizePosition + 4 + dataSize <= position + size) {
+            byte[] psshData = new byte[dataSize];
+            System.arraycopy(data, dataSizePosition + 4, psshData, 0, dataSize);
+            return psshData;
+          }
+        }
+      }
+      position += size;
+    }
+    return null;
+  }
+
+  private static int readInt(byte[] data, int position) {
+    return ((data[position] & 0xFF) << 24) | ((data[position + 1] & 0xFF) << 16)
+        | ((data[position + 2] & 0xFF) << 8) | (data[position + 3] & 0xFF);
+  }
+
+  private static long readLong(byte[] data, int position) {
+    return ((long) readInt(data, position) << 32) | (readInt(data, position + 4) & 0xFFFFFFFFL);
+  }
+
+  /**
+   * A DRM session with the keys of a video loaded into it.
+   */
+  /* package */ static final class HeldLicense {
+
+    private final MediaDrm mediaDrm;
+    private final byte[] sessionId;
+    private final long acquiredAtMs;
+    private MediaCrypto mediaCrypto;
+    private boolean released;
+
+    /**
+     * Releases the license once it has been held for too long. Guarded by the prefetcher.
+     */
+    private Runnable expiryTask;
+
+    private HeldLicense(MediaDrm mediaDrm, byte[] sessionId) {
+      this.mediaDrm = mediaDrm;
+      this.sessionId = sessionId;
+      acquiredAtMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns the crypto object through which the decoders use the session's keys.
+     */
+    public synchronized MediaCrypto getMediaCrypto() throws MediaCryptoException {
+      if (mediaCrypto == null) {
+        mediaCrypto = new MediaCrypto(ExoplayerUtil.WIDEVINE_UUID, sessionId);
+      }
+      return mediaCrypto;
+    }
+
+    public synchronized void release() {
+      if (released) {
+        return;
+      }
+      released = true;
+      if (mediaCrypto != null) {
+        mediaCrypto.release();
+      }
+      mediaDrm.closeSession(sessionId);
+      mediaDrm.release();
+    }
+
+  }
+
+}
@@ -0,0 +1,421 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.util.Log;
+
+import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper.DispatchPolicy;
+import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper.InfoListener;
+import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper.PlaybackListener;
+import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper.TextListener;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Delivers the callbacks of one listener registration off the main thread, according to a
+ * {@link DispatchPolicy}.
+ *
+ * <p>Each registration has its own queue, so a slow listener only delays itself. The queues are
+ * drained by the extension's shared pool of threads, one thread per queue at a time, so that the
+ * callbacks of a listener are delivered in order and never concurrently.
+ *
+ * <p>With {@link DispatchPolicy#CONFLATED}, callbacks which carry a state (the playback state, the
+ * video size and the current formats) are given a conflation key. While a callback with that key
+ * is waiting in the queue, a newer one replaces it and moves to the tail of the queue, so the
+ * queue holds at most one callback per key, and callbacks are still delivered in the order of
+ * their latest values (ex. a state change which follows an error is delivered after it). Dropped
+ * frames and bandwidth samples are conflated in the same way, their counts being summed. Load
+ * events are dropped while {@link #MAX_QUEUED_CALLBACKS} callbacks are waiting, so the queue stays
+ * bounded. Errors and text have no key, and are always delivered.
+ */
+/* package */ final class ListenerDispatcher {
+
+  private static final String TAG = "ListenerDispatcher";
+
+  /**
+   * The key of callbacks which are never conflated.
+   */
+  private static final int NO_CONFLATION = -1;
+
+  /**
+   * The number of conflation keys a listener may use.
+   */
+  private static final int MAX_CONFLATION_KEYS = 4;
+
+  /**
+   * The number of waiting callbacks from which droppable callbacks are dropped, when conflating.
+   */
+  private static final int MAX_QUEUED_CALLBACKS = 64;
+
+  private static final ExecutorService executor = ExoplayerUtil.getBackgroundExecutor();
+
+  private final boolean conflate;
+  private final ArrayDeque<Runnable> queue;
+
+  /**
+   * The latest callback for each conflation key, or null if none is waiting.
+   */
+  private final Runnable[] latestByKey;
+
+  /**
+   * The placeholders queued for each conflation key, which run the latest callback for the key.
+   */
+  private final Runnable[] conflationSlots;
+
+  private final Runnable drainTask;
+  private boolean draining;
+
+  /**
+   * Whether callbacks have been dropped since the queue was last empty.
+   */
+  private boolean dropping;
+
+  private ListenerDispatcher(boolean conflate) {
+    this.conflate = conflate;
+    queue = new ArrayDeque<Runnable>();
+    latestByKey = new Runnable[MAX_CONFLATION_KEYS];
+    conflationSlots = new Runnable[MAX_CONFLATION_KEYS];
+    for (int i = 0; i < MAX_CONFLATION_KEYS; i++) {
+      final int key = i;
+      conflationSlots[i] = new Runnable() {
+        @Override
+        public void run() {
+          Runnable callback;
+          synchronized (ListenerDispatcher.this) {
+            callback = latestByKey[key];
+            latestByKey[key] = null;
+          }
+          if (callback != null) {
+            callback.run();
+          }
+        }
+      };
+    }
+    drainTask = new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    };
+  }
+
+  /**
+   * Returns a listener which delivers the callbacks of the given listener according to the
+   * policy, or the listener itself for {@link DispatchPolicy#INLINE}.
+   */
+  public static PlaybackListener wrap(PlaybackListener listener, DispatchPolicy policy) {
+    return policy == DispatchPolicy.INLINE || listener == null ? listener
+        : new DispatchingPlaybackListener(listener, new ListenerDispatcher(
+            policy == DispatchPolicy.CONFLATED));
+  }
+
+  /**
+   * Returns a listener which delivers the callbacks of the given listener according to the
+   * policy, or the listener itself for {@link DispatchPolicy#INLINE}.
+   */
+  public static InfoListener wrap(InfoListener listener, DispatchPolicy policy) {
+    return policy == DispatchPolicy.INLINE || listener == null ? listener
+        : new DispatchingInfoListener(listener, new ListenerDispatcher(
+            policy == DispatchPolicy.CONFLATED));
+  }
+
+  /**
+   * Returns a listener which delivers the callbacks of the given listener according to the
+   * policy, or the listener itself for {@link DispatchPolicy#INLINE}.
+   */
+  public static TextListener wrap(TextListener listener, DispatchPolicy policy) {
+    return policy == DispatchPolicy.INLINE || listener == null ? listener
+        : new DispatchingTextListener(listener, new ListenerDispatcher(
+            policy == DispatchPolicy.CONFLATED));
+  }
+
+  /**
+   * Returns whether the given registered listener is, or wraps, the given listener.
+   */
+  public static boolean isFor(PlaybackListener registered, PlaybackListener listener) {
+    return registered == listener || (registered instanceof DispatchingPlaybackListener
+        && ((DispatchingPlaybackListener) registered).listener == listener);
+  }
+
+  /**
+   * Queue a callback.
+   * @param callback The callback.
+   * @param conflationKey The key under which the callback replaces an older one which has not
+   *                      run yet, when conflating, or {@link #NO_CONFLATION}.
+   */
+  private synchronized void dispatch(Runnable callback, int conflationKey) {
+    if (conflate && conflationKey != NO_CONFLATION) {
+      Runnable slot = conflationSlots[conflationKey];
+      if (latestByKey[conflationKey] != null) {
+        // Deliver the new value after the callbacks queued since the old one. Only errors and text
+        // are queued past MAX_QUEUED_CALLBACKS, so this scan stays short.
+        queue.removeFirstOccurrence(slot);
+      }
+      queue.add(slot);
+      latestByKey[conflationKey] = callback;
+    } else {
+      queue.add(callback);
+    }
+    if (!draining) {
+      draining = true;
+      executor.execute(drainTask);
+    }
+  }
+
+  /**
+   * Queue a callback which, when conflating, is dropped if the listener has fallen so far behind
+   * that {@link #MAX_QUEUED_CALLBACKS} callbacks are waiting.
+   * @param callback The callback.
+   */
+  private synchronized void dispatchDroppable(Runnable callback) {
+    if (conflate && queue.size() >= MAX_QUEUED_CALLBACKS) {
+      if (!dropping) {
+        dropping = true;
+        Log.w(TAG, "Listener fell behind, dropping its load events");
+      }
+      return;
+    }
+    dispatch(callback, NO_CONFLATION);
+  }
+
+  private void drain() {
+    while (true) {
+      Runnable callback;
+      synchronized (this) {
+        callback = queue.poll();
+        if (callback == null) {
+          draining = false;
+          dropping = false;
+          return;
+        }
+      }
+      try {
+        callback.run();
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Listener failed", e);
+      }
+    }
+  }
+
+  private static final class DispatchingPlaybackListener implements PlaybackListener {
+
+    private static final int KEY_STATE = 0;
+    private static final int KEY_VIDEO_SIZE = 1;
+
+    private final PlaybackListener listener;
+    private final ListenerDispatcher dispatcher;
+
+    public DispatchingPlaybackListener(PlaybackListener listener,
+                                       ListenerDispatcher dispatcher) {
+      this.listener = listener;
+      this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public void onStateChanged(final boolean playWhenReady, final int playbackState) {
+      dispatcher.dispatch(new Runnable() {
+        @Override
+        public void run() {
+          listener.onStateChanged(playWhenReady, playbackState);
+        }
+      }, KEY_STATE);
+    }
+
+    @Override
+    public void onError(final Exception e) {
+      dispatcher.dispatch(new Runnable() {
+        @Override
+        public void run() {
+          listener.onError(e);
+        }
+      }, NO_CONFLATION);
+    }
+
+    @Override
+    public void onVideoSizeChanged(final int width, final int height,
+                                   final float pixelWidthHeightRatio) {
+      dispatcher.dispatch(new Runnable() {
+        @Override
+        public void run() {
+          listener.onVideoSizeChanged(width, height, pixelWidthHeightRatio);
+        }
+      }, KEY_VIDEO_SIZE);
+    }
+
+  }
+
+  private static final class DispatchingInfoListener implements InfoListener {
+
+    private static final int KEY_VIDEO_FORMAT = 0;
+    private static final int KEY_AUDIO_FORMAT = 1;
+    private static final int KEY_DROPPED_FRAMES = 2;
+    private static final int KEY_BANDWIDTH = 3;
+
+    private final InfoListener listener;
+    private final ListenerDispatcher dispatcher;
+
+    // The sums of the conflated callbacks which haven't been delivered yet. Guarded by this.
+    private int pendingDroppedFrameCount;
+    private long pendingDroppedFramesElapsedMs;
+    private int pendingBandwidthElapsedMs;
+    private long pendingBandwidthBytes;
+    private long latestBandwidthEstimate;
+
+    public DispatchingInfoListener(InfoListener listener, ListenerDispatcher dispatcher) {
+      this.listener = listener;
+      this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public void onVideoFormatEnabled(final String formatId, final int trigger,
+                                     final int mediaTimeMs) {
+      dispatcher.dispatch(new Runnable() {
+        @Override
+        public void run() {
+          listener.onVideoFormatEnabled(formatId, trigger, mediaTimeMs);
+        }
+      }, KEY_VIDEO_FORMAT);
+    }
+
+    @Override
+    public void onAudioFormatEnabled(final String formatId, final int trigger,
+                                     final int mediaTimeMs) {
+      dispatcher.dispatch(new Runnable() {
+        @Override
+        public void run() {
+          listener.onAudioFormatEnabled(formatId, trigger, mediaTimeMs);
+        }
+      }, KEY_AUDIO_FORMAT);
+    }
+
+    @Override
+    public void onDroppedFrames(final int count, final long elapsed) {
+      if (!dispatcher.conflate) {
+        dispatcher.dispatch(new Runnable() {
+          @Override
+          public void run() {
+            listener.onDroppedFrames(count, elapsed);
+          }
+        }, NO_CONFLATION);
+        return;
+      }
+      synchronized (this) {
+        pendingDroppedFrameCount += count;
+        pendingDroppedFramesElapsedMs += elapsed;
+      }
+      dispatcher.dispatch(new Runnable() {
+        @Override
+        public void run() {
+          int pendingCount;
+          long pendingElapsedMs;
+          synchronized (DispatchingInfoListener.this) {
+            pendingCount = pendingDroppedFrameCount;
+            pendingElapsedMs = pendingDroppedFramesElapsedMs;
+            pendingDroppedFrameCount = 0;
+            pendingDroppedFramesElapsedMs = 0;
+          }
+          if (pendingCount > 0) {
+            listener.onDroppedFrames(pendingCount, pendingElapsedMs);
+          }
+        }
+      }, KEY_DROPPED_FRAMES);
+    }
+
+    @Override
+    public void onBandwidthSample(final int elapsedMs, final long bytes,
+                                  final long bandwidthEstimate) {
+      if (!dispatcher.conflate) {
+        dispatcher.dispatch(new Runnable() {
+          @Override
+          public void run() {
+            listener.onBandwidthSample(elapsedMs, bytes, bandwidthEstimate);
+          }
+        }, NO_CONFLATION);
+        return;
+      }
+      synchronized (this) {
+        pendingBandwidthElapsedMs += elapsedMs;
+        pendingBandwidthBytes += bytes;
+        latestBandwidthEstimate = bandwidthEstimate;
+      }
+      dispatcher.dispatch(new Runnable() {
+        @Override
+        public void run() {
+          int pendingElapsedMs;
+          long pendingBytes;
+          long estimate;
+          synchronized (DispatchingInfoListener.this) {
+            pendingElapsedMs = pendingBandwidthElapsedMs;
+            pendingBytes = pendingBandwidthBytes;
+            estimate = latestBandwidthEstimate;
+            pendingBandwidthElapsedMs = 0;
+            pendingBandwidthBytes = 0;
+          }
+          listener.onBandwidthSample(pendingElapsedMs, pendingBytes, estimate);
+        }
+      }, KEY_BANDWIDTH);
+    }
+
+    @Override
+    public void onLoadStarted(final int sourceId, final String formatId, final int trigger,
+                              final boolean isInitialization, final int mediaStartTimeMs,
+                              final int mediaEndTimeMs, final long totalBytes) {
+      dispatcher.dispatchDroppable(new Runnable() {
+        @Override
+        public void run() {
+          listener.onLoadStarted(sourceId, formatId, trigger, isInitialization, mediaStartTimeMs,
+              mediaEndTimeMs, totalBytes);
+        }
+      });
+    }
+
+    @Override
+    public void onLoadCompleted(final int sourceId, final long bytesLoaded) {
+      dispatcher.dispatchDroppable(new Runnable() {
+        @Override
+        public void run() {
+          listener.onLoadCompleted(sourceId, bytesLoaded);
+        }
+      });
+    }
+
+  }
+
+  private static final class DispatchingTextListener implements TextListener {
+
+    private final TextListener listener;
+    private final ListenerDispatcher dispatcher;
+
+    public DispatchingTextListener(TextListener listener, ListenerDispatcher dispatcher) {
+      this.listener = listener;
+      this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public void onText(final String text) {
+      dispatcher.dispatch(new Runnable() {
+        @Override
+        public void run() {
+          listener.onText(text);
+        }
+      }, NO_CONFLATION);
+    }
+
+  }
+
+}
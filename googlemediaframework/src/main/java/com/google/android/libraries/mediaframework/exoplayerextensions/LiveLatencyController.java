@@ -0,0 +1,130 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.google.android.exoplayer.ExoPlayer;
+
+/**
+ * Keeps a live DASH stream close to its target latency.
+ *
+ * <p>Once a second, the distance between the playback position and the live edge is measured and
+ * reported to the player's {@link ExoplayerWrapper.LiveLatencyListener}. If the player has
+ * drifted too far behind (ex. after rebuffering), it seeks to the target latency. The seek
+ * discards the buffered media, and the DASH chunk source restarts loading at the live edge minus
+ * the target latency.
+ *
+ * <p>All methods must be called on the player's main thread.
+ */
+/* package */ final class LiveLatencyController implements Runnable {
+
+  private static final long UPDATE_INTERVAL_MS = 1000;
+
+  /**
+   * The minimum time between two catch-ups, so that a stream which cannot keep up does not seek
+   * in a loop.
+   */
+  private static final long MIN_CATCH_UP_INTERVAL_MS = 10000;
+
+  /**
+   * The minimum drift beyond the target latency which triggers a catch-up.
+   */
+  private static final long MIN_MAX_DRIFT_MS = 2000;
+
+  private final ExoplayerWrapper player;
+  private final Handler handler;
+  private final long availabilityStartTimeMs;
+  private final long timeShiftBufferDepthMs;
+  private final long targetLatencyMs;
+  private final long maxDriftMs;
+
+  private long lastCatchUpTimeMs;
+  private boolean started;
+
+  /**
+   * @param player The player of the live stream.
+   * @param availabilityStartTimeMs The wall clock time at which the media time of the stream is
+   *                                zero, from the manifest.
+   * @param timeShiftBufferDepthMs The duration of the seekable window behind the live edge, from
+   *                               the manifest, or -1 if the manifest does not limit it.
+   * @param targetLatencyMs The distance to keep between the playback position and the live edge.
+   */
+  public LiveLatencyController(ExoplayerWrapper player, long availabilityStartTimeMs,
+                               long timeShiftBufferDepthMs, long targetLatencyMs) {
+    this.player = player;
+    this.handler = player.getMainHandler();
+    this.availabilityStartTimeMs = availabilityStartTimeMs;
+    this.timeShiftBufferDepthMs = timeShiftBufferDepthMs;
+    this.targetLatencyMs = targetLatencyMs;
+    maxDriftMs = Math.max(MIN_MAX_DRIFT_MS, targetLatencyMs / 2);
+    lastCatchUpTimeMs = -MIN_CATCH_UP_INTERVAL_MS;
+  }
+
+  public void start() {
+    if (!started) {
+      started = true;
+      handler.postDelayed(this, UPDATE_INTERVAL_MS);
+    }
+  }
+
+  public void stop() {
+    started = false;
+    handler.removeCallbacks(this);
+  }
+
+  public long getTargetLatencyMs() {
+    return targetLatencyMs;
+  }
+
+  @Override
+  public void run() {
+    if (!started) {
+      return;
+    }
+    if (player.getPlaybackState() == ExoPlayer.STATE_READY && player.getPlayWhenReady()) {
+      long liveEdgeMs = System.currentTimeMillis() - availabilityStartTimeMs;
+      long latencyMs = liveEdgeMs - player.getCurrentPosition();
+      player.onLiveLatency(latencyMs, targetLatencyMs);
+      long nowMs = SystemClock.elapsedRealtime();
+      if (latencyMs > targetLatencyMs + maxDriftMs
+          && nowMs - lastCatchUpTimeMs >= MIN_CATCH_UP_INTERVAL_MS) {
+        lastCatchUpTimeMs = nowMs;
+        catchUp(liveEdgeMs, latencyMs);
+      }
+    }
+    handler.postDelayed(this, UPDATE_INTERVAL_MS);
+  }
+
+  /**
+   * Seek to the target latency, within the seekable window.
+   */
+  private void catchUp(long liveEdgeMs, long latencyMs) {
+    long windowStartMs = timeShiftBufferDepthMs < 0 ? 0
+        : Math.max(0, liveEdgeMs - timeShiftBufferDepthMs);
+    long positionMs = Math.max(windowStartMs, liveEdgeMs - targetLatencyMs);
+    if (positionMs > Integer.MAX_VALUE) {
+      // The media time of streams which started long ago (ex. epoch based) cannot be represented
+      // as the int that the player seeks to.
+      return;
+    }
+    player.onLiveCatchUp(latencyMs, targetLatencyMs);
+    player.seekTo((int) positionMs);
+  }
+
+}
@@ -0,0 +1,420 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.exoplayer.dash.mpd.MediaPresentationDescription;
+import com.google.android.exoplayer.dash.mpd.MediaPresentationDescriptionParser;
+import com.google.android.exoplayer.hls.HlsMediaPlaylist;
+import com.google.android.exoplayer.hls.HlsPlaylist;
+import com.google.android.exoplayer.hls.HlsPlaylistParser;
+import com.google.android.exoplayer.util.ManifestFetcher.ManifestCallback;
+import com.google.android.exoplayer.util.ManifestParser;
+import com.google.android.exoplayer.util.Predicate;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A cache of manifests which is shared between players.
+ *
+ * <p>Parsed manifests are kept in memory in a bounded LRU map, and the raw bytes are kept on disk
+ * so that they survive process restarts. A manifest younger than the time-to-live is returned
+ * without touching the network. An older one is revalidated with a conditional request using
+ * its ETag and Last-Modified headers, so that an unchanged manifest costs a round trip but no
+ * download or parse.
+ *
+ * <p>Only manifests accepted by the cacheability predicate are stored. Live manifests change on
+ * every refresh and must not be cached.
+ *
+ * @param <T> The type of the parsed manifest.
+ */
+public class ManifestCache<T> {
+
+  private static final String TAG = "ManifestCache";
+
+  private static final long DEFAULT_TTL_MS = 5 * 60 * 1000;
+  private static final int DEFAULT_MAX_MEMORY_ENTRIES = 8;
+  private static final int DEFAULT_MAX_DISK_ENTRIES = 32;
+
+  private static final String CACHE_FILE_SUFFIX = ".manifest";
+
+  private static ManifestCache<MediaPresentationDescription> dashInstance;
+  private static ManifestCache<HlsPlaylist> hlsInstance;
+
+  /**
+   * A cached manifest and the headers needed to revalidate it.
+   */
+  private static final class Entry<T> {
+
+    /**
+     * The parsed manifest, or null if it has not been parsed from disk yet.
+     */
+    public final T manifest;
+    public final String baseUrl;
+    public final String eTag;
+    public final String lastModified;
+    public final long fetchTimeMs;
+
+    public Entry(T manifest, String baseUrl, String eTag, String lastModified, long fetchTimeMs) {
+      this.manifest = manifest;
+      this.baseUrl = baseUrl;
+      this.eTag = eTag;
+      this.lastModified = lastModified;
+      this.fetchTimeMs = fetchTimeMs;
+    }
+
+  }
+
+  private final ManifestParser<T> parser;
+  private final Predicate<T> cacheablePredicate;
+  private final File cacheDir;
+  private final int maxDiskEntries;
+  private final long ttlMs;
+  private final LinkedHashMap<String, Entry<T>> memoryCache;
+
+  /**
+   * The threads on which manifests are loaded, shared with the rest of the extension. Each load
+   * runs on a thread of its own, so that a stalled request doesn't hold up the startup of other
+   * players.
+   */
+  private final ExecutorService executor;
+
+  /**
+   * Returns the process-wide cache of DASH manifests. Dynamic (live) manifests are not cached.
+   * @param context Any context of the application.
+   */
+  public static synchronized ManifestCache<MediaPresentationDescription> getDashInstance(
+      Context context) {
+    if (dashInstance == null) {
+      dashInstance = new ManifestCache<MediaPresentationDescription>(
+          new MediaPresentationDescriptionParser(),
+          new Predicate<MediaPresentationDescription>() {
+            @Override
+            public boolean evaluate(MediaPresentationDescription manifest) {
+              return !manifest.dynamic;
+            }
+          },
+          new File(context.getApplicationContext().getCacheDir(), "gmf_dash_manifests"),
+          DEFAULT_MAX_MEMORY_ENTRIES, DEFAULT_MAX_DISK_ENTRIES, DEFAULT_TTL_MS);
+    }
+    return dashInstance;
+  }
+
+  /**
+   * Returns the process-wide cache of HLS playlists. Live media playlists are not cached.
+   * @param context Any context of the application.
+   */
+  public static synchronized ManifestCache<HlsPlaylist> getHlsInstance(Context context) {
+    if (hlsInstance == null) {
+      hlsInstance = new ManifestCache<HlsPlaylist>(
+          new HlsPlaylistParser(),
+          new Predicate<HlsPlaylist>() {
+            @Override
+            public boolean evaluate(HlsPlaylist playlist) {
+              return playlist.type == HlsPlaylist.TYPE_MASTER
+                  || !((HlsMediaPlaylist) playlist).live;
+            }
+          },
+          new File(context.getApplicationContext().getCacheDir(), "gmf_hls_playlists"),
+          DEFAULT_MAX_MEMORY_ENTRIES, DEFAULT_MAX_DISK_ENTRIES, DEFAULT_TTL_MS);
+    }
+    return hlsInstance;
+  }
+
+  /**
+   * @param parser Parses the raw manifest bytes.
+   * @param cacheablePredicate Decides whether a parsed manifest may be cached.
+   * @param cacheDir The directory in which the raw manifests are stored, or null to only cache
+   *                 parsed manifests in memory.
+   * @param maxMemoryEntries The maximum number of parsed manifests kept in memory.
+   * @param maxDiskEntries The maximum number of raw manifests kept on disk.
+   * @param ttlMs How long a manifest is used without being revalidated.
+   */
+  public ManifestCache(ManifestParser<T> parser, Predicate<T> cacheablePredicate, File cacheDir,
+                       final int maxMemoryEntries, int maxDiskEntries, long ttlMs) {
+    this.parser = parser;
+    this.cacheablePredicate = cacheablePredicate;
+    this.cacheDir = cacheDir;
+    this.maxDiskEntries = maxDiskEntries;
+    this.ttlMs = ttlMs;
+    memoryCache = new LinkedHashMap<String, Entry<T>>(maxMemoryEntries, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry<T>> eldest) {
+        return size() > maxMemoryEntries;
+      }
+    };
+    executor = ExoplayerUtil.getBackgroundExecutor();
+  }
+
+  /**
+   * Load a manifest on a background thread and deliver it to the callback on the given looper,
+   * in the same way as {@link com.google.android.exoplayer.util.ManifestFetcher#singleLoad}.
+   * @param callbackLooper The looper on which the callback is invoked.
+   * @param contentId The content id passed to the parser and callback.
+   * @param url The URL of the manifest.
+   * @param userAgent The User-Agent sent with network requests.
+   * @param callback Receives the manifest or the error.
+   */
+  public void singleLoad(Looper callbackLooper, final String contentId, final String url,
+                         final String userAgent, final ManifestCallback<T> callback) {
+    final Handler callbackHandler = new Handler(callbackLooper);
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final T manifest = load(contentId, url, userAgent);
+          callbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+              callback.onManifest(contentId, manifest);
+            }
+          });
+        } catch (final IOException e) {
+          callbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+              callback.onManifestError(contentId, e);
+            }
+          });
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns the manifest at the given URL, from the cache if possible. This method blocks, so it
+   * must not be called on the main thread.
+   * @param contentId The content id passed to the parser.
+   * @param url The URL of the manifest.
+   * @param userAgent The User-Agent sent with network requests.
+   */
+  public T load(String contentId, String url, String userAgent) throws IOException {
+    Entry<T> entry = getEntry(contentId, url);
+    long nowMs = SystemClock.elapsedRealtime();
+    if (entry != null && nowMs - entry.fetchTimeMs < ttlMs) {
+      touchCacheFile(url);
+      return entry.manifest;
+    }
+
+    Map<String, String> requestProperties = new HashMap<String, String>();
+    requestProperties.put("User-Agent", userAgent);
+    if (entry != null) {
+      if (entry.eTag != null) {
+        requestProperties.put("If-None-Match", entry.eTag);
+      }
+      if (entry.lastModified != null) {
+        requestProperties.put("If-Modified-Since", entry.lastModified);
+      }
+    }
+    try {
+      HttpTransport.Response response =
+          HttpTransport.getInstance().get(url, requestProperties);
+      int responseCode = response.getResponseCode();
+      if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+        putEntry(url, new Entry<T>(entry.manifest, entry.baseUrl, entry.eTag, entry.lastModified,
+            nowMs), null);
+        touchCacheFile(url);
+        return entry.manifest;
+      }
+      if (!response.isSuccessful()) {
+        throw new IOException("Unexpected response code " + responseCode + " for " + url);
+      }
+      byte[] data = response.getBody();
+      String baseUrl = response.getUrl();
+      T manifest = parser.parse(new ByteArrayInputStream(data), null, contentId,
+          Util.parseBaseUri(baseUrl));
+      if (cacheablePredicate.evaluate(manifest)) {
+        putEntry(url, new Entry<T>(manifest, baseUrl, response.getHeaderField("ETag"),
+            response.getHeaderField("Last-Modified"), nowMs), data);
+      }
+      return manifest;
+    } catch (IOException e) {
+      if (entry != null) {
+        // A stale manifest for static content is better than no manifest at all.
+        Log.w(TAG, "Failed to revalidate " + url + ", using the cached manifest", e);
+        return entry.manifest;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Remove all the cached manifests, from memory and from disk.
+   */
+  public synchronized void clear() {
+    memoryCache.clear();
+    File[] files = cacheDir != null ? cacheDir.listFiles() : null;
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Returns the entry for a URL from memory or disk, or null if there is none.
+   */
+  private synchronized Entry<T> getEntry(String contentId, String url) {
+    Entry<T> entry = memoryCache.get(url);
+    if (entry != null || cacheDir == null) {
+      return entry;
+    }
+    File file = getCacheFile(url);
+    if (!file.exists()) {
+      return null;
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new FileInputStream(file));
+      if (!url.equals(in.readUTF())) {
+        // Hash collision with another URL.
+        return null;
+      }
+      String baseUrl = in.readUTF();
+      String eTag = readOptionalString(in);
+      String lastModified = readOptionalString(in);
+      // The fetch time is not persisted, since elapsedRealtime restarts on reboot. A manifest
+      // read from disk is always revalidated.
+      byte[] data = new byte[in.readInt()];
+      in.readFully(data);
+      T manifest = parser.parse(new ByteArrayInputStream(data), null, contentId,
+          Util.parseBaseUri(baseUrl));
+      entry = new Entry<T>(manifest, baseUrl, eTag, lastModified, Long.MIN_VALUE / 2);
+      memoryCache.put(url, entry);
+      return entry;
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read " + file, e);
+      file.delete();
+      return null;
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  /**
+   * Store an entry in memory and, if data is not null, write the raw manifest to disk.
+   */
+  private synchronized void putEntry(String url, Entry<T> entry, byte[] data) {
+    memoryCache.put(url, entry);
+    if (cacheDir == null || data == null) {
+      return;
+    }
+    if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+      return;
+    }
+    File file = getCacheFile(url);
+    File tempFile = new File(file.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new FileOutputStream(tempFile));
+      out.writeUTF(url);
+      out.writeUTF(entry.baseUrl);
+      writeOptionalString(out, entry.eTag);
+      writeOptionalString(out, entry.lastModified);
+      out.writeInt(data.length);
+      out.write(data);
+      out.close();
+      out = null;
+      if (!tempFile.renameTo(file)) {
+        tempFile.delete();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write " + file, e);
+      tempFile.delete();
+    } finally {
+      closeQuietly(out);
+    }
+    trimDiskCache();
+  }
+
+  /**
+   * Mark the raw manifest of a URL as used, since the disk cache evicts the least recently used
+   * manifests by their modification time.
+   */
+  private synchronized void touchCacheFile(String url) {
+    if (cacheDir != null) {
+      getCacheFile(url).setLastModified(System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Delete the least recently used manifests until at most maxDiskEntries remain.
+   */
+  private void trimDiskCache() {
+    File[] files = cacheDir.listFiles();
+    if (files == null || files.length <= maxDiskEntries) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File lhs, File rhs) {
+        long lhsModified = lhs.lastModified();
+        long rhsModified = rhs.lastModified();
+        return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+      }
+    });
+    for (int i = 0; i < files.length - maxDiskEntries; i++) {
+      files[i].delete();
+    }
+  }
+
+  private File getCacheFile(String url) {
+    return new File(cacheDir, Integer.toHexString(url.hashCode()) + CACHE_FILE_SUFFIX);
+  }
+
+  private static String readOptionalString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static void writeOptionalString(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        // Ignore.
+      }
+    }
+  }
+
+}
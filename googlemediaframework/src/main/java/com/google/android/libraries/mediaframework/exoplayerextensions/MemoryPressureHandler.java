@@ -0,0 +1,166 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Shrinks the process-wide {@link BufferBudget} when the system reports memory pressure, and
+ * grows it back once the pressure has cleared.
+ *
+ * <p>Android does not report when memory pressure ends, so the budget is restored one step at a
+ * time after a period without any trim callback.
+ */
+public final class MemoryPressureHandler implements ComponentCallbacks2 {
+
+  /**
+   * Reported to listeners when the budget is grown back because no pressure has been reported
+   * recently.
+   */
+  public static final int TRIM_LEVEL_NONE = 0;
+
+  /**
+   * How long to wait after the last trim callback before growing the budget by one step.
+   */
+  private static final long RECOVERY_STEP_DELAY_MS = 30000;
+
+  /**
+   * The fractions of the budget which may be used, from no pressure to the highest pressure.
+   */
+  private static final float[] MEMORY_SCALES = new float[] {1f, 0.75f, 0.5f, 0.25f};
+
+  /**
+   * Receives every adjustment of the budget, so that it can be correlated with rebuffers.
+   */
+  public interface Listener {
+
+    /**
+     * Called on the main thread when the budget has been scaled.
+     * @param trimLevel The ComponentCallbacks2 TRIM_MEMORY_* level which caused the adjustment,
+     *                  or {@link #TRIM_LEVEL_NONE} if the budget is recovering.
+     * @param memoryScale The fraction of the budget which may now be used.
+     * @param totalBytes The number of bytes now shared by all the players.
+     */
+    void onBufferBudgetAdjusted(int trimLevel, float memoryScale, int totalBytes);
+
+  }
+
+  private static MemoryPressureHandler instance;
+
+  private final BufferBudget bufferBudget;
+  private final Handler handler;
+  private final CopyOnWriteArrayList<Listener> listeners;
+  private final Runnable recoveryRunnable;
+
+  /**
+   * The index into MEMORY_SCALES of the current scale.
+   */
+  private int step;
+
+  /**
+   * Returns the process-wide handler, registering it with the application the first time.
+   * @param context Any context of the application.
+   */
+  public static synchronized MemoryPressureHandler getInstance(Context context) {
+    if (instance == null) {
+      instance = new MemoryPressureHandler(BufferBudget.getInstance());
+      context.getApplicationContext().registerComponentCallbacks(instance);
+    }
+    return instance;
+  }
+
+  /**
+   * @param bufferBudget The budget which is scaled under memory pressure.
+   */
+  /* package */ MemoryPressureHandler(BufferBudget bufferBudget) {
+    this.bufferBudget = bufferBudget;
+    handler = new Handler(Looper.getMainLooper());
+    listeners = new CopyOnWriteArrayList<Listener>();
+    recoveryRunnable = new Runnable() {
+      @Override
+      public void run() {
+        if (step > 0) {
+          setStep(step - 1, TRIM_LEVEL_NONE);
+        }
+        if (step > 0) {
+          handler.postDelayed(this, RECOVERY_STEP_DELAY_MS);
+        }
+      }
+    };
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    int newStep;
+    if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+      // The process is likely to be killed next, so keep only what is needed to play.
+      newStep = 3;
+    } else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW) {
+      newStep = 2;
+    } else if (level == TRIM_MEMORY_RUNNING_MODERATE) {
+      newStep = 1;
+    } else {
+      return;
+    }
+    onMemoryPressure(newStep, level);
+  }
+
+  @Override
+  public void onLowMemory() {
+    onMemoryPressure(MEMORY_SCALES.length - 1, TRIM_MEMORY_COMPLETE);
+  }
+
+  @Override
+  public void onConfigurationChanged(Configuration newConfig) {
+    // Do nothing.
+  }
+
+  private void onMemoryPressure(int newStep, int trimLevel) {
+    // Each callback restarts the recovery delay. A lower level never grows the budget, since the
+    // earlier, higher level may still apply.
+    handler.removeCallbacks(recoveryRunnable);
+    if (newStep > step) {
+      setStep(newStep, trimLevel);
+    }
+    handler.postDelayed(recoveryRunnable, RECOVERY_STEP_DELAY_MS);
+  }
+
+  private void setStep(int newStep, int trimLevel) {
+    step = newStep;
+    float memoryScale = MEMORY_SCALES[step];
+    bufferBudget.setMemoryScale(memoryScale);
+    int totalBytes = bufferBudget.getTotalBytes();
+    for (Listener listener : listeners) {
+      listener.onBufferBudgetAdjusted(trimLevel, memoryScale, totalBytes);
+    }
+  }
+
+}
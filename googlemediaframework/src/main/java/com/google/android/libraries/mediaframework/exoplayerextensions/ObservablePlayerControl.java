@@ -34,6 +34,11 @@ public class ObservablePlayerControl extends PlayerControl {
    */
   List<PlayerControlCallback> callbacks;
 
+  /**
+   * Told about seeks, so that the buffering they cause is not counted as rebuffering. May be null.
+   */
+  SessionMetricsCollector metricsCollector;
+
   /**
    * @param exoPlayer The {@link com.google.android.exoplayer.ExoPlayer} instance to control.
    */
@@ -70,6 +75,17 @@ public class ObservablePlayerControl extends PlayerControl {
     callbacks.remove(callback);
   }
 
+  /**
+   * Seek to the given position, which the player's session metrics do not count as rebuffering.
+   */
+  @Override
+  public void seekTo(int timeMillis) {
+    if (metricsCollector != null) {
+      metricsCollector.onSeek();
+    }
+    super.seekTo(timeMillis);
+  }
+
   /**
    * Play the video and notify the callbacks.
    */
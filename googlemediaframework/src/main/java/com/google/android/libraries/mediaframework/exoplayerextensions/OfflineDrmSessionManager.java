@@ -0,0 +1,481 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.annotation.TargetApi;
+import android.media.DeniedByServerException;
+import android.media.MediaCrypto;
+import android.media.MediaDrm;
+import android.media.NotProvisionedException;
+import android.media.UnsupportedSchemeException;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.exoplayer.drm.DrmSessionManager;
+import com.google.android.exoplayer.drm.MediaDrmCallback;
+import com.google.android.exoplayer.drm.StreamingDrmSessionManager;
+import com.google.android.exoplayer.util.Util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A Widevine {@link DrmSessionManager} which requests offline licenses and keeps them in an
+ * {@link OfflineLicenseStore}, so that repeat plays of the same content restore the keys without
+ * a key request.
+ *
+ * <p>When a session is opened, the keys stored for the content are restored into it. If there are
+ * none, or they cannot be restored, an offline license is requested and stored. If the license
+ * server refuses offline licenses (it denies the request, or answers with a streaming license),
+ * streaming licenses are used for the content for the rest of the process, as
+ * {@link StreamingDrmSessionManager} would. A restored license which is close to its expiry is
+ * renewed in the background once playback has its keys, and while a session is open its license
+ * is renewed in the background when it has used up three quarters of its lifetime. Licenses are
+ * only renewed while their content is played, so one which is not played again before it expires
+ * is not renewed.
+ *
+ * <p>The keys of licenses which were replaced, expired or removed from the store are released
+ * from the DRM plugin (with a release request to the license server) after a session opens or
+ * closes. The keys which an open session uses are only released once it is closed.
+ *
+ * <p>Sessions are opened on a background thread, and errors are reported to the same listener as
+ * those of {@link StreamingDrmSessionManager}.
+ */
+@TargetApi(18)
+public class OfflineDrmSessionManager implements DrmSessionManager {
+
+  private static final String TAG = "OfflineDrmSessionManager";
+
+  /**
+   * The key status property through which Widevine reports the remaining license duration, in
+   * seconds.
+   */
+  private static final String LICENSE_DURATION_REMAINING = "LicenseDurationRemaining";
+
+  /**
+   * The lifetime assumed for a license whose duration the plugin does not report.
+   */
+  private static final long DEFAULT_LICENSE_DURATION_MS = 24 * 60 * 60 * 1000;
+
+  /**
+   * The minimum delay before a renewal, so that a license server which fails renewals is not
+   * asked again right away.
+   */
+  private static final long MIN_RENEWAL_DELAY_MS = 10 * 60 * 1000;
+
+  /**
+   * The thread on which sessions are opened and licenses renewed, shared by every manager.
+   */
+  private static final ExecutorService executor = Util.newSingleThreadExecutor(TAG);
+
+  private final String contentId;
+  private final OfflineLicenseStore store;
+  private final MediaDrmCallback callback;
+  private final Handler eventHandler;
+  private final StreamingDrmSessionManager.EventListener eventListener;
+  private final MediaDrm mediaDrm;
+
+  /**
+   * Times the renewals of the license of the open session.
+   */
+  private final Handler renewalHandler;
+
+  private int openCount;
+  private int state;
+  private byte[] sessionId;
+  private MediaCrypto mediaCrypto;
+  private Exception error;
+
+  /**
+   * The key set id of the stored license whose keys are in the session, or null if the session has
+   * the keys of a streaming license.
+   */
+  private byte[] sessionKeySetId;
+  private Runnable renewalTask;
+
+  /**
+   * Incremented each time a session is opened or closed, so that a background open which
+   * completes after the session was closed discards its result.
+   */
+  private int sessionGeneration;
+
+  /**
+   * @param contentId The id of the content, under which its licenses are stored.
+   * @param store The store of offline licenses.
+   * @param callback Performs the key (and provisioning) requests.
+   * @param eventHandler A handler for events, or null.
+   * @param eventListener A listener for errors, or null.
+   * @throws UnsupportedSchemeException If Widevine is not supported by the device.
+   */
+  public OfflineDrmSessionManager(String contentId, OfflineLicenseStore store,
+                                  MediaDrmCallback callback, Handler eventHandler,
+                                  StreamingDrmSessionManager.EventListener eventListener)
+      throws UnsupportedSchemeException {
+    this.contentId = contentId;
+    this.store = store;
+    this.callback = callback;
+    this.eventHandler = eventHandler;
+    this.eventListener = eventListener;
+    mediaDrm = new MediaDrm(ExoplayerUtil.WIDEVINE_UUID);
+    renewalHandler = new Handler(Looper.getMainLooper());
+    state = STATE_CLOSED;
+  }
+
+  /**
+   * Returns a property of the DRM plugin, as {@link StreamingDrmSessionManager#getPropertyString}
+   * does, or null if the plugin doesn't report it.
+   * @param key The name of the property (ex. "securityLevel").
+   */
+  public String getPropertyString(String key) {
+    try {
+      return mediaDrm.getPropertyString(key);
+    } catch (IllegalStateException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public synchronized void open(Map<UUID, byte[]> drmInitData, final String mimeType) {
+    if (++openCount > 1) {
+      return;
+    }
+    final int generation = ++sessionGeneration;
+    final byte[] initData = drmInitData.get(ExoplayerUtil.WIDEVINE_UUID);
+    if (initData == null) {
+      onError(new IllegalStateException("Media does not support Widevine"));
+      return;
+    }
+    state = STATE_OPENING;
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        openSession(generation, initData, mimeType);
+      }
+    });
+  }
+
+  @Override
+  public synchronized void close() {
+    if (--openCount > 0) {
+      return;
+    }
+    sessionGeneration++;
+    state = STATE_CLOSED;
+    error = null;
+    if (mediaCrypto != null) {
+      mediaCrypto.release();
+      mediaCrypto = null;
+    }
+    if (sessionId != null) {
+      mediaDrm.closeSession(sessionId);
+      sessionId = null;
+    }
+    if (renewalTask != null) {
+      renewalHandler.removeCallbacks(renewalTask);
+      renewalTask = null;
+    }
+    if (sessionKeySetId != null) {
+      // The license may have been replaced while the session used its keys.
+      store.onSessionClosed(sessionKeySetId);
+      sessionKeySetId = null;
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          releasePendingLicenses();
+        }
+      });
+    }
+  }
+
+  @Override
+  public synchronized int getState() {
+    return state;
+  }
+
+  @Override
+  public synchronized MediaCrypto getMediaCrypto() {
+    if (state != STATE_OPENED && state != STATE_OPENED_WITH_KEYS) {
+      throw new IllegalStateException();
+    }
+    return mediaCrypto;
+  }
+
+  @Override
+  public synchronized boolean requiresSecureDecoderComponent(String mimeType) {
+    if (state != STATE_OPENED && state != STATE_OPENED_WITH_KEYS) {
+      throw new IllegalStateException();
+    }
+    return mediaCrypto.requiresSecureDecoderComponent(mimeType);
+  }
+
+  @Override
+  public synchronized Exception getError() {
+    return state == STATE_ERROR ? error : null;
+  }
+
+  /**
+   * Open a session and load the keys into it. Called on the background thread.
+   */
+  private void openSession(int generation, byte[] initData, String mimeType) {
+    String keyId = OfflineLicenseStore.getKeyId(initData);
+    byte[] newSessionId = null;
+    MediaCrypto newMediaCrypto = null;
+    byte[] newKeySetId = null;
+    OfflineLicenseStore.License license;
+    try {
+      newSessionId = openMediaDrmSession();
+      license = loadKeys(newSessionId, keyId, initData, mimeType);
+      if (license != null) {
+        newKeySetId = license.getKeySetId();
+        store.onSessionOpened(newKeySetId);
+      }
+      newMediaCrypto = new MediaCrypto(ExoplayerUtil.WIDEVINE_UUID, newSessionId);
+      synchronized (this) {
+        if (generation == sessionGeneration) {
+          sessionId = newSessionId;
+          mediaCrypto = newMediaCrypto;
+          sessionKeySetId = newKeySetId;
+          newSessionId = null;
+          newMediaCrypto = null;
+          newKeySetId = null;
+          state = STATE_OPENED_WITH_KEYS;
+        }
+      }
+    } catch (Exception e) {
+      synchronized (this) {
+        if (generation == sessionGeneration) {
+          onError(e);
+        }
+      }
+      return;
+    } finally {
+      // Only set if the session was closed while it was being opened, or if opening it failed.
+      if (newMediaCrypto != null) {
+        newMediaCrypto.release();
+      }
+      if (newSessionId != null) {
+        mediaDrm.closeSession(newSessionId);
+      }
+      if (newKeySetId != null) {
+        store.onSessionClosed(newKeySetId);
+      }
+    }
+    if (license != null && store.needsRenewal(license)) {
+      renewLicense(keyId, initData, mimeType);
+    }
+    releasePendingLicenses();
+    scheduleRenewal(generation, keyId, initData, mimeType);
+  }
+
+  /**
+   * Renew the stored license of the open session when it has used up three quarters of its
+   * lifetime. Called on the background thread.
+   */
+  private void scheduleRenewal(final int generation, final String keyId, final byte[] initData,
+                               final String mimeType) {
+    OfflineLicenseStore.License license = store.get(contentId, keyId);
+    if (license == null) {
+      // The session has the keys of a streaming license.
+      return;
+    }
+    long delayMs = Math.max(MIN_RENEWAL_DELAY_MS,
+        store.getRenewalTimeMs(license) - System.currentTimeMillis());
+    synchronized (this) {
+      if (generation != sessionGeneration) {
+        return;
+      }
+      renewalTask = new Runnable() {
+        @Override
+        public void run() {
+          executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              synchronized (OfflineDrmSessionManager.this) {
+                if (generation != sessionGeneration) {
+                  return;
+                }
+              }
+              renewLicense(keyId, initData, mimeType);
+              releasePendingLicenses();
+              scheduleRenewal(generation, keyId, initData, mimeType);
+            }
+          });
+        }
+      };
+      renewalHandler.postDelayed(renewalTask, delayMs);
+    }
+  }
+
+  /**
+   * Restore the stored keys of the content into the session, or request them. Returns the stored
+   * license whose keys are in the session, or null if they are those of a streaming license.
+   */
+  private OfflineLicenseStore.License loadKeys(byte[] sessionId, String keyId, byte[] initData,
+                                               String mimeType) throws Exception {
+    OfflineLicenseStore.License license = store.get(contentId, keyId);
+    if (license != null) {
+      try {
+        mediaDrm.restoreKeys(sessionId, license.getKeySetId());
+        return license;
+      } catch (Exception e) {
+        // The plugin may have lost the keys (ex. after the device was provisioned again).
+        Log.w(TAG, "Failed to restore the stored license of " + contentId, e);
+        store.remove(contentId, keyId);
+      }
+    }
+    if (!store.isOfflineRefused(contentId)) {
+      try {
+        OfflineLicenseStore.License storedLicense =
+            requestOfflineKeys(sessionId, keyId, initData, mimeType);
+        if (storedLicense == null) {
+          // The keys of the streaming license are in the session, so playback can go on.
+          Log.w(TAG, "The license server returned a streaming license for " + contentId);
+          store.setOfflineRefused(contentId);
+        }
+        return storedLicense;
+      } catch (DeniedByServerException e) {
+        // Other errors (ex. the network) fail the session, as they would for a streaming license.
+        Log.w(TAG, "Offline license refused for " + contentId + ", requesting a streaming one", e);
+        store.setOfflineRefused(contentId);
+      }
+    }
+    MediaDrm.KeyRequest keyRequest = mediaDrm.getKeyRequest(sessionId, initData, mimeType,
+        MediaDrm.KEY_TYPE_STREAMING, null);
+    mediaDrm.provideKeyResponse(sessionId,
+        callback.executeKeyRequest(ExoplayerUtil.WIDEVINE_UUID, keyRequest));
+    return null;
+  }
+
+  /**
+   * Request an offline license into the session, and store it. Returns the stored license, or null
+   * if the license server returned a streaming license instead, which is loaded into the session
+   * but not stored.
+   */
+  private OfflineLicenseStore.License requestOfflineKeys(byte[] sessionId, String keyId, byte[] initData,
+                                     String mimeType) throws Exception {
+    MediaDrm.KeyRequest keyRequest = mediaDrm.getKeyRequest(sessionId, initData, mimeType,
+        MediaDrm.KEY_TYPE_OFFLINE, null);
+    byte[] response = callback.executeKeyRequest(ExoplayerUtil.WIDEVINE_UUID, keyRequest);
+    byte[] keySetId = mediaDrm.provideKeyResponse(sessionId, response);
+    if (keySetId == null || keySetId.length == 0) {
+      return null;
+    }
+    return store.put(contentId, keyId, keySetId,
+        System.currentTimeMillis() + getLicenseDurationMs(sessionId));
+  }
+
+  /**
+   * Request a new offline license in a separate session, replacing the stored one. Playback keeps
+   * using the keys it has, whose release waits until its session is closed. Called on the
+   * background thread.
+   */
+  private void renewLicense(String keyId, byte[] initData, String mimeType) {
+    byte[] renewalSessionId = null;
+    try {
+      renewalSessionId = openMediaDrmSession();
+      if (requestOfflineKeys(renewalSessionId, keyId, initData, mimeType) == null) {
+        Log.w(TAG, "The license server returned a streaming license to renew " + contentId);
+      }
+    } catch (Exception e) {
+      // The stored license stays valid until it expires, and the next session tries again.
+      Log.w(TAG, "Failed to renew the license of " + contentId, e);
+    } finally {
+      if (renewalSessionId != null) {
+        mediaDrm.closeSession(renewalSessionId);
+      }
+    }
+  }
+
+  /**
+   * Release the keys of the licenses which left the store from the DRM plugin. Called on the
+   * background thread.
+   */
+  private void releasePendingLicenses() {
+    for (byte[] keySetId : store.getPendingReleases()) {
+      MediaDrm.KeyRequest keyRequest;
+      try {
+        keyRequest = mediaDrm.getKeyRequest(keySetId, null, null, MediaDrm.KEY_TYPE_RELEASE,
+            null);
+      } catch (Exception e) {
+        // The plugin no longer has the keys (ex. after the device was provisioned again).
+        store.onReleased(keySetId);
+        continue;
+      }
+      byte[] response;
+      try {
+        response = callback.executeKeyRequest(ExoplayerUtil.WIDEVINE_UUID, keyRequest);
+      } catch (Exception e) {
+        // Tried again after the next session opens.
+        Log.w(TAG, "Failed to request the release of a license", e);
+        continue;
+      }
+      try {
+        mediaDrm.provideKeyResponse(keySetId, response);
+      } catch (Exception e) {
+        Log.w(TAG, "Failed to release a license", e);
+      }
+      store.onReleased(keySetId);
+    }
+  }
+
+  private byte[] openMediaDrmSession() throws Exception {
+    try {
+      return mediaDrm.openSession();
+    } catch (NotProvisionedException e) {
+      byte[] response = callback.executeProvisionRequest(ExoplayerUtil.WIDEVINE_UUID,
+          mediaDrm.getProvisionRequest());
+      mediaDrm.provideProvisionResponse(response);
+      return mediaDrm.openSession();
+    }
+  }
+
+  private long getLicenseDurationMs(byte[] sessionId) {
+    HashMap<String, String> keyStatus = mediaDrm.queryKeyStatus(sessionId);
+    String durationSeconds = keyStatus != null ? keyStatus.get(LICENSE_DURATION_REMAINING) : null;
+    if (durationSeconds != null) {
+      try {
+        long durationMs = Long.parseLong(durationSeconds) * 1000;
+        if (durationMs > 0) {
+          return durationMs;
+        }
+      } catch (NumberFormatException e) {
+        Log.w(TAG, "Unexpected license duration: " + durationSeconds);
+      }
+    }
+    return DEFAULT_LICENSE_DURATION_MS;
+  }
+
+  /**
+   * Must be called while holding the lock.
+   */
+  private void onError(final Exception e) {
+    error = e;
+    state = STATE_ERROR;
+    if (eventHandler != null && eventListener != null) {
+      eventHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          eventListener.onDrmSessionManagerError(e);
+        }
+      });
+    }
+  }
+
+}
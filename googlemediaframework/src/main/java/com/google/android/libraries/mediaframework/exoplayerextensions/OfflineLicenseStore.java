@@ -0,0 +1,469 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persists the key set ids of offline Widevine licenses, so that the keys of a video which was
+ * played before can be restored into a new DRM session without a key request.
+ *
+ * <p>Licenses are keyed by content id and by the key ids found in the initialization data of the
+ * content, since the same content id may be re-encrypted with new keys. Each license records when
+ * it was stored and when it expires. Expired licenses are dropped when they are read, and
+ * {@link #needsRenewal} tells when a license is close enough to its expiry to be renewed.
+ *
+ * <p>The store only holds the key set ids; the keys themselves are kept by the DRM plugin. When a
+ * license is replaced, expires or is removed, its key set id is kept as a pending release, until
+ * an {@link OfflineDrmSessionManager} releases the keys from the plugin. The release of a license
+ * whose keys an open session restored waits until that session is closed. See
+ * {@link OfflineDrmSessionManager}, which reads and fills the store.
+ */
+public final class OfflineLicenseStore {
+
+  private static final String TAG = "OfflineLicenseStore";
+
+  private static final String PREFERENCES_NAME = "gmf_offline_licenses";
+
+  /**
+   * The prefix of the keys of pending releases. Unlike the keys of licenses, they contain no '/'.
+   */
+  private static final String RELEASE_KEY_PREFIX = "release:";
+
+  private static final int PSSH_BOX_TYPE = 0x70737368;
+
+  /**
+   * The field number of the key ids in the Widevine PSSH data.
+   */
+  private static final int WIDEVINE_KEY_ID_FIELD = 2;
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private static OfflineLicenseStore instance;
+
+  private final SharedPreferences preferences;
+
+  /**
+   * The content ids for which the license server refused an offline license in this process.
+   */
+  private final Set<String> refusedContentIds;
+
+  /**
+   * The number of open sessions holding the keys of each key set id (in hex), whose release must
+   * wait until they are closed.
+   */
+  private final Map<String, Integer> keySetUseCounts;
+
+  /**
+   * A stored license.
+   */
+  public static final class License {
+
+    private final byte[] keySetId;
+    private final long storedAtMs;
+    private final long expiryTimeMs;
+
+    /**
+     * @param keySetId The key set id returned by the DRM plugin when the keys were provided.
+     * @param storedAtMs The wall clock time at which the license was stored.
+     * @param expiryTimeMs The wall clock time at which the license expires.
+     */
+    public License(byte[] keySetId, long storedAtMs, long expiryTimeMs) {
+      this.keySetId = keySetId;
+      this.storedAtMs = storedAtMs;
+      this.expiryTimeMs = expiryTimeMs;
+    }
+
+    public byte[] getKeySetId() {
+      return keySetId;
+    }
+
+    public long getStoredAtMs() {
+      return storedAtMs;
+    }
+
+    public long getExpiryTimeMs() {
+      return expiryTimeMs;
+    }
+
+  }
+
+  /**
+   * Returns the process-wide store.
+   * @param context Any context of the application.
+   */
+  public static synchronized OfflineLicenseStore getInstance(Context context) {
+    if (instance == null) {
+      instance = new OfflineLicenseStore(
+          context.getApplicationContext()
+              .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE));
+    }
+    return instance;
+  }
+
+  /**
+   * Create a store backed by the given preferences, instead of the process-wide store (ex. to
+   * keep the licenses of a test apart from those of the application).
+   * @param preferences The preferences in which the licenses are persisted.
+   */
+  public OfflineLicenseStore(SharedPreferences preferences) {
+    this.preferences = preferences;
+    refusedContentIds = new HashSet<String>();
+    keySetUseCounts = new HashMap<String, Integer>();
+  }
+
+  /**
+   * Returns the license stored for the given content and keys, or null if there is none or if it
+   * has expired.
+   * @param contentId The id of the content.
+   * @param keyId The key id of the content, as returned by {@link #getKeyId}.
+   */
+  public synchronized License get(String contentId, String keyId) {
+    String key = getKey(contentId, keyId);
+    String value = preferences.getString(key, null);
+    if (value == null) {
+      return null;
+    }
+    License license = parseLicense(value);
+    if (license == null || license.getExpiryTimeMs() <= System.currentTimeMillis()) {
+      SharedPreferences.Editor editor = preferences.edit().remove(key);
+      if (license != null) {
+        addPendingRelease(editor, license.getKeySetId());
+      }
+      editor.apply();
+      return null;
+    }
+    return license;
+  }
+
+  /**
+   * Store a license, replacing any license stored for the same content and keys.
+   * @param contentId The id of the content.
+   * @param keyId The key id of the content, as returned by {@link #getKeyId}.
+   * @param keySetId The key set id returned by the DRM plugin when the keys were provided.
+   * @param expiryTimeMs The wall clock time at which the license expires.
+   * @return The stored license.
+   */
+  public synchronized License put(String contentId, String keyId, byte[] keySetId,
+                                  long expiryTimeMs) {
+    refusedContentIds.remove(contentId);
+    String key = getKey(contentId, keyId);
+    SharedPreferences.Editor editor = preferences.edit();
+    License replaced = parseLicense(preferences.getString(key, null));
+    if (replaced != null && !Arrays.equals(replaced.getKeySetId(), keySetId)) {
+      addPendingRelease(editor, replaced.getKeySetId());
+    }
+    License license = new License(keySetId, System.currentTimeMillis(), expiryTimeMs);
+    editor.putString(key, license.getStoredAtMs() + ":" + expiryTimeMs + ":" + toHex(keySetId))
+        .apply();
+    return license;
+  }
+
+  /**
+   * Forget the license stored for the given content and keys.
+   * @param contentId The id of the content.
+   * @param keyId The key id of the content, as returned by {@link #getKeyId}.
+   */
+  public synchronized void remove(String contentId, String keyId) {
+    String key = getKey(contentId, keyId);
+    SharedPreferences.Editor editor = preferences.edit();
+    License removed = parseLicense(preferences.getString(key, null));
+    if (removed != null) {
+      addPendingRelease(editor, removed.getKeySetId());
+    }
+    editor.remove(key).apply();
+  }
+
+  /**
+   * Forget all the stored licenses. Their keys are released from the DRM plugin later, as those
+   * of removed licenses are.
+   */
+  public synchronized void clear() {
+    refusedContentIds.clear();
+    SharedPreferences.Editor editor = preferences.edit();
+    for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+      if (entry.getKey().indexOf('/') == -1) {
+        // A pending release.
+        continue;
+      }
+      License license = entry.getValue() instanceof String
+          ? parseLicense((String) entry.getValue()) : null;
+      if (license != null) {
+        addPendingRelease(editor, license.getKeySetId());
+      }
+      editor.remove(entry.getKey());
+    }
+    editor.apply();
+  }
+
+  /**
+   * Returns the key set ids of the licenses which were replaced, expired or removed, and whose
+   * keys have not been released from the DRM plugin yet. Those held by open sessions are left out.
+   */
+  /* package */ synchronized List<byte[]> getPendingReleases() {
+    List<byte[]> keySetIds = new ArrayList<byte[]>();
+    for (String key : preferences.getAll().keySet()) {
+      if (key.startsWith(RELEASE_KEY_PREFIX)
+          && !keySetUseCounts.containsKey(key.substring(RELEASE_KEY_PREFIX.length()))) {
+        byte[] keySetId = fromHex(key.substring(RELEASE_KEY_PREFIX.length()));
+        if (keySetId != null) {
+          keySetIds.add(keySetId);
+        }
+      }
+    }
+    return keySetIds;
+  }
+
+  /**
+   * Forget a pending release, once the keys have been released from the DRM plugin.
+   * @param keySetId A key set id returned by {@link #getPendingReleases()}.
+   */
+  /* package */ synchronized void onReleased(byte[] keySetId) {
+    preferences.edit().remove(RELEASE_KEY_PREFIX + toHex(keySetId)).apply();
+  }
+
+  /**
+   * Note that a session holds the keys of a key set, so that they are not released (ex. after the
+   * license is renewed) until {@link #onSessionClosed} is called.
+   * @param keySetId The key set id of the license whose keys are in the session.
+   */
+  /* package */ synchronized void onSessionOpened(byte[] keySetId) {
+    String hexKeySetId = toHex(keySetId);
+    Integer useCount = keySetUseCounts.get(hexKeySetId);
+    keySetUseCounts.put(hexKeySetId, useCount == null ? 1 : useCount + 1);
+  }
+
+  /**
+   * Note that a session which held the keys of a key set was closed.
+   * @param keySetId The key set id passed to {@link #onSessionOpened}.
+   */
+  /* package */ synchronized void onSessionClosed(byte[] keySetId) {
+    String hexKeySetId = toHex(keySetId);
+    Integer useCount = keySetUseCounts.get(hexKeySetId);
+    if (useCount == null || useCount <= 1) {
+      keySetUseCounts.remove(hexKeySetId);
+    } else {
+      keySetUseCounts.put(hexKeySetId, useCount - 1);
+    }
+  }
+
+  /**
+   * Returns whether a license has used up three quarters of its lifetime, and should be renewed
+   * before it expires.
+   * @param license A stored license.
+   */
+  public boolean needsRenewal(License license) {
+    return System.currentTimeMillis() >= getRenewalTimeMs(license);
+  }
+
+  /**
+   * Returns the wall clock time at which a license has used up three quarters of its lifetime.
+   * @param license A stored license.
+   */
+  public long getRenewalTimeMs(License license) {
+    long lifetimeMs = license.getExpiryTimeMs() - license.getStoredAtMs();
+    return license.getExpiryTimeMs() - lifetimeMs / 4;
+  }
+
+  /**
+   * Remember that the license server refused an offline license for the content, so that the
+   * next sessions request a streaming license directly. This is not persisted.
+   * @param contentId The id of the content.
+   */
+  public synchronized void setOfflineRefused(String contentId) {
+    refusedContentIds.add(contentId);
+  }
+
+  /**
+   * Returns whether the license server refused an offline license for the content.
+   * @param contentId The id of the content.
+   */
+  public synchronized boolean isOfflineRefused(String contentId) {
+    return refusedContentIds.contains(contentId);
+  }
+
+  /**
+   * Returns the key id under which the license of the given Widevine initialization data is
+   * stored. This is the hex encoding of the key ids listed in the data, or a hash of the whole data
+   * if none can be found.
+   * @param initData The Widevine initialization data, either a whole 'pssh' box or its data.
+   */
+  public static String getKeyId(byte[] initData) {
+    StringBuilder keyIds = new StringBuilder();
+    try {
+      int dataStart = 0;
+      int dataEnd = initData.length;
+      if (initData.length >= 32 && readInt(initData, 4) == PSSH_BOX_TYPE) {
+        int version = initData[8] & 0xFF;
+        int position = 28;
+        if (version > 0) {
+          // Version 1 boxes list the key ids in the box itself.
+          int keyIdCount = readInt(initData, position);
+          position += 4;
+          for (int i = 0; i < keyIdCount; i++) {
+            appendKeyId(keyIds, initData, position, 16);
+            position += 16;
+          }
+        }
+        dataStart = position + 4;
+        dataEnd = Math.min(initData.length, dataStart + readInt(initData, position));
+      }
+      if (keyIds.length() == 0) {
+        appendWidevineKeyIds(keyIds, initData, dataStart, dataEnd);
+      }
+    } catch (IndexOutOfBoundsException e) {
+      Log.w(TAG, "Malformed initialization data", e);
+      keyIds.setLength(0);
+    }
+    if (keyIds.length() == 0) {
+      return "hash-" + Integer.toHexString(Arrays.hashCode(initData));
+    }
+    return keyIds.toString();
+  }
+
+  /**
+   * Append the key ids (field 2) of the Widevine PSSH data protobuf in the given range.
+   */
+  private static void appendWidevineKeyIds(StringBuilder keyIds, byte[] data, int start,
+                                           int end) {
+    int position = start;
+    while (position < end) {
+      long tag = 0;
+      int shift = 0;
+      int b;
+      do {
+        b = data[position++] & 0xFF;
+        tag |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      int fieldNumber = (int) (tag >>> 3);
+      int wireType = (int) (tag & 0x7);
+      switch (wireType) {
+        case 0:
+          while ((data[position++] & 0x80) != 0) {
+            // Skip the varint.
+          }
+          break;
+        case 1:
+          position += 8;
+          break;
+        case 2:
+          int length = 0;
+          shift = 0;
+          do {
+            b = data[position++] & 0xFF;
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+          } while ((b & 0x80) != 0);
+          if (fieldNumber == WIDEVINE_KEY_ID_FIELD) {
+            appendKeyId(keyIds, data, position, length);
+          }
+          position += length;
+          break;
+        case 5:
+          position += 4;
+          break;
+        default:
+          // Not a protobuf, or a wire type which the Widevine data doesn't use.
+          keyIds.setLength(0);
+          return;
+      }
+    }
+  }
+
+  private static void appendKeyId(StringBuilder keyIds, byte[] data, int position, int length) {
+    if (position + length > data.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (keyIds.length() > 0) {
+      keyIds.append(',');
+    }
+    byte[] keyId = new byte[length];
+    System.arraycopy(data, position, keyId, 0, length);
+    keyIds.append(toHex(keyId));
+  }
+
+  private static String getKey(String contentId, String keyId) {
+    return contentId + "/" + keyId;
+  }
+
+  private static void addPendingRelease(SharedPreferences.Editor editor, byte[] keySetId) {
+    editor.putString(RELEASE_KEY_PREFIX + toHex(keySetId), "");
+  }
+
+  private static License parseLicense(String value) {
+    if (value == null) {
+      return null;
+    }
+    String[] fields = value.split(":");
+    if (fields.length != 3) {
+      return null;
+    }
+    try {
+      long storedAtMs = Long.parseLong(fields[0]);
+      long expiryTimeMs = Long.parseLong(fields[1]);
+      byte[] keySetId = fromHex(fields[2]);
+      return keySetId != null ? new License(keySetId, storedAtMs, expiryTimeMs) : null;
+    } catch (NumberFormatException e) {
+      Log.w(TAG, "Dropping malformed license entry", e);
+      return null;
+    }
+  }
+
+  /**
+   * Returns the bytes of a hex string, or null if it is malformed.
+   */
+  private static byte[] fromHex(String hex) {
+    if (hex.length() % 2 != 0) {
+      return null;
+    }
+    byte[] data = new byte[hex.length() / 2];
+    try {
+      for (int i = 0; i < data.length; i++) {
+        data[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    return data;
+  }
+
+  private static String toHex(byte[] data) {
+    char[] chars = new char[data.length * 2];
+    for (int i = 0; i < data.length; i++) {
+      chars[2 * i] = HEX_DIGITS[(data[i] >> 4) & 0xF];
+      chars[2 * i + 1] = HEX_DIGITS[data[i] & 0xF];
+    }
+    return new String(chars);
+  }
+
+  private static int readInt(byte[] data, int position) {
+    return ((data[position] & 0xFF) << 24) | ((data[position + 1] & 0xFF) << 16)
+        | ((data[position + 2] & 0xFF) << 8) | (data[position + 3] & 0xFF);
+  }
+
+}
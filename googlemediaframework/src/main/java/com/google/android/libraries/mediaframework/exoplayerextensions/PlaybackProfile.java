@@ -0,0 +1,158 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+/**
+ * The buffering thresholds and renderer settings used to play a {@link Video}, which trade
+ * startup latency against the risk of rebuffering.
+ *
+ * <p>The profile is read by {@link ExoplayerWrapper} when it creates its
+ * {@link com.google.android.exoplayer.ExoPlayer}, and by the renderer builders when they build
+ * the renderers for that wrapper.
+ */
+public final class PlaybackProfile {
+
+  /**
+   * The settings the player has always used.
+   */
+  public static final PlaybackProfile DEFAULT =
+      new PlaybackProfile(1000, 5000, 5000, 50, 200, 60, 2, 0);
+
+  /**
+   * Starts playing with as little media as possible, and keeps a smaller buffer. Suited to
+   * previews and feeds where the user expects playback to start immediately.
+   */
+  public static final PlaybackProfile FAST_START =
+      new PlaybackProfile(500, 2500, 1000, 50, 100, 30, 2, 0);
+
+  /**
+   * Waits for more media before starting and after a rebuffer, and keeps a larger buffer. Suited
+   * to long-form content, where a rebuffer is worse than a slower start.
+   */
+  public static final PlaybackProfile SMOOTH =
+      new PlaybackProfile(2500, 10000, 5000, 50, 300, 90, 2, 0);
+
+  /**
+   * Keeps the buffer and the distance to the live edge of live streams small.
+   */
+  public static final PlaybackProfile LOW_LATENCY =
+      new PlaybackProfile(500, 2000, 1000, 50, 60, 20, 2, 4000);
+
+  private final int minBufferMs;
+  private final int minRebufferMs;
+  private final long allowedJoiningTimeMs;
+  private final int maxDroppedFrameCountToNotify;
+  private final int videoBufferSegments;
+  private final int audioBufferSegments;
+  private final int textBufferSegments;
+  private final long liveTargetLatencyMs;
+
+  /**
+   * @param minBufferMs The duration of media that must be buffered to start playing, or to
+   *                    resume after a seek.
+   * @param minRebufferMs The duration of media that must be buffered to resume after running out
+   *                      of media.
+   * @param allowedJoiningTimeMs How long the video renderer may keep dropping late frames while
+   *                             it catches up with the audio after being enabled.
+   * @param maxDroppedFrameCountToNotify The number of dropped frames after which they are
+   *                                     reported to {@link ExoplayerWrapper.InfoListener}.
+   * @param videoBufferSegments The number of 64KB buffer segments for video (DASH).
+   * @param audioBufferSegments The number of 64KB buffer segments for audio (DASH).
+   * @param textBufferSegments The number of 64KB buffer segments for text (DASH).
+   * @param liveTargetLatencyMs If positive, live DASH streams are played in low-latency mode at
+   *                            this distance from the live edge. See
+   *                            {@link DashRendererBuilder#setLowLatencyLive}.
+   */
+  public PlaybackProfile(int minBufferMs, int minRebufferMs, long allowedJoiningTimeMs,
+                         int maxDroppedFrameCountToNotify, int videoBufferSegments,
+                         int audioBufferSegments, int textBufferSegments,
+                         long liveTargetLatencyMs) {
+    this.minBufferMs = minBufferMs;
+    this.minRebufferMs = minRebufferMs;
+    this.allowedJoiningTimeMs = allowedJoiningTimeMs;
+    this.maxDroppedFrameCountToNotify = maxDroppedFrameCountToNotify;
+    this.videoBufferSegments = videoBufferSegments;
+    this.audioBufferSegments = audioBufferSegments;
+    this.textBufferSegments = textBufferSegments;
+    this.liveTargetLatencyMs = liveTargetLatencyMs;
+  }
+
+  public int getMinBufferMs() {
+    return minBufferMs;
+  }
+
+  public int getMinRebufferMs() {
+    return minRebufferMs;
+  }
+
+  public long getAllowedJoiningTimeMs() {
+    return allowedJoiningTimeMs;
+  }
+
+  public int getMaxDroppedFrameCountToNotify() {
+    return maxDroppedFrameCountToNotify;
+  }
+
+  public int getVideoBufferSegments() {
+    return videoBufferSegments;
+  }
+
+  public int getAudioBufferSegments() {
+    return audioBufferSegments;
+  }
+
+  public int getTextBufferSegments() {
+    return textBufferSegments;
+  }
+
+  public long getLiveTargetLatencyMs() {
+    return liveTargetLatencyMs;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof PlaybackProfile)) {
+      return false;
+    }
+    PlaybackProfile other = (PlaybackProfile) obj;
+    return minBufferMs == other.minBufferMs
+        && minRebufferMs == other.minRebufferMs
+        && allowedJoiningTimeMs == other.allowedJoiningTimeMs
+        && maxDroppedFrameCountToNotify == other.maxDroppedFrameCountToNotify
+        && videoBufferSegments == other.videoBufferSegments
+        && audioBufferSegments == other.audioBufferSegments
+        && textBufferSegments == other.textBufferSegments
+        && liveTargetLatencyMs == other.liveTargetLatencyMs;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = minBufferMs;
+    result = 31 * result + minRebufferMs;
+    result = 31 * result + (int) (allowedJoiningTimeMs ^ (allowedJoiningTimeMs >>> 32));
+    result = 31 * result + maxDroppedFrameCountToNotify;
+    result = 31 * result + videoBufferSegments;
+    result = 31 * result + audioBufferSegments;
+    result = 31 * result + textBufferSegments;
+    result = 31 * result + (int) (liveTargetLatencyMs ^ (liveTargetLatencyMs >>> 32));
+    return result;
+  }
+
+}
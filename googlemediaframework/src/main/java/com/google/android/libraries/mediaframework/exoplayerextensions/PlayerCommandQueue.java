@@ -0,0 +1,274 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.os.Handler;
+import android.view.Surface;
+
+import java.util.ArrayDeque;
+
+/**
+ * Lets any thread control an {@link ExoplayerWrapper}, whose methods must otherwise be called on
+ * the main thread.
+ *
+ * <p>Each call is queued, and the queue is applied to the wrapper on its main thread, in order.
+ * Before a command is queued, it is collapsed into the last queued command if that one has the
+ * same effect: consecutive seeks only keep the last position, consecutive play/pause calls the
+ * last value, consecutive surfaces the last surface, and consecutive track selections are applied
+ * together as one {@link ExoplayerWrapper.TrackSelection}. A release drops every command which is
+ * still queued, and the commands which follow it are ignored.
+ *
+ * <p>Use {@link ExoplayerWrapper#getSnapshot()} to read the state of the player from the same
+ * threads.
+ */
+public final class PlayerCommandQueue {
+
+  private static final int COMMAND_PREPARE = 0;
+  private static final int COMMAND_SET_PLAY_WHEN_READY = 1;
+  private static final int COMMAND_SEEK = 2;
+  private static final int COMMAND_SELECT_TRACKS = 3;
+  private static final int COMMAND_SET_SURFACE = 4;
+  private static final int COMMAND_RELEASE = 5;
+
+  /**
+   * A queued call. Only the fields of its type are set.
+   */
+  private static final class Command {
+
+    public final int type;
+    public boolean playWhenReady;
+    public int positionMs;
+    public boolean[] trackTypesSelected;
+    public int[] trackStates;
+    public Surface surface;
+
+    public Command(int type) {
+      this.type = type;
+    }
+
+  }
+
+  private final ExoplayerWrapper player;
+  private final Handler handler;
+  private final Runnable applyCommandsRunnable;
+
+  /**
+   * The commands which have not been applied yet. Guarded by this.
+   */
+  private final ArrayDeque<Command> commands;
+
+  /**
+   * Whether {@link #applyCommandsRunnable} is posted. Guarded by this.
+   */
+  private boolean applyPosted;
+
+  /**
+   * Whether a release was queued. Guarded by this.
+   */
+  private boolean released;
+
+  private int commandsRequested;
+  private int commandsApplied;
+
+  /**
+   * @param player The player to control.
+   */
+  public PlayerCommandQueue(ExoplayerWrapper player) {
+    this.player = player;
+    handler = player.getMainHandler();
+    commands = new ArrayDeque<Command>();
+    applyCommandsRunnable = new Runnable() {
+      @Override
+      public void run() {
+        applyCommands();
+      }
+    };
+  }
+
+  /**
+   * Queue a call to {@link ExoplayerWrapper#prepare()}.
+   */
+  public void prepare() {
+    enqueue(new Command(COMMAND_PREPARE));
+  }
+
+  /**
+   * Queue a call to {@link ExoplayerWrapper#setPlayWhenReady(boolean)}.
+   * @param playWhenReady Whether playback should start as soon as the player is ready.
+   */
+  public void setPlayWhenReady(boolean playWhenReady) {
+    Command command = new Command(COMMAND_SET_PLAY_WHEN_READY);
+    command.playWhenReady = playWhenReady;
+    enqueue(command);
+  }
+
+  /**
+   * Queue a call to {@link ExoplayerWrapper#seekTo(int)}.
+   * @param positionMs A number of milliseconds after the start of the video.
+   */
+  public void seekTo(int positionMs) {
+    Command command = new Command(COMMAND_SEEK);
+    command.positionMs = positionMs;
+    enqueue(command);
+  }
+
+  /**
+   * Queue a call to {@link ExoplayerWrapper#selectTrack(int, int)}.
+   * @param type One of the ExoplayerWrapper.TYPE_* constants.
+   * @param state The index of the track, or ExoplayerWrapper.DISABLED_TRACK.
+   */
+  public void selectTrack(int type, int state) {
+    Command command = new Command(COMMAND_SELECT_TRACKS);
+    command.trackTypesSelected = new boolean[ExoplayerWrapper.RENDERER_COUNT];
+    command.trackStates = new int[ExoplayerWrapper.RENDERER_COUNT];
+    command.trackTypesSelected[type] = true;
+    command.trackStates[type] = state;
+    enqueue(command);
+  }
+
+  /**
+   * Queue a call to {@link ExoplayerWrapper#setSurface(Surface)}.
+   * @param surface The surface on which to render the video, or null.
+   */
+  public void setSurface(Surface surface) {
+    Command command = new Command(COMMAND_SET_SURFACE);
+    command.surface = surface;
+    enqueue(command);
+  }
+
+  /**
+   * Drop the queued commands, and queue a call to {@link ExoplayerWrapper#release()}. Commands
+   * queued afterwards are ignored.
+   */
+  public void release() {
+    enqueue(new Command(COMMAND_RELEASE));
+  }
+
+  /**
+   * Returns the number of commands queued, before collapsing.
+   */
+  public synchronized int getCommandsRequested() {
+    return commandsRequested;
+  }
+
+  /**
+   * Returns the number of commands applied to the player, after collapsing.
+   */
+  public synchronized int getCommandsApplied() {
+    return commandsApplied;
+  }
+
+  private synchronized void enqueue(Command command) {
+    commandsRequested++;
+    if (released) {
+      return;
+    }
+    if (command.type == COMMAND_RELEASE) {
+      released = true;
+      commands.clear();
+      commands.add(command);
+    } else if (!collapse(commands.peekLast(), command)) {
+      commands.add(command);
+    }
+    if (!applyPosted) {
+      applyPosted = true;
+      handler.post(applyCommandsRunnable);
+    }
+  }
+
+  /**
+   * Merge a command into the last queued one, if they have the same type. Returns whether the
+   * command was merged.
+   */
+  private static boolean collapse(Command last, Command command) {
+    if (last == null || last.type != command.type) {
+      return false;
+    }
+    switch (command.type) {
+      case COMMAND_SET_PLAY_WHEN_READY:
+        last.playWhenReady = command.playWhenReady;
+        return true;
+      case COMMAND_SEEK:
+        last.positionMs = command.positionMs;
+        return true;
+      case COMMAND_SET_SURFACE:
+        last.surface = command.surface;
+        return true;
+      case COMMAND_SELECT_TRACKS:
+        for (int type = 0; type < ExoplayerWrapper.RENDERER_COUNT; type++) {
+          if (command.trackTypesSelected[type]) {
+            last.trackTypesSelected[type] = true;
+            last.trackStates[type] = command.trackStates[type];
+          }
+        }
+        return true;
+      default:
+        // Preparing twice in a row restarts the build, so it is not the same as preparing once.
+        return false;
+    }
+  }
+
+  /**
+   * Apply the queued commands. Called on the main thread.
+   */
+  private void applyCommands() {
+    Command[] pendingCommands;
+    synchronized (this) {
+      applyPosted = false;
+      pendingCommands = commands.toArray(new Command[commands.size()]);
+      commands.clear();
+      commandsApplied += pendingCommands.length;
+    }
+    for (Command command : pendingCommands) {
+      apply(command);
+    }
+  }
+
+  private void apply(Command command) {
+    switch (command.type) {
+      case COMMAND_PREPARE:
+        player.prepare();
+        break;
+      case COMMAND_SET_PLAY_WHEN_READY:
+        if (player.getPlayWhenReady() != command.playWhenReady) {
+          player.setPlayWhenReady(command.playWhenReady);
+        }
+        break;
+      case COMMAND_SEEK:
+        player.seekTo(command.positionMs);
+        break;
+      case COMMAND_SELECT_TRACKS:
+        ExoplayerWrapper.TrackSelection selection = player.beginTrackSelection();
+        for (int type = 0; type < ExoplayerWrapper.RENDERER_COUNT; type++) {
+          if (command.trackTypesSelected[type]) {
+            selection.select(type, command.trackStates[type]);
+          }
+        }
+        selection.commit();
+        break;
+      case COMMAND_SET_SURFACE:
+        player.setSurface(command.surface);
+        break;
+      case COMMAND_RELEASE:
+        player.release();
+        break;
+      default:
+        throw new IllegalStateException("Unexpected command: " + command.type);
+    }
+  }
+
+}
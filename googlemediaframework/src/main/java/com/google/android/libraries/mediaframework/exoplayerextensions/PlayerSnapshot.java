@@ -0,0 +1,186 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.os.SystemClock;
+
+import com.google.android.exoplayer.ExoPlayer;
+
+/**
+ * The state of an {@link ExoplayerWrapper} at one point in time: its position, buffered position,
+ * playback state, selected tracks, current formats and bandwidth estimate.
+ *
+ * <p>The wrapper publishes a new snapshot whenever its state changes, and regularly while it
+ * plays. Instances are immutable, so any thread may read the latest one through
+ * {@link ExoplayerWrapper#getSnapshot()} without locking and without hopping to the main thread.
+ * Each snapshot has a version, which is greater than the one of the snapshots published before it
+ * by the same wrapper.
+ */
+public final class PlayerSnapshot {
+
+  /**
+   * The value of a time or bandwidth which is not known (ex. the duration of a live stream).
+   */
+  public static final long UNKNOWN = -1;
+
+  private final long version;
+  private final long timeMs;
+  private final int playbackState;
+  private final boolean playWhenReady;
+  private final long positionMs;
+  private final long bufferedPositionMs;
+  private final long durationMs;
+  private final long bandwidthEstimate;
+  private final int[] trackStates;
+  private final String[] formatIds;
+
+  /* package */ PlayerSnapshot(long version, int playbackState, boolean playWhenReady,
+                               long positionMs, long bufferedPositionMs, long durationMs,
+                               long bandwidthEstimate, int[] trackStates, String[] formatIds) {
+    this.version = version;
+    this.timeMs = SystemClock.elapsedRealtime();
+    this.playbackState = playbackState;
+    this.playWhenReady = playWhenReady;
+    this.positionMs = positionMs;
+    this.bufferedPositionMs = bufferedPositionMs;
+    this.durationMs = durationMs;
+    this.bandwidthEstimate = bandwidthEstimate;
+    this.trackStates = trackStates.clone();
+    this.formatIds = formatIds.clone();
+  }
+
+  /**
+   * Returns the version of the snapshot. Two snapshots of the same wrapper with the same version
+   * are the same snapshot.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Returns the {@link SystemClock#elapsedRealtime()} at which the snapshot was taken.
+   */
+  public long getTimeMs() {
+    return timeMs;
+  }
+
+  /**
+   * Returns the state of the player, as {@link ExoplayerWrapper#getPlaybackState()} does.
+   */
+  public int getPlaybackState() {
+    return playbackState;
+  }
+
+  /**
+   * Returns whether the player was set to play as soon as it is ready.
+   */
+  public boolean getPlayWhenReady() {
+    return playWhenReady;
+  }
+
+  /**
+   * Returns whether the player was playing (ready, and set to play when ready).
+   */
+  public boolean isPlaying() {
+    return playWhenReady && playbackState == ExoPlayer.STATE_READY;
+  }
+
+  /**
+   * Returns the position of the seek head when the snapshot was taken, in ms.
+   */
+  public long getPositionMs() {
+    return positionMs;
+  }
+
+  /**
+   * Returns the position of the seek head at the given time, assuming that the player kept
+   * playing since the snapshot was taken if it was playing then. The position never goes past
+   * the buffered position.
+   * @param nowMs A time from {@link SystemClock#elapsedRealtime()}.
+   */
+  public long getPositionMs(long nowMs) {
+    if (!isPlaying() || nowMs <= timeMs) {
+      return positionMs;
+    }
+    long extrapolatedPositionMs = positionMs + (nowMs - timeMs);
+    return bufferedPositionMs == UNKNOWN ? extrapolatedPositionMs
+        : Math.max(positionMs, Math.min(extrapolatedPositionMs, bufferedPositionMs));
+  }
+
+  /**
+   * Returns the position up to which media was buffered, in ms, or {@link #UNKNOWN}.
+   */
+  public long getBufferedPositionMs() {
+    return bufferedPositionMs;
+  }
+
+  /**
+   * Returns the duration of the media, in ms, or {@link #UNKNOWN}.
+   */
+  public long getDurationMs() {
+    return durationMs;
+  }
+
+  /**
+   * Returns the percentage of the media which was buffered, as
+   * {@link ExoplayerWrapper#getBufferedPercentage()} does.
+   */
+  public int getBufferedPercentage() {
+    if (bufferedPositionMs == UNKNOWN || durationMs == UNKNOWN) {
+      return 0;
+    }
+    return durationMs == 0 ? 100 : (int) Math.min(100, bufferedPositionMs * 100 / durationMs);
+  }
+
+  /**
+   * Returns the bandwidth estimate of the last bandwidth sample, as reported to
+   * {@link ExoplayerWrapper.InfoListener#onBandwidthSample}, or {@link #UNKNOWN}.
+   */
+  public long getBandwidthEstimate() {
+    return bandwidthEstimate;
+  }
+
+  /**
+   * Returns the selected track of a type, as {@link ExoplayerWrapper#getStateForTrackType} does.
+   * @param type One of the ExoplayerWrapper.TYPE_* constants.
+   */
+  public int getTrackState(int type) {
+    return trackStates[type];
+  }
+
+  /**
+   * Returns the id of the format being played for a type, or null.
+   * @param type One of the ExoplayerWrapper.TYPE_* constants.
+   */
+  public String getFormatId(int type) {
+    return formatIds[type];
+  }
+
+  @Override
+  public String toString() {
+    return "PlayerSnapshot[version=" + version
+        + ", state=" + playbackState
+        + ", playWhenReady=" + playWhenReady
+        + ", positionMs=" + positionMs
+        + ", bufferedPositionMs=" + bufferedPositionMs
+        + ", durationMs=" + durationMs
+        + ", bandwidthEstimate=" + bandwidthEstimate
+        + ", videoFormat=" + formatIds[ExoplayerWrapper.TYPE_VIDEO]
+        + ", audioFormat=" + formatIds[ExoplayerWrapper.TYPE_AUDIO] + "]";
+  }
+
+}
@@ -0,0 +1,323 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the events of an {@link ExoplayerWrapper} into a preallocated ring of primitive fields,
+ * which a consumer thread drains in batches.
+ *
+ * <p>The listeners of the wrapper run on the main thread, so an analytics listener which does
+ * real work (or allocates) there competes with the UI and the player's callbacks. Recording an
+ * event here only writes a few numbers into arrays allocated up front; format ids are interned
+ * into small integers the first time they are seen. The {@link Consumer} then runs on its own
+ * thread, and is handed the fields of each event as primitives.
+ *
+ * <p>If the consumer falls behind and the ring is full, new events are dropped and counted
+ * rather than blocking the main thread. See {@link #getDroppedEventCount()}.
+ *
+ * <p>Events are recorded on the main thread only, which is what makes the ring safe without
+ * locks: it has a single producer and a single consumer.
+ */
+public final class PlayerTelemetry {
+
+  /**
+   * A chunk load started. {@code sourceId} is the track type, {@code arg} the trigger,
+   * {@code value1} and {@code value2} the media start and end times in ms.
+   */
+  public static final int EVENT_LOAD_STARTED = 1;
+
+  /**
+   * A chunk load completed. {@code sourceId} is the track type, {@code value1} the number of
+   * bytes loaded.
+   */
+  public static final int EVENT_LOAD_COMPLETED = 2;
+
+  /**
+   * A bandwidth sample. {@code arg} is the elapsed time in ms, {@code value1} the number of
+   * bytes, {@code value2} the bandwidth estimate in bits per second.
+   */
+  public static final int EVENT_BANDWIDTH_SAMPLE = 3;
+
+  /**
+   * Frames were dropped. {@code arg} is the count, {@code value1} the elapsed time in ms.
+   */
+  public static final int EVENT_DROPPED_FRAMES = 4;
+
+  /**
+   * The format being played changed. {@code sourceId} is the track type, {@code arg} the trigger,
+   * {@code value1} the media time in ms.
+   */
+  public static final int EVENT_FORMAT_CHANGED = 5;
+
+  /**
+   * A track switch completed. {@code sourceId} is the track type, {@code arg} the track index,
+   * {@code value1} the latency in ms, {@code value2} 1 if the switch was seamless and 0 otherwise.
+   */
+  public static final int EVENT_TRACK_SWITCHED = 6;
+
+  /**
+   * The player's state changed. {@code arg} is the ExoPlayer.STATE_* constant, {@code value1} 1
+   * if the player should play when ready and 0 otherwise.
+   */
+  public static final int EVENT_STATE_CHANGED = 7;
+
+  /**
+   * The distance to the live edge was measured. {@code value1} is the latency in ms,
+   * {@code value2} the target latency in ms.
+   */
+  public static final int EVENT_LIVE_LATENCY = 8;
+
+  /**
+   * An error was reported to the wrapper's {@link ExoplayerWrapper.InternalErrorListener}.
+   * {@code sourceId} is the track type for upstream and consumption errors and -1 otherwise,
+   * {@code arg} one of the ERROR_* constants.
+   */
+  public static final int EVENT_ERROR = 9;
+
+  public static final int ERROR_RENDERER_INITIALIZATION = 1;
+  public static final int ERROR_DECODER_INITIALIZATION = 2;
+  public static final int ERROR_AUDIO_TRACK = 3;
+  public static final int ERROR_CRYPTO = 4;
+  public static final int ERROR_DRM_SESSION = 5;
+  public static final int ERROR_UPSTREAM = 6;
+  public static final int ERROR_CONSUMPTION = 7;
+
+  /**
+   * The format index of events which have no format.
+   */
+  public static final int NO_FORMAT = -1;
+
+  private static final String TAG = "PlayerTelemetry";
+
+  private static final int MAX_FORMATS = 256;
+
+  /**
+   * Receives the recorded events on the consumer thread.
+   */
+  public interface Consumer {
+
+    /**
+     * Invoked for each event, in the order in which they were recorded.
+     * @param type One of the EVENT_* constants.
+     * @param timeMs The {@link SystemClock#elapsedRealtime()} at which the event was recorded.
+     * @param sourceId The track type the event relates to, or -1.
+     * @param arg An argument whose meaning depends on the type.
+     * @param value1 A value whose meaning depends on the type.
+     * @param value2 A value whose meaning depends on the type.
+     * @param formatIndex The index of the format of the event, which {@link #getFormatId}
+     *                    resolves, or {@link #NO_FORMAT}.
+     */
+    void onEvent(int type, long timeMs, int sourceId, int arg, long value1, long value2,
+                 int formatIndex);
+
+    /**
+     * Invoked after each batch of events has been delivered.
+     */
+    void onBatchEnd();
+
+  }
+
+  private final int capacity;
+  private final int[] types;
+  private final long[] timesMs;
+  private final int[] sourceIds;
+  private final int[] args;
+  private final long[] values1;
+  private final long[] values2;
+  private final int[] formatIndices;
+
+  /**
+   * The sequence number of the next event to be written, and of the next event to be read. Only
+   * the producer advances the first, and only the consumer the second.
+   */
+  private final AtomicLong writeSequence;
+  private final AtomicLong readSequence;
+  private final AtomicLong droppedEventCount;
+
+  /**
+   * The interned format ids. Only the producer writes to them, and ids are never removed, so the
+   * consumer can read the array without locking.
+   */
+  private final HashMap<String, Integer> formatIndicesById;
+  private volatile String[] formatIds;
+
+  private final Consumer consumer;
+  private final long drainIntervalMs;
+  private volatile Thread consumerThread;
+
+  /**
+   * Held while draining, so that a thread which is stopping and one which was just started never
+   * read the ring at the same time.
+   */
+  private final Object drainLock;
+
+  /**
+   * @param capacity The number of events the ring holds.
+   * @param consumer Receives the events on the consumer thread.
+   * @param drainIntervalMs How long the consumer thread sleeps when the ring is empty.
+   */
+  public PlayerTelemetry(int capacity, Consumer consumer, long drainIntervalMs) {
+    this.capacity = capacity;
+    this.consumer = consumer;
+    this.drainIntervalMs = drainIntervalMs;
+    types = new int[capacity];
+    timesMs = new long[capacity];
+    sourceIds = new int[capacity];
+    args = new int[capacity];
+    values1 = new long[capacity];
+    values2 = new long[capacity];
+    formatIndices = new int[capacity];
+    writeSequence = new AtomicLong();
+    readSequence = new AtomicLong();
+    droppedEventCount = new AtomicLong();
+    formatIndicesById = new HashMap<String, Integer>();
+    formatIds = new String[16];
+    drainLock = new Object();
+  }
+
+  /**
+   * Start the consumer thread.
+   */
+  public synchronized void start() {
+    if (consumerThread != null) {
+      return;
+    }
+    consumerThread = new Thread(TAG) {
+      @Override
+      public void run() {
+        while (consumerThread == this) {
+          if (drain() == 0) {
+            LockSupport.parkNanos(drainIntervalMs * 1000000);
+          }
+        }
+        // Deliver what was recorded before the thread was stopped.
+        drain();
+      }
+    };
+    consumerThread.setDaemon(true);
+    consumerThread.start();
+  }
+
+  /**
+   * Stop the consumer thread, after it has delivered the events recorded so far.
+   */
+  public synchronized void stop() {
+    if (consumerThread == null) {
+      return;
+    }
+    Thread thread = consumerThread;
+    consumerThread = null;
+    LockSupport.unpark(thread);
+  }
+
+  /**
+   * Returns the number of events which were dropped because the ring was full.
+   */
+  public long getDroppedEventCount() {
+    return droppedEventCount.get();
+  }
+
+  /**
+   * Returns the format id of an interned format index, or null for {@link #NO_FORMAT}.
+   * @param formatIndex The index passed to {@link Consumer#onEvent}.
+   */
+  public String getFormatId(int formatIndex) {
+    String[] formatIds = this.formatIds;
+    return formatIndex >= 0 && formatIndex < formatIds.length ? formatIds[formatIndex] : null;
+  }
+
+  /**
+   * Record an event. Called on the main thread.
+   */
+  /* package */ void record(int type, int sourceId, int arg, long value1, long value2,
+                            String formatId) {
+    long sequence = writeSequence.get();
+    if (sequence - readSequence.get() >= capacity) {
+      droppedEventCount.incrementAndGet();
+      return;
+    }
+    int index = (int) (sequence % capacity);
+    types[index] = type;
+    timesMs[index] = SystemClock.elapsedRealtime();
+    sourceIds[index] = sourceId;
+    args[index] = arg;
+    values1[index] = value1;
+    values2[index] = value2;
+    formatIndices[index] = internFormat(formatId);
+    // Publishes the fields written above to the consumer.
+    writeSequence.lazySet(sequence + 1);
+  }
+
+  /**
+   * Deliver the recorded events to the consumer. Called on the consumer thread. Returns the
+   * number of events delivered.
+   */
+  private int drain() {
+    synchronized (drainLock) {
+      long start = readSequence.get();
+      long end = writeSequence.get();
+      if (start == end) {
+        return 0;
+      }
+      for (long sequence = start; sequence < end; sequence++) {
+        int index = (int) (sequence % capacity);
+        try {
+          consumer.onEvent(types[index], timesMs[index], sourceIds[index], args[index],
+              values1[index], values2[index], formatIndices[index]);
+        } catch (RuntimeException e) {
+          Log.e(TAG, "Telemetry consumer failed", e);
+        }
+        // Free the slot as soon as it has been read.
+        readSequence.lazySet(sequence + 1);
+      }
+      consumer.onBatchEnd();
+      return (int) (end - start);
+    }
+  }
+
+  private int internFormat(String formatId) {
+    if (formatId == null) {
+      return NO_FORMAT;
+    }
+    Integer formatIndex = formatIndicesById.get(formatId);
+    if (formatIndex != null) {
+      return formatIndex;
+    }
+    int newIndex = formatIndicesById.size();
+    if (newIndex >= MAX_FORMATS) {
+      return NO_FORMAT;
+    }
+    String[] formatIds = this.formatIds;
+    if (newIndex == formatIds.length) {
+      formatIds = Arrays.copyOf(formatIds, formatIds.length * 2);
+    }
+    formatIds[newIndex] = formatId;
+    // The volatile write publishes the new id before any event which refers to it.
+    this.formatIds = formatIds;
+    formatIndicesById.put(formatId, newIndex);
+    return newIndex;
+  }
+
+}
@@ -0,0 +1,131 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.annotation.TargetApi;
+import android.media.MediaCrypto;
+import android.media.MediaCryptoException;
+
+import com.google.android.exoplayer.drm.DrmSessionManager;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A {@link DrmSessionManager} which first plays from a license fetched by the
+ * {@link LicensePrefetcher}, so that no key request is made when playback starts.
+ *
+ * <p>The license is taken from the prefetcher when the renderers first open a session, rather
+ * than when the renderers are built, so that a build which fails or is cancelled, or renderers
+ * which are never prepared, leave it with the prefetcher, which releases it when it expires. Once
+ * the renderers have closed the prefetched session (ex. when a track is disabled), it is released,
+ * and any later session is opened by the fallback manager as usual.
+ */
+@TargetApi(18)
+/* package */ final class PrefetchedDrmSessionManager implements DrmSessionManager {
+
+  private final LicensePrefetcher licensePrefetcher;
+  private final String contentId;
+  private final DrmSessionManager fallback;
+
+  private boolean licenseTaken;
+  private LicensePrefetcher.HeldLicense license;
+  private boolean usingLicense;
+  private int openCount;
+  private Exception error;
+
+  /**
+   * @param licensePrefetcher The prefetcher from which to take the license of the content.
+   * @param contentId The id of the content.
+   * @param fallback The manager to which sessions are delegated if no license was prefetched,
+   *                 or once the license is released.
+   */
+  public PrefetchedDrmSessionManager(LicensePrefetcher licensePrefetcher, String contentId,
+                                     DrmSessionManager fallback) {
+    this.licensePrefetcher = licensePrefetcher;
+    this.contentId = contentId;
+    this.fallback = fallback;
+  }
+
+  @Override
+  public void open(Map<UUID, byte[]> drmInitData, String mimeType) {
+    if (++openCount > 1) {
+      return;
+    }
+    if (!licenseTaken) {
+      // This manager becomes responsible for releasing the license.
+      licenseTaken = true;
+      license = licensePrefetcher.take(contentId);
+    }
+    if (license != null) {
+      usingLicense = true;
+    } else {
+      fallback.open(drmInitData, mimeType);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (--openCount > 0) {
+      return;
+    }
+    if (usingLicense) {
+      usingLicense = false;
+      error = null;
+      license.release();
+      license = null;
+    } else {
+      fallback.close();
+    }
+  }
+
+  @Override
+  public int getState() {
+    if (!usingLicense) {
+      return fallback.getState();
+    }
+    return error != null ? STATE_ERROR : STATE_OPENED_WITH_KEYS;
+  }
+
+  @Override
+  public MediaCrypto getMediaCrypto() {
+    if (!usingLicense) {
+      return fallback.getMediaCrypto();
+    }
+    try {
+      return license.getMediaCrypto();
+    } catch (MediaCryptoException e) {
+      error = e;
+      return null;
+    }
+  }
+
+  @Override
+  public boolean requiresSecureDecoderComponent(String mimeType) {
+    if (!usingLicense) {
+      return fallback.requiresSecureDecoderComponent(mimeType);
+    }
+    MediaCrypto mediaCrypto = getMediaCrypto();
+    return mediaCrypto != null && mediaCrypto.requiresSecureDecoderComponent(mimeType);
+  }
+
+  @Override
+  public Exception getError() {
+    return usingLicense ? error : fallback.getError();
+  }
+
+}
@@ -19,29 +19,114 @@ package com.google.android.libraries.mediaframework.exoplayerextensions;
 import android.content.Context;
 import android.net.Uri;
 
+import com.google.android.exoplayer.util.Util;
+
 /**
  * Generate a renderer builder appropriate for rendering a video.
  */
 public class RendererBuilderFactory {
 
   /**
-   * Create a renderer builder which can build the given video.
+   * Create a renderer builder which can build the given video. The builder applies the playback
+   * profile of the {@link ExoplayerWrapper} it builds for, which should be created with
+   * {@link Video#getPlaybackProfile()}.
    * @param ctx The context (ex {@link android.app.Activity} in whicb the video has been created.
    * @param video The video which will be played.
    */
   public static ExoplayerWrapper.RendererBuilder createRendererBuilder(Context ctx,
                                                                        Video video) {
+    return createRendererBuilder(ctx, video, null);
+  }
+
+  /**
+   * Create a renderer builder which can build the given video.
+   * @param ctx The context (ex {@link android.app.Activity} in whicb the video has been created.
+   * @param video The video which will be played.
+   * @param segmentCacheConfig If not null, DASH and HLS segments are read through a disk cache
+   *                           with this configuration.
+   */
+  public static ExoplayerWrapper.RendererBuilder createRendererBuilder(
+      Context ctx, Video video, SegmentCache.Config segmentCacheConfig) {
+    return createRendererBuilder(ctx, video, segmentCacheConfig, null);
+  }
+
+  /**
+   * Create a renderer builder which can build the given video.
+   * @param ctx The context (ex {@link android.app.Activity} in whicb the video has been created.
+   * @param video The video which will be played.
+   * @param segmentCacheConfig If not null, DASH and HLS segments are read through a disk cache
+   *                           with this configuration.
+   * @param offlineLicenseStore If not null, protected DASH videos request offline licenses and
+   *                            keep them in this store, so that replays restore their keys
+   *                            (API 18+). Only pass a store if the license server and the terms
+   *                            of the content allow offline licenses.
+   */
+  public static ExoplayerWrapper.RendererBuilder createRendererBuilder(
+      Context ctx, Video video, SegmentCache.Config segmentCacheConfig,
+      OfflineLicenseStore offlineLicenseStore) {
+    return createRendererBuilder(ctx, video, segmentCacheConfig, offlineLicenseStore, false);
+  }
+
+  /**
+   * Create a renderer builder which can build the given video.
+   * @param ctx The context (ex {@link android.app.Activity} in whicb the video has been created.
+   * @param video The video which will be played.
+   * @param segmentCacheConfig If not null, DASH and HLS segments are read through a disk cache
+   *                           with this configuration.
+   * @param offlineLicenseStore If not null, protected DASH videos request offline licenses and
+   *                            keep them in this store, so that replays restore their keys
+   *                            (API 18+). Only pass a store if the license server and the terms
+   *                            of the content allow offline licenses.
+   * @param buildInBackground Whether the renderers are built on a background thread, with an
+   *                          {@link AsyncRendererBuilder}, rather than on the player's main
+   *                          thread.
+   */
+  public static ExoplayerWrapper.RendererBuilder createRendererBuilder(
+      Context ctx, Video video, SegmentCache.Config segmentCacheConfig,
+      OfflineLicenseStore offlineLicenseStore, boolean buildInBackground) {
+    ExoplayerWrapper.RendererBuilder rendererBuilder =
+        createRendererBuilderForType(ctx, video, segmentCacheConfig, offlineLicenseStore);
+    if (buildInBackground && rendererBuilder != null) {
+      return new AsyncRendererBuilder(rendererBuilder);
+    }
+    return rendererBuilder;
+  }
+
+  private static ExoplayerWrapper.RendererBuilder createRendererBuilderForType(
+      Context ctx, Video video, SegmentCache.Config segmentCacheConfig,
+      OfflineLicenseStore offlineLicenseStore) {
     switch (video.getVideoType()) {
       case HLS:
-        return new HlsRendererBuilder(ExoplayerUtil.getUserAgent(ctx),
-                                      video.getUrl(),
-                                      video.getContentId());
+        HlsRendererBuilder hlsRendererBuilder =
+            new HlsRendererBuilder(ExoplayerUtil.getUserAgent(ctx),
+                                   video.getUrl(),
+                                   video.getContentId(),
+                                   DeviceCapabilities.getInstance(ctx),
+                                   ManifestCache.getHlsInstance(ctx),
+                                   segmentCacheConfig);
+        hlsRendererBuilder.setBandwidthEstimator(SharedBandwidthEstimator.getInstance(ctx));
+        return hlsRendererBuilder;
       case DASH:
-        return new DashRendererBuilder(ExoplayerUtil.getUserAgent(ctx),
-                                       video.getUrl(),
-                                       video.getContentId(),
-                                       new WidevineTestMediaDrmCallback(video.getContentId()),
-                                       null); // TODO: Pass in DebugTextView here.
+        DashRendererBuilder dashRendererBuilder =
+            new DashRendererBuilder(ExoplayerUtil.getUserAgent(ctx),
+                                    video.getUrl(),
+                                    video.getContentId(),
+                                    new WidevineTestMediaDrmCallback(video.getContentId()),
+                                    null, // TODO: Pass in DebugTextView here.
+                                    DeviceCapabilities.getInstance(ctx),
+                                    ManifestCache.getDashInstance(ctx),
+                                    segmentCacheConfig);
+        dashRendererBuilder.setBandwidthEstimator(SharedBandwidthEstimator.getInstance(ctx));
+        dashRendererBuilder.setAdaptationPolicy(video.getAdaptationPolicy());
+        if (Util.SDK_INT >= 18) {
+          dashRendererBuilder.setLicensePrefetcher(LicensePrefetcher.getInstance(ctx));
+          dashRendererBuilder.setOfflineLicenseStore(offlineLicenseStore);
+        }
+        long liveTargetLatencyMs = video.getPlaybackProfile().getLiveTargetLatencyMs();
+        if (liveTargetLatencyMs > 0) {
+          dashRendererBuilder.setLowLatencyLive(liveTargetLatencyMs);
+        }
+        return dashRendererBuilder;
       case MP4:
         // TODO: DebugTextView.
         return new DefaultRendererBuilder(ctx, Uri.parse(video.getUrl()), null);
@@ -0,0 +1,181 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.google.android.exoplayer.ExoPlayer;
+
+/**
+ * Coalesces the stream of positions produced while the user drags a seek bar into as few seeks
+ * as possible.
+ *
+ * <p>Every seek flushes the renderers and restarts loading, so seeking on each drag event
+ * downloads data which is thrown away by the next event. Instead, only the latest requested
+ * position is kept. It is sent to the player once the previous seek has been acknowledged (the
+ * player is ready again, or a timeout has passed), and no more often than a minimum interval.
+ * When the drag ends, {@link #seekTo(int)} seeks to the final position right away.
+ *
+ * <p>All methods must be called on the main thread.
+ */
+public class ScrubSeekController implements ExoplayerWrapper.PlaybackListener {
+
+  /**
+   * The minimum time between two seeks while scrubbing.
+   */
+  private static final long MIN_SEEK_INTERVAL_MS = 100;
+
+  /**
+   * How long to wait for a seek to be acknowledged before sending the next one anyway.
+   */
+  private static final long SEEK_ACKNOWLEDGE_TIMEOUT_MS = 1000;
+
+  private static final int NO_POSITION = -1;
+
+  private final ExoplayerWrapper player;
+  private final Handler handler;
+  private final Runnable issueSeekRunnable;
+
+  /**
+   * The latest position requested while scrubbing which has not been sent to the player yet, or
+   * NO_POSITION.
+   */
+  private int pendingPositionMs;
+
+  /**
+   * Whether a seek has been sent to the player and is not yet acknowledged.
+   */
+  private boolean seekInFlight;
+
+  private long lastSeekTimeMs;
+  private int seeksRequested;
+  private int seeksExecuted;
+
+  /**
+   * @param player The player to seek, which must outlive this controller.
+   */
+  public ScrubSeekController(ExoplayerWrapper player) {
+    this.player = player;
+    handler = player.getMainHandler();
+    issueSeekRunnable = new Runnable() {
+      @Override
+      public void run() {
+        maybeIssueSeek();
+      }
+    };
+    pendingPositionMs = NO_POSITION;
+    lastSeekTimeMs = -MIN_SEEK_INTERVAL_MS;
+    player.addListener(this);
+  }
+
+  /**
+   * Request a seek while the user is dragging. The seek may be delayed, or replaced by a later
+   * request.
+   * @param positionMs The requested position, in milliseconds.
+   */
+  public void scrubTo(int positionMs) {
+    seeksRequested++;
+    pendingPositionMs = positionMs;
+    maybeIssueSeek();
+  }
+
+  /**
+   * Seek to the final position of a drag immediately, dropping any pending scrub position.
+   * @param positionMs The requested position, in milliseconds.
+   */
+  public void seekTo(int positionMs) {
+    seeksRequested++;
+    pendingPositionMs = NO_POSITION;
+    handler.removeCallbacks(issueSeekRunnable);
+    issueSeek(positionMs);
+  }
+
+  /**
+   * Drop any pending scrub position, and stop listening to the player.
+   */
+  public void release() {
+    pendingPositionMs = NO_POSITION;
+    handler.removeCallbacks(issueSeekRunnable);
+    player.removeListener(this);
+  }
+
+  /**
+   * Returns the number of seeks requested through {@link #scrubTo} and {@link #seekTo}.
+   */
+  public int getSeeksRequested() {
+    return seeksRequested;
+  }
+
+  /**
+   * Returns the number of seeks actually sent to the player.
+   */
+  public int getSeeksExecuted() {
+    return seeksExecuted;
+  }
+
+  @Override
+  public void onStateChanged(boolean playWhenReady, int playbackState) {
+    if (seekInFlight && (playbackState == ExoPlayer.STATE_READY
+        || playbackState == ExoPlayer.STATE_ENDED)) {
+      seekInFlight = false;
+      maybeIssueSeek();
+    }
+  }
+
+  @Override
+  public void onError(Exception e) {
+    seekInFlight = false;
+  }
+
+  @Override
+  public void onVideoSizeChanged(int width, int height, float pixelWidthHeightRatio) {
+    // Do nothing.
+  }
+
+  /**
+   * Send the pending position to the player if the previous seek has been acknowledged and the
+   * minimum interval has passed, and otherwise try again later.
+   */
+  private void maybeIssueSeek() {
+    handler.removeCallbacks(issueSeekRunnable);
+    if (pendingPositionMs == NO_POSITION) {
+      return;
+    }
+    long elapsedMs = SystemClock.elapsedRealtime() - lastSeekTimeMs;
+    if (seekInFlight && elapsedMs < SEEK_ACKNOWLEDGE_TIMEOUT_MS) {
+      // Retried when the player becomes ready, or when the timeout expires.
+      handler.postDelayed(issueSeekRunnable, SEEK_ACKNOWLEDGE_TIMEOUT_MS - elapsedMs);
+      return;
+    }
+    if (elapsedMs < MIN_SEEK_INTERVAL_MS) {
+      handler.postDelayed(issueSeekRunnable, MIN_SEEK_INTERVAL_MS - elapsedMs);
+      return;
+    }
+    int positionMs = pendingPositionMs;
+    pendingPositionMs = NO_POSITION;
+    issueSeek(positionMs);
+  }
+
+  private void issueSeek(int positionMs) {
+    seeksExecuted++;
+    seekInFlight = true;
+    lastSeekTimeMs = SystemClock.elapsedRealtime();
+    player.seekTo(positionMs);
+  }
+
+}
@@ -0,0 +1,307 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.FileDataSource;
+import com.google.android.exoplayer.upstream.cache.Cache;
+import com.google.android.exoplayer.upstream.cache.CacheDataSink;
+import com.google.android.exoplayer.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer.upstream.cache.LeastRecentlyUsedCacheEvictor;
+import com.google.android.exoplayer.upstream.cache.SimpleCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A disk cache of media segments, shared by all the players which use the same directory.
+ *
+ * <p>Segments are stored as spans of bytes keyed by the segment's cache key (or URI) and offset,
+ * so byte-range requests into a single DASH file are cached independently and served from the
+ * cache whenever the requested range has already been downloaded. The index is encoded in the
+ * names of the cached files, so it is rebuilt from the directory when the process restarts. Once
+ * the cache exceeds its size bound, the least recently used spans are evicted.
+ *
+ * <p>Chunk sources opt in by reading through a {@link DataSource} created by
+ * {@link #createDataSource(DataSource)}, or {@link #createHlsDataSource(DataSource)} for HLS.
+ */
+public final class SegmentCache {
+
+  /**
+   * The extensions of the HLS media segments which are cached. Anything else read by the HLS chunk
+   * source (media playlists, which change while a live stream plays, and AES-128 keys, which must
+   * not be written to disk) bypasses the cache.
+   */
+  private static final String[] HLS_SEGMENT_EXTENSIONS =
+      new String[] {".ts", ".aac", ".mp3", ".mp4", ".m4s", ".m4a", ".m4v", ".webvtt", ".vtt"};
+
+  /**
+   * The configuration of a segment cache.
+   *
+   * <p>Only media segments are stored in the cache. Manifests, playlists and decryption keys are
+   * always read from the network.
+   */
+  public static final class Config {
+
+    private static final String DEFAULT_DIRECTORY_NAME = "gmf_segments";
+    private static final long DEFAULT_MAX_CACHE_BYTES = 100 * 1024 * 1024;
+    private static final long DEFAULT_MAX_FILE_BYTES = 2 * 1024 * 1024;
+
+    /**
+     * The directory in which the segments are stored.
+     */
+    public final File cacheDir;
+
+    /**
+     * The maximum size of the cache, beyond which the least recently used segments are evicted.
+     */
+    public final long maxCacheBytes;
+
+    /**
+     * The maximum size of a single cache file. Larger segments are split across several files.
+     */
+    public final long maxFileBytes;
+
+    /**
+     * @param cacheDir The directory in which the segments are stored.
+     * @param maxCacheBytes The maximum size of the cache.
+     * @param maxFileBytes The maximum size of a single cache file.
+     */
+    public Config(File cacheDir, long maxCacheBytes, long maxFileBytes) {
+      this.cacheDir = cacheDir;
+      this.maxCacheBytes = maxCacheBytes;
+      this.maxFileBytes = maxFileBytes;
+    }
+
+    /**
+     * Returns a configuration which stores up to 100MB of segments in the application's cache
+     * directory.
+     * @param context Any context of the application.
+     */
+    public static Config createDefault(Context context) {
+      return new Config(
+          new File(context.getApplicationContext().getCacheDir(), DEFAULT_DIRECTORY_NAME),
+          DEFAULT_MAX_CACHE_BYTES, DEFAULT_MAX_FILE_BYTES);
+    }
+
+  }
+
+  /**
+   * The caches which have been opened, keyed by the path of their directory. A directory can only
+   * be used by one {@link SimpleCache} at a time.
+   */
+  private static final Map<String, SegmentCache> instances = new HashMap<String, SegmentCache>();
+
+  private final Config config;
+  private final Cache cache;
+
+  /**
+   * The number of bytes read by the chunk sources, from the cache or from the network.
+   */
+  private final AtomicLong bytesRead;
+
+  /**
+   * The number of bytes read from the cache.
+   */
+  private final AtomicLong bytesReadFromCache;
+
+  private final CacheDataSource.EventListener cacheEventListener;
+
+  /**
+   * Returns the cache for the directory of the given configuration, opening it if needed. If the
+   * cache is already open, its existing size bounds are kept.
+   * @param config The configuration of the cache.
+   */
+  public static synchronized SegmentCache getInstance(Config config) {
+    String key = config.cacheDir.getAbsolutePath();
+    SegmentCache instance = instances.get(key);
+    if (instance == null) {
+      instance = new SegmentCache(config);
+      instances.put(key, instance);
+    }
+    return instance;
+  }
+
+  private SegmentCache(Config config) {
+    this.config = config;
+    cache = new SimpleCache(config.cacheDir,
+        new LeastRecentlyUsedCacheEvictor(config.maxCacheBytes));
+    bytesRead = new AtomicLong();
+    bytesReadFromCache = new AtomicLong();
+    cacheEventListener = new CacheDataSource.EventListener() {
+      @Override
+      public void onCachedBytesRead(long cacheSizeBytes, long cachedBytesRead) {
+        bytesReadFromCache.addAndGet(cachedBytesRead);
+      }
+    };
+  }
+
+  /**
+   * Returns a data source which serves reads from the cache when possible, and otherwise reads
+   * from the upstream data source and writes what it reads to the cache. Errors reading the cache
+   * are not fatal; the upstream data source is used instead.
+   * @param upstream The data source used on cache misses, typically a network data source.
+   */
+  public DataSource createDataSource(DataSource upstream) {
+    CacheDataSource cacheDataSource = new CacheDataSource(cache, upstream, new FileDataSource(),
+        new CacheDataSink(cache, config.maxFileBytes), false, true, cacheEventListener);
+    return new CountingDataSource(cacheDataSource);
+  }
+
+  /**
+   * Returns a data source for an HLS chunk source, which reads media segments through the cache
+   * as {@link #createDataSource(DataSource)} does, and reads everything else (media playlists and
+   * encryption keys) directly from the upstream data source.
+   * @param upstream The network data source.
+   */
+  public DataSource createHlsDataSource(DataSource upstream) {
+    return new HlsSegmentDataSource(createDataSource(upstream), upstream);
+  }
+
+  /**
+   * Returns the configuration the cache was opened with.
+   */
+  public Config getConfig() {
+    return config;
+  }
+
+  /**
+   * Returns the number of bytes currently stored in the cache.
+   */
+  public long getCacheSpace() {
+    return cache.getCacheSpace();
+  }
+
+  /**
+   * Returns the number of bytes which were read from the cache instead of the network.
+   */
+  public long getBytesSaved() {
+    return bytesReadFromCache.get();
+  }
+
+  /**
+   * Returns the fraction of the bytes read through this cache which came from disk, between 0
+   * and 1. Returns 0 if nothing has been read yet.
+   */
+  public float getHitRatio() {
+    long total = bytesRead.get();
+    return total == 0 ? 0 : Math.min(1f, (float) bytesReadFromCache.get() / total);
+  }
+
+  /**
+   * Reset the hit ratio and bytes saved metrics. The cached segments are kept.
+   */
+  public void resetMetrics() {
+    bytesRead.set(0);
+    bytesReadFromCache.set(0);
+  }
+
+  /**
+   * Returns whether an URI read by the HLS chunk source is a media segment, by its extension.
+   */
+  private static boolean isHlsMediaSegment(Uri uri) {
+    String path = uri.getPath();
+    if (path == null) {
+      return false;
+    }
+    path = path.toLowerCase(Locale.US);
+    for (String extension : HLS_SEGMENT_EXTENSIONS) {
+      if (path.endsWith(extension)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A data source which reads HLS media segments through the cache, and anything else from the
+   * network.
+   */
+  private static final class HlsSegmentDataSource implements DataSource {
+
+    private final DataSource cached;
+    private final DataSource uncached;
+    private DataSource opened;
+
+    public HlsSegmentDataSource(DataSource cached, DataSource uncached) {
+      this.cached = cached;
+      this.uncached = uncached;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      opened = isHlsMediaSegment(dataSpec.uri) ? cached : uncached;
+      return opened.open(dataSpec);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      return opened.read(buffer, offset, readLength);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (opened != null) {
+        DataSource closing = opened;
+        opened = null;
+        closing.close();
+      }
+    }
+
+  }
+
+  /**
+   * A data source which counts the bytes read through it, so that the hit ratio can be computed.
+   */
+  private final class CountingDataSource implements DataSource {
+
+    private final DataSource wrapped;
+
+    public CountingDataSource(DataSource wrapped) {
+      this.wrapped = wrapped;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      return wrapped.open(dataSpec);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      int count = wrapped.read(buffer, offset, readLength);
+      if (count > 0) {
+        bytesRead.addAndGet(count);
+      }
+      return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      wrapped.close();
+    }
+
+  }
+
+}
@@ -0,0 +1,169 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+/**
+ * The quality of experience of one playback session of an {@link ExoplayerWrapper}, from the call
+ * to {@link ExoplayerWrapper#prepare()} until the wrapper is prepared again, recycled or
+ * released.
+ *
+ * <p>Instances are immutable. See {@link ExoplayerWrapper#getSessionMetrics()} and
+ * {@link ExoplayerWrapper.SessionMetricsListener}.
+ */
+public final class SessionMetrics {
+
+  /**
+   * The value of a duration or bitrate which is not known (ex. the time to first frame of a
+   * session which never rendered a frame).
+   */
+  public static final long UNKNOWN = -1;
+
+  private final long sessionDurationMs;
+  private final long timeToFirstFrameMs;
+  private final long joinTimeMs;
+  private final long playTimeMs;
+  private final int rebufferCount;
+  private final long rebufferTimeMs;
+  private final long averageVideoBitrate;
+  private final int videoBitrateSwitchCount;
+  private final int droppedFrameCount;
+  private final long[] bytesLoaded;
+
+  /* package */ SessionMetrics(long sessionDurationMs, long timeToFirstFrameMs, long joinTimeMs,
+                               long playTimeMs, int rebufferCount, long rebufferTimeMs,
+                               long averageVideoBitrate, int videoBitrateSwitchCount,
+                               int droppedFrameCount, long[] bytesLoaded) {
+    this.sessionDurationMs = sessionDurationMs;
+    this.timeToFirstFrameMs = timeToFirstFrameMs;
+    this.joinTimeMs = joinTimeMs;
+    this.playTimeMs = playTimeMs;
+    this.rebufferCount = rebufferCount;
+    this.rebufferTimeMs = rebufferTimeMs;
+    this.averageVideoBitrate = averageVideoBitrate;
+    this.videoBitrateSwitchCount = videoBitrateSwitchCount;
+    this.droppedFrameCount = droppedFrameCount;
+    this.bytesLoaded = bytesLoaded.clone();
+  }
+
+  /**
+   * Returns the time from the start of the session to its end (or to now, if it has not ended).
+   */
+  public long getSessionDurationMs() {
+    return sessionDurationMs;
+  }
+
+  /**
+   * Returns the time from the start of the session to the first frame being drawn to the surface,
+   * or {@link #UNKNOWN}.
+   */
+  public long getTimeToFirstFrameMs() {
+    return timeToFirstFrameMs;
+  }
+
+  /**
+   * Returns the time from the start of the session to playback first starting (the player being
+   * ready while it should play), or {@link #UNKNOWN}.
+   */
+  public long getJoinTimeMs() {
+    return joinTimeMs;
+  }
+
+  /**
+   * Returns the time spent playing.
+   */
+  public long getPlayTimeMs() {
+    return playTimeMs;
+  }
+
+  /**
+   * Returns the number of times playback stalled because the buffer ran out, after playback had
+   * started. Buffering caused by a seek is not counted.
+   */
+  public int getRebufferCount() {
+    return rebufferCount;
+  }
+
+  /**
+   * Returns the time spent stalled because the buffer ran out.
+   */
+  public long getRebufferTimeMs() {
+    return rebufferTimeMs;
+  }
+
+  /**
+   * Returns the fraction of the time spent stalled, out of the time spent playing or stalled.
+   */
+  public float getRebufferRatio() {
+    long totalMs = playTimeMs + rebufferTimeMs;
+    return totalMs > 0 ? (float) rebufferTimeMs / totalMs : 0;
+  }
+
+  /**
+   * Returns the average bitrate of the video played, weighted by the time each format was played,
+   * in bits per second, or {@link #UNKNOWN}. The bitrate of each format is measured from the
+   * chunks loaded for it.
+   */
+  public long getAverageVideoBitrate() {
+    return averageVideoBitrate;
+  }
+
+  /**
+   * Returns the number of times the video format being played changed.
+   */
+  public int getVideoBitrateSwitchCount() {
+    return videoBitrateSwitchCount;
+  }
+
+  /**
+   * Returns the number of video frames dropped.
+   */
+  public int getDroppedFrameCount() {
+    return droppedFrameCount;
+  }
+
+  /**
+   * Returns the number of video frames dropped per minute of playback.
+   */
+  public float getDroppedFramesPerMinute() {
+    return playTimeMs > 0 ? droppedFrameCount * 60000f / playTimeMs : 0;
+  }
+
+  /**
+   * Returns the number of bytes loaded for a type of track.
+   * @param type One of the ExoplayerWrapper.TYPE_* constants.
+   */
+  public long getBytesLoaded(int type) {
+    return bytesLoaded[type];
+  }
+
+  @Override
+  public String toString() {
+    return "SessionMetrics[durationMs=" + sessionDurationMs
+        + ", timeToFirstFrameMs=" + timeToFirstFrameMs
+        + ", joinTimeMs=" + joinTimeMs
+        + ", playTimeMs=" + playTimeMs
+        + ", rebufferCount=" + rebufferCount
+        + ", rebufferRatio=" + getRebufferRatio()
+        + ", averageVideoBitrate=" + averageVideoBitrate
+        + ", videoBitrateSwitchCount=" + videoBitrateSwitchCount
+        + ", droppedFramesPerMinute=" + getDroppedFramesPerMinute()
+        + ", videoBytes=" + bytesLoaded[ExoplayerWrapper.TYPE_VIDEO]
+        + ", audioBytes=" + bytesLoaded[ExoplayerWrapper.TYPE_AUDIO]
+        + ", textBytes=" + bytesLoaded[ExoplayerWrapper.TYPE_TEXT] + "]";
+  }
+
+}
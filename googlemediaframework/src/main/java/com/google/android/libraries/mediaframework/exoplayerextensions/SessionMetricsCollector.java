@@ -0,0 +1,244 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.os.SystemClock;
+
+import com.google.android.exoplayer.ExoPlayer;
+
+import java.util.HashMap;
+
+/**
+ * Aggregates the events of an {@link ExoplayerWrapper} into the {@link SessionMetrics} of its
+ * current session. The wrapper feeds it from its own listener methods, so the metrics are
+ * collected whether or not the application has set any listeners.
+ *
+ * <p>All methods are called on the main thread.
+ */
+/* package */ final class SessionMetricsCollector {
+
+  private final long[] bytesLoaded;
+
+  /**
+   * The bitrate measured for each video format, in bits per second, from the last chunk loaded
+   * in that format.
+   */
+  private final HashMap<String, Long> videoBitrates;
+
+  private boolean started;
+  private long sessionStartMs;
+  private long lastUpdateMs;
+  private long firstFrameMs;
+  private long joinMs;
+
+  private boolean playWhenReady;
+  private int playbackState;
+  private boolean seeking;
+  private boolean rebuffering;
+
+  private long playTimeMs;
+  private int rebufferCount;
+  private long rebufferTimeMs;
+  private int droppedFrameCount;
+
+  private String videoFormatId;
+  private int videoBitrateSwitchCount;
+
+  /**
+   * The sum of the bitrate of the video played multiplied by the time it was played, and that
+   * time, for the average bitrate.
+   */
+  private double weightedVideoBitrateSum;
+  private long weightedVideoTimeMs;
+
+  /**
+   * The format and media duration of the video chunk being loaded, or null.
+   */
+  private String loadingVideoFormatId;
+  private long loadingVideoDurationMs;
+
+  public SessionMetricsCollector() {
+    bytesLoaded = new long[ExoplayerWrapper.RENDERER_COUNT];
+    videoBitrates = new HashMap<String, Long>();
+  }
+
+  /**
+   * Start a new session, discarding the metrics of the previous one.
+   */
+  public void start() {
+    long nowMs = SystemClock.elapsedRealtime();
+    started = true;
+    sessionStartMs = nowMs;
+    lastUpdateMs = nowMs;
+    firstFrameMs = SessionMetrics.UNKNOWN;
+    joinMs = SessionMetrics.UNKNOWN;
+    playbackState = ExoPlayer.STATE_PREPARING;
+    seeking = false;
+    rebuffering = false;
+    playTimeMs = 0;
+    rebufferCount = 0;
+    rebufferTimeMs = 0;
+    droppedFrameCount = 0;
+    videoFormatId = null;
+    videoBitrateSwitchCount = 0;
+    weightedVideoBitrateSum = 0;
+    weightedVideoTimeMs = 0;
+    loadingVideoFormatId = null;
+    videoBitrates.clear();
+    for (int i = 0; i < bytesLoaded.length; i++) {
+      bytesLoaded[i] = 0;
+    }
+  }
+
+  /**
+   * Returns whether a session has been started.
+   */
+  public boolean isStarted() {
+    return started;
+  }
+
+  /**
+   * End the session, and return its metrics. Returns null if no session was started.
+   */
+  public SessionMetrics stop() {
+    if (!started) {
+      return null;
+    }
+    SessionMetrics metrics = getMetrics();
+    started = false;
+    return metrics;
+  }
+
+  public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+    if (!started) {
+      return;
+    }
+    long nowMs = update();
+    this.playWhenReady = playWhenReady;
+    this.playbackState = playbackState;
+    boolean playing = isPlaying();
+    if (playing) {
+      seeking = false;
+      if (joinMs == SessionMetrics.UNKNOWN) {
+        joinMs = nowMs - sessionStartMs;
+      }
+    }
+    boolean wasRebuffering = rebuffering;
+    rebuffering = playWhenReady && playbackState == ExoPlayer.STATE_BUFFERING
+        && joinMs != SessionMetrics.UNKNOWN && !seeking;
+    if (rebuffering && !wasRebuffering) {
+      rebufferCount++;
+    }
+  }
+
+  public void onSeek() {
+    if (!started) {
+      return;
+    }
+    update();
+    seeking = true;
+    rebuffering = false;
+  }
+
+  public void onDrawnToSurface() {
+    if (started && firstFrameMs == SessionMetrics.UNKNOWN) {
+      firstFrameMs = SystemClock.elapsedRealtime() - sessionStartMs;
+    }
+  }
+
+  public void onDroppedFrames(int count) {
+    if (started) {
+      droppedFrameCount += count;
+    }
+  }
+
+  public void onLoadStarted(int sourceId, String formatId, boolean isInitialization,
+                            int mediaStartTimeMs, int mediaEndTimeMs) {
+    if (!started || sourceId != ExoplayerWrapper.TYPE_VIDEO) {
+      return;
+    }
+    if (isInitialization || mediaEndTimeMs <= mediaStartTimeMs) {
+      loadingVideoFormatId = null;
+    } else {
+      loadingVideoFormatId = formatId;
+      loadingVideoDurationMs = mediaEndTimeMs - mediaStartTimeMs;
+    }
+  }
+
+  public void onLoadCompleted(int sourceId, long bytes) {
+    if (!started || sourceId < 0 || sourceId >= bytesLoaded.length) {
+      return;
+    }
+    bytesLoaded[sourceId] += bytes;
+    if (sourceId == ExoplayerWrapper.TYPE_VIDEO && loadingVideoFormatId != null) {
+      videoBitrates.put(loadingVideoFormatId, bytes * 8 * 1000 / loadingVideoDurationMs);
+      loadingVideoFormatId = null;
+    }
+  }
+
+  public void onDownstreamFormatChanged(int sourceId, String formatId) {
+    if (!started || sourceId != ExoplayerWrapper.TYPE_VIDEO) {
+      return;
+    }
+    update();
+    if (videoFormatId != null && !videoFormatId.equals(formatId)) {
+      videoBitrateSwitchCount++;
+    }
+    videoFormatId = formatId;
+  }
+
+  /**
+   * Returns the metrics of the session so far, or null if no session was started.
+   */
+  public SessionMetrics getMetrics() {
+    if (!started) {
+      return null;
+    }
+    long nowMs = update();
+    long averageVideoBitrate = weightedVideoTimeMs > 0
+        ? (long) (weightedVideoBitrateSum / weightedVideoTimeMs) : SessionMetrics.UNKNOWN;
+    return new SessionMetrics(nowMs - sessionStartMs, firstFrameMs, joinMs, playTimeMs,
+        rebufferCount, rebufferTimeMs, averageVideoBitrate, videoBitrateSwitchCount,
+        droppedFrameCount, bytesLoaded);
+  }
+
+  private boolean isPlaying() {
+    return playWhenReady && playbackState == ExoPlayer.STATE_READY;
+  }
+
+  /**
+   * Account for the time since the last update in the current state, and return the current
+   * time.
+   */
+  private long update() {
+    long nowMs = SystemClock.elapsedRealtime();
+    long elapsedMs = nowMs - lastUpdateMs;
+    lastUpdateMs = nowMs;
+    if (isPlaying()) {
+      playTimeMs += elapsedMs;
+      Long bitrate = videoFormatId != null ? videoBitrates.get(videoFormatId) : null;
+      if (bitrate != null) {
+        weightedVideoBitrateSum += (double) bitrate * elapsedMs;
+        weightedVideoTimeMs += elapsedMs;
+      }
+    } else if (rebuffering) {
+      rebufferTimeMs += elapsedMs;
+    }
+    return nowMs;
+  }
+
+}
@@ -0,0 +1,206 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.exoplayer.upstream.BandwidthMeter;
+import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A process-wide record of the last bandwidth measured for each network and host.
+ *
+ * <p>A new {@link DefaultBandwidthMeter} knows nothing until its first transfer completes, so
+ * adaptive playback starts at a poor bitrate. The meters created by
+ * {@link #createBandwidthMeter} report the last estimate recorded for the same network type and
+ * host until they have measured one of their own, and record their own estimates as they go.
+ * Estimates are persisted in shared preferences, so they also help the first session after a
+ * launch. A meter stops recording estimates once the network changes (ex. after a handover from
+ * Wi-Fi to cellular), since its estimate then mixes transfers from both networks.
+ */
+public final class SharedBandwidthEstimator {
+
+  private static final String TAG = "SharedBandwidthEstimator";
+
+  private static final String PREFERENCES_NAME = "gmf_bandwidth_estimates";
+
+  /**
+   * The minimum time between two writes of the estimate for a key to shared preferences.
+   */
+  private static final long MIN_PERSIST_INTERVAL_MS = 10000;
+
+  private static SharedBandwidthEstimator instance;
+
+  private final Context context;
+  private final SharedPreferences preferences;
+
+  /**
+   * The latest estimates in bits per second, keyed by network type and host.
+   */
+  private final Map<String, Long> estimates;
+
+  /**
+   * The time at which the estimate for each key was last persisted.
+   */
+  private final Map<String, Long> persistTimesMs;
+
+  /**
+   * Returns the process-wide estimator.
+   * @param context Any context of the application.
+   */
+  public static synchronized SharedBandwidthEstimator getInstance(Context context) {
+    if (instance == null) {
+      instance = new SharedBandwidthEstimator(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private SharedBandwidthEstimator(Context context) {
+    this.context = context;
+    preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    estimates = new HashMap<String, Long>();
+    persistTimesMs = new HashMap<String, Long>();
+  }
+
+  /**
+   * Returns a bandwidth meter for the stream at the given URL, seeded with the last estimate
+   * recorded for the current network type and the URL's host.
+   * @param url The URL of the stream.
+   * @param eventHandler A handler for events, or null.
+   * @param eventListener A listener for bandwidth samples, or null.
+   */
+  public DefaultBandwidthMeter createBandwidthMeter(String url, Handler eventHandler,
+      DefaultBandwidthMeter.EventListener eventListener) {
+    return new SeededBandwidthMeter(eventHandler, eventListener, url);
+  }
+
+  /**
+   * Returns the last estimate recorded for the current network type and the URL's host in bits
+   * per second, or {@link BandwidthMeter#NO_ESTIMATE} if there is none.
+   * @param url The URL of a stream.
+   */
+  public long getEstimate(String url) {
+    return getEstimateForKey(getKey(url));
+  }
+
+  /**
+   * Forget all the recorded estimates.
+   */
+  public synchronized void clear() {
+    estimates.clear();
+    persistTimesMs.clear();
+    preferences.edit().clear().apply();
+  }
+
+  private synchronized long getEstimateForKey(String key) {
+    Long estimate = estimates.get(key);
+    if (estimate == null) {
+      estimate = preferences.getLong(key, BandwidthMeter.NO_ESTIMATE);
+      estimates.put(key, estimate);
+    }
+    return estimate;
+  }
+
+  private synchronized void putEstimate(String key, long estimate) {
+    estimates.put(key, estimate);
+    long nowMs = SystemClock.elapsedRealtime();
+    Long persistTimeMs = persistTimesMs.get(key);
+    if (persistTimeMs == null || nowMs - persistTimeMs >= MIN_PERSIST_INTERVAL_MS) {
+      persistTimesMs.put(key, nowMs);
+      preferences.edit().putLong(key, estimate).apply();
+    }
+  }
+
+  /**
+   * Returns the key for the current network type and the host of the URL. Cellular networks are
+   * told apart by subtype, since 3G and LTE have very different capacities.
+   */
+  private String getKey(String url) {
+    String network = "unknown";
+    try {
+      ConnectivityManager connectivityManager =
+          (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+      NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+      if (networkInfo != null) {
+        network = networkInfo.getType() == ConnectivityManager.TYPE_MOBILE
+            ? networkInfo.getType() + "." + networkInfo.getSubtype()
+            : Integer.toString(networkInfo.getType());
+      }
+    } catch (SecurityException e) {
+      // The application doesn't hold ACCESS_NETWORK_STATE, so all networks share one key.
+      Log.w(TAG, "Unable to read the network type", e);
+    }
+    String host = url != null ? Uri.parse(url).getHost() : null;
+    return network + "/" + (host != null ? host : "");
+  }
+
+  /**
+   * A bandwidth meter which reports the shared estimate until it has measured its own, and
+   * records each of its own estimates while the network stays the same.
+   */
+  private final class SeededBandwidthMeter extends DefaultBandwidthMeter {
+
+    private final String url;
+    private final String key;
+
+    /**
+     * Whether the network changed since the meter was created.
+     */
+    private boolean networkChanged;
+
+    public SeededBandwidthMeter(Handler eventHandler, EventListener eventListener, String url) {
+      super(eventHandler, eventListener);
+      this.url = url;
+      key = getKey(url);
+    }
+
+    @Override
+    public synchronized long getBitrateEstimate() {
+      long estimate = super.getBitrateEstimate();
+      return estimate != NO_ESTIMATE ? estimate : getEstimateForKey(key);
+    }
+
+    @Override
+    public synchronized void onTransferEnd() {
+      super.onTransferEnd();
+      if (networkChanged) {
+        return;
+      }
+      if (!key.equals(getKey(url))) {
+        // The estimate now mixes transfers from both networks, so it isn't recorded for either.
+        networkChanged = true;
+        return;
+      }
+      long estimate = super.getBitrateEstimate();
+      if (estimate != NO_ESTIMATE) {
+        putEstimate(key, estimate);
+      }
+    }
+
+  }
+
+}
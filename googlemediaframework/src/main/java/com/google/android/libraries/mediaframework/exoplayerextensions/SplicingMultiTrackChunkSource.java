@@ -0,0 +1,308 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.os.Handler;
+
+import com.google.android.exoplayer.ExoPlaybackException;
+import com.google.android.exoplayer.MediaFormat;
+import com.google.android.exoplayer.TrackInfo;
+import com.google.android.exoplayer.chunk.Chunk;
+import com.google.android.exoplayer.chunk.ChunkOperationHolder;
+import com.google.android.exoplayer.chunk.ChunkSource;
+import com.google.android.exoplayer.chunk.MediaChunk;
+import com.google.android.exoplayer.chunk.MultiTrackChunkSource;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A {@link MultiTrackChunkSource} which can also switch tracks while it is enabled, without the
+ * renderer being disabled.
+ *
+ * <p>{@link MultiTrackChunkSource#MSG_SELECT_TRACK} may only be sent while the renderer is
+ * disabled, which flushes everything buffered for the renderer. {@link #MSG_SPLICE_TRACK} instead
+ * keeps the chunks of the old track which are about to play (those which start within
+ * {@link #SPLICE_MARGIN_US} of the playback position), discards the rest of its buffer, and loads
+ * the new track from there. The old track keeps playing until the first chunk of the new track is
+ * reached, so the switch happens at a chunk boundary (which is always a sample boundary) without
+ * a gap, and takes effect after about one chunk rather than after the whole buffer.
+ *
+ * <p>This relies on the tracks sharing their chunk boundaries, as the tracks of a DASH period
+ * usually do. If the first chunk of the new track does not start where the buffer ends, or if the
+ * buffer already reaches the end of the old track, the chunk is not loaded and the splice is
+ * reported as failed, so that the caller can fall back to {@link MultiTrackChunkSource
+ * #MSG_SELECT_TRACK}.
+ *
+ * <p>Apart from the constructor, all methods are called on the playback thread.
+ */
+public class SplicingMultiTrackChunkSource extends MultiTrackChunkSource {
+
+  /**
+   * Switch to the track whose index is the message's object, while the source is enabled.
+   */
+  public static final int MSG_SPLICE_TRACK = 2;
+
+  /**
+   * The maximum distance between the end of the buffer and the start of the first chunk of the
+   * new track for the two to be spliced.
+   */
+  private static final long MAX_SPLICE_GAP_US = 100000;
+
+  /**
+   * How far beyond the playback position the buffered chunks of the old track are kept when
+   * splicing. The renderer may already have read some way past the playback position, so the
+   * chunks it is reading must not be discarded.
+   */
+  public static final long SPLICE_MARGIN_US = 2000000;
+
+  /**
+   * Receives the outcome of each splice.
+   */
+  public interface EventListener {
+
+    /**
+     * Called on the event handler's thread when the first chunk of the new track is loaded.
+     * @param sourceId The id given to the source.
+     * @param trackIndex The index of the new track.
+     * @param formatId The format of the first chunk of the new track.
+     * @param spliceTimeMs The media time at which the new track starts playing.
+     */
+    void onTrackSpliced(int sourceId, int trackIndex, String formatId, int spliceTimeMs);
+
+    /**
+     * Called on the event handler's thread when the new track could not be spliced onto the
+     * buffer. The source is left on the new track, but will not load anything until it is
+     * disabled.
+     * @param sourceId The id given to the source.
+     * @param trackIndex The index of the new track.
+     */
+    void onTrackSpliceFailed(int sourceId, int trackIndex);
+
+  }
+
+  private final ChunkSource[] allSources;
+  private final Handler eventHandler;
+  private final EventListener eventListener;
+  private final int eventSourceId;
+
+  private ChunkSource selectedSource;
+  private boolean enabled;
+
+  /**
+   * The index of the track to splice to on the next chunk operation, or -1.
+   */
+  private int pendingSpliceIndex;
+
+  /**
+   * The index of the track which was spliced to and whose first media chunk has not been checked
+   * yet, or -1.
+   */
+  private int splicedIndex;
+
+  /**
+   * Whether the last splice failed, in which case nothing is loaded until the source is disabled.
+   */
+  private boolean spliceFailed;
+
+  /**
+   * @param sources The sources of the tracks, all of the same type.
+   * @param eventHandler A handler for events, or null.
+   * @param eventListener A listener for splice events, or null.
+   * @param eventSourceId An id passed to the listener.
+   */
+  public SplicingMultiTrackChunkSource(List<ChunkSource> sources, Handler eventHandler,
+                                       EventListener eventListener, int eventSourceId) {
+    super(sources);
+    this.allSources = sources.toArray(new ChunkSource[sources.size()]);
+    this.eventHandler = eventHandler;
+    this.eventListener = eventListener;
+    this.eventSourceId = eventSourceId;
+    selectedSource = allSources[0];
+    pendingSpliceIndex = -1;
+    splicedIndex = -1;
+  }
+
+  @Override
+  public int getTrackCount() {
+    return allSources.length;
+  }
+
+  @Override
+  public TrackInfo getTrackInfo() {
+    return selectedSource.getTrackInfo();
+  }
+
+  @Override
+  public void enable() {
+    selectedSource.enable();
+    enabled = true;
+  }
+
+  @Override
+  public void disable(List<? extends MediaChunk> queue) {
+    selectedSource.disable(queue);
+    if (pendingSpliceIndex != -1) {
+      // The renderer was disabled before the splice happened, so the new track just starts from
+      // scratch when it is enabled again.
+      selectedSource = allSources[pendingSpliceIndex];
+      pendingSpliceIndex = -1;
+    }
+    splicedIndex = -1;
+    spliceFailed = false;
+    enabled = false;
+  }
+
+  @Override
+  public void continueBuffering(long playbackPositionUs) {
+    selectedSource.continueBuffering(playbackPositionUs);
+  }
+
+  @Override
+  public void getChunkOperation(List<? extends MediaChunk> queue, long seekPositionUs,
+      long playbackPositionUs, ChunkOperationHolder out) {
+    if (pendingSpliceIndex != -1) {
+      int keepCount = getSpliceQueueSize(queue, playbackPositionUs);
+      if (keepCount < queue.size()) {
+        // Discard the chunks of the old track beyond the margin first. The splice happens on the
+        // next call, with the shorter queue.
+        out.queueSize = keepCount;
+        out.chunk = null;
+        return;
+      }
+      int index = pendingSpliceIndex;
+      pendingSpliceIndex = -1;
+      MediaChunk lastChunk = queue.isEmpty() ? null : queue.get(queue.size() - 1);
+      selectedSource.disable(queue);
+      selectedSource = allSources[index];
+      selectedSource.enable();
+      if (lastChunk != null && lastChunk.isLastChunk()) {
+        // The new track has nothing left to append to the buffer.
+        onSpliceFailed(index, queue, out);
+        return;
+      }
+      splicedIndex = index;
+    }
+    if (spliceFailed) {
+      out.queueSize = queue.size();
+      out.chunk = null;
+      return;
+    }
+
+    selectedSource.getChunkOperation(queue, seekPositionUs, playbackPositionUs, out);
+
+    if (splicedIndex != -1 && out.chunk instanceof MediaChunk) {
+      // Initialization chunks may come first, but the first media chunk decides the splice.
+      int index = splicedIndex;
+      splicedIndex = -1;
+      MediaChunk firstChunk = (MediaChunk) out.chunk;
+      long spliceTimeUs = seekPositionUs;
+      if (!queue.isEmpty() && out.queueSize == queue.size()) {
+        spliceTimeUs = queue.get(queue.size() - 1).endTimeUs;
+        if (Math.abs(firstChunk.startTimeUs - spliceTimeUs) > MAX_SPLICE_GAP_US) {
+          onSpliceFailed(index, queue, out);
+          return;
+        }
+      }
+      notifyTrackSpliced(index, firstChunk.format.id, spliceTimeUs);
+    }
+  }
+
+  @Override
+  public IOException getError() {
+    return selectedSource.getError();
+  }
+
+  @Override
+  public void getMaxVideoDimensions(MediaFormat out) {
+    selectedSource.getMaxVideoDimensions(out);
+  }
+
+  @Override
+  public void handleMessage(int what, Object msg) throws ExoPlaybackException {
+    if (what == MSG_SELECT_TRACK) {
+      if (enabled) {
+        throw new IllegalStateException("MSG_SELECT_TRACK requires the source to be disabled");
+      }
+      selectedSource = allSources[(Integer) msg];
+      pendingSpliceIndex = -1;
+    } else if (what == MSG_SPLICE_TRACK) {
+      int index = (Integer) msg;
+      if (!enabled) {
+        selectedSource = allSources[index];
+        pendingSpliceIndex = -1;
+      } else if (allSources[index] != selectedSource || pendingSpliceIndex != -1) {
+        // A later request replaces one which has not happened yet.
+        pendingSpliceIndex = index;
+        splicedIndex = -1;
+        spliceFailed = false;
+      }
+    }
+  }
+
+  @Override
+  public void onChunkLoadError(Chunk chunk, Exception e) {
+    selectedSource.onChunkLoadError(chunk, e);
+  }
+
+  /**
+   * Returns the number of chunks to keep at the start of the queue when splicing: those which
+   * start before the playback position plus the margin, and at least the one being played.
+   */
+  private static int getSpliceQueueSize(List<? extends MediaChunk> queue,
+                                        long playbackPositionUs) {
+    int keepCount = 0;
+    while (keepCount < queue.size()
+        && queue.get(keepCount).startTimeUs < playbackPositionUs + SPLICE_MARGIN_US) {
+      keepCount++;
+    }
+    return Math.max(keepCount, Math.min(1, queue.size()));
+  }
+
+  private void onSpliceFailed(int index, List<? extends MediaChunk> queue,
+                              ChunkOperationHolder out) {
+    spliceFailed = true;
+    out.queueSize = queue.size();
+    out.chunk = null;
+    notifyTrackSpliceFailed(index);
+  }
+
+  private void notifyTrackSpliced(final int trackIndex, final String formatId,
+                                  final long spliceTimeUs) {
+    if (eventHandler != null && eventListener != null) {
+      eventHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          eventListener.onTrackSpliced(eventSourceId, trackIndex, formatId,
+              (int) (spliceTimeUs / 1000));
+        }
+      });
+    }
+  }
+
+  private void notifyTrackSpliceFailed(final int trackIndex) {
+    if (eventHandler != null && eventListener != null) {
+      eventHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          eventListener.onTrackSpliceFailed(eventSourceId, trackIndex);
+        }
+      });
+    }
+  }
+
+}
@@ -0,0 +1,341 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.exoplayer.MediaCodecUtil;
+import com.google.android.exoplayer.MediaCodecUtil.DecoderQueryException;
+import com.google.android.exoplayer.drm.MediaDrmCallback;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the independent phases of a player's startup in parallel, and reports when each of them
+ * started and ended.
+ *
+ * <p>Without it, a renderer builder waits for the manifest, then reads the DRM levels, then
+ * queries the decoders. A builder instead creates an orchestrator as soon as it is asked to build,
+ * which immediately starts connecting to the host of the stream, probing the decoders, probing the
+ * DRM security and HDCP levels and provisioning the device for DRM if needed, while the builder
+ * fetches the manifest. When the manifest arrives, the builder collects the results, usually
+ * without waiting.
+ *
+ * <p>The manifest, DRM session and renderer phases are run by the builder itself, which marks
+ * their start and end with {@link #startPhase} and {@link #endPhase} so that they appear in the
+ * same timeline. Opening the DRM session and requesting the keys still happen after the manifest,
+ * since the keys depend on it, unless the license was prefetched with a {@link LicensePrefetcher}.
+ */
+public class StartupOrchestrator {
+
+  /**
+   * Resolving the host of the stream and opening a connection to it.
+   */
+  public static final int PHASE_CONNECT = 0;
+
+  /**
+   * Loading and parsing the manifest.
+   */
+  public static final int PHASE_MANIFEST = 1;
+
+  /**
+   * Querying the decoders for the largest frame size the device can play.
+   */
+  public static final int PHASE_CAPABILITIES = 2;
+
+  /**
+   * Probing the Widevine security and HDCP levels of the device, which opens the DRM plugin.
+   */
+  public static final int PHASE_DRM_LEVELS = 3;
+
+  /**
+   * Creating the DRM session manager for protected content. The session itself is opened, and
+   * the keys requested, when the renderers are prepared.
+   */
+  public static final int PHASE_DRM_SESSION = 4;
+
+  /**
+   * Building the renderers once everything else is known.
+   */
+  public static final int PHASE_RENDERERS = 5;
+
+  /**
+   * Provisioning the device for Widevine, if it needs it.
+   */
+  public static final int PHASE_DRM_PROVISIONING = 6;
+
+  private static final int PHASE_COUNT = 7;
+
+  private static final String TAG = "StartupOrchestrator";
+
+  /**
+   * Receives the timeline of a startup.
+   */
+  public interface Listener {
+
+    /**
+     * Invoked on the event handler's thread when a phase has ended.
+     * @param phase One of the PHASE_* constants.
+     * @param startMs The time at which the phase started, relative to the start of the startup.
+     * @param endMs The time at which the phase ended, relative to the start of the startup.
+     */
+    void onStartupPhase(int phase, long startMs, long endMs);
+
+    /**
+     * Invoked on the event handler's thread when the renderers have been built.
+     * @param totalMs The time from the start of the startup to the renderers being built.
+     */
+    void onStartupComplete(long totalMs);
+
+  }
+
+  /**
+   * The threads on which the phases run, shared with the rest of the extension.
+   */
+  private static final ExecutorService executor = ExoplayerUtil.getBackgroundExecutor();
+
+  private final Handler eventHandler;
+  private final Listener listener;
+  private final long startTimeMs;
+  private final long[] phaseStartTimesMs;
+
+  private Future<Integer> maxFrameSizeFuture;
+  private Future<Integer> securityLevelFuture;
+
+  /**
+   * The HDCP level probed for this playback. Read after {@link #securityLevelFuture} completes.
+   */
+  private volatile String hdcpLevel;
+
+  /**
+   * Start the timeline of a startup.
+   * @param eventHandler A handler for events, or null.
+   * @param listener A listener for the timeline, or null.
+   */
+  public StartupOrchestrator(Handler eventHandler, Listener listener) {
+    this.eventHandler = eventHandler;
+    this.listener = listener;
+    startTimeMs = SystemClock.elapsedRealtime();
+    phaseStartTimesMs = new long[PHASE_COUNT];
+  }
+
+  /**
+   * Open a connection to the host of the URL in the background, through the
+   * {@link HttpTransport}, so that the first media requests which follow the manifest find it in
+   * the keep-alive pool. The manifest request opens a connection of its own, so the two don't
+   * wait for each other. Failures are ignored, since the real requests will report them.
+   * @param url The URL of the stream.
+   */
+  public void preconnect(final String url) {
+    startPhase(PHASE_CONNECT);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          HttpTransport.getInstance().preconnect(url);
+        } catch (IOException e) {
+          Log.d(TAG, "Failed to connect to the host of " + url, e);
+        }
+        endPhase(PHASE_CONNECT);
+      }
+    });
+  }
+
+  /**
+   * Provision the device for Widevine in the background if it needs it, so that opening the DRM
+   * session after the manifest doesn't have to. Failures are ignored, since the DRM session
+   * provisions the device itself if needed and reports its errors.
+   * @param capabilities Remembers whether the device is provisioned.
+   * @param drmCallback Performs the provisioning request.
+   */
+  public void provision(final DeviceCapabilities capabilities,
+                        final MediaDrmCallback drmCallback) {
+    startPhase(PHASE_DRM_PROVISIONING);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          capabilities.provisionWidevine(drmCallback);
+        } catch (Exception e) {
+          Log.w(TAG, "Failed to provision the device for Widevine", e);
+        }
+        endPhase(PHASE_DRM_PROVISIONING);
+      }
+    });
+  }
+
+  /**
+   * Start probing the decoders, and the DRM security and HDCP levels if the content may be
+   * protected, so that HD filtering can be decided as soon as the manifest arrives.
+   * @param capabilities The cache to read the capabilities from, or null to query the decoders
+   *                     directly. The DRM levels are only probed through the cache.
+   * @param mayBeProtected Whether to probe the DRM levels.
+   */
+  public void prefetchCapabilities(final DeviceCapabilities capabilities,
+                                   boolean mayBeProtected) {
+    startPhase(PHASE_CAPABILITIES);
+    maxFrameSizeFuture = executor.submit(new Callable<Integer>() {
+      @Override
+      public Integer call() throws DecoderQueryException {
+        try {
+          return capabilities != null
+              ? capabilities.getMaxH264DecodableFrameSize()
+              : MediaCodecUtil.maxH264DecodableFrameSize();
+        } finally {
+          endPhase(PHASE_CAPABILITIES);
+        }
+      }
+    });
+    if (mayBeProtected && capabilities != null) {
+      startPhase(PHASE_DRM_LEVELS);
+      securityLevelFuture = executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() {
+          try {
+            // The security level is cached, but the HDCP level is probed for every playback.
+            hdcpLevel = capabilities.getWidevineHdcpLevel();
+            return capabilities.getWidevineSecurityLevel();
+          } finally {
+            endPhase(PHASE_DRM_LEVELS);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Returns the maximum frame size of H.264 video that the device can decode, waiting for the
+   * probe started by {@link #prefetchCapabilities} if it has not finished yet.
+   */
+  public int getMaxH264DecodableFrameSize() throws DecoderQueryException {
+    if (maxFrameSizeFuture == null) {
+      return MediaCodecUtil.maxH264DecodableFrameSize();
+    }
+    try {
+      return getUninterruptibly(maxFrameSizeFuture);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof DecoderQueryException) {
+        throw (DecoderQueryException) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * Returns the Widevine security level probed by {@link #prefetchCapabilities}, waiting for it
+   * if needed, or {@link DeviceCapabilities#SECURITY_LEVEL_UNKNOWN} if it was not probed.
+   */
+  public int getWidevineSecurityLevel() {
+    if (securityLevelFuture == null) {
+      return DeviceCapabilities.SECURITY_LEVEL_UNKNOWN;
+    }
+    try {
+      return getUninterruptibly(securityLevelFuture);
+    } catch (ExecutionException e) {
+      Log.w(TAG, "Failed to probe the Widevine security level", e.getCause());
+      return DeviceCapabilities.SECURITY_LEVEL_UNKNOWN;
+    }
+  }
+
+  /**
+   * Returns whether the device may play protected HD content, as decided by
+   * {@link DeviceCapabilities#isWidevineHdEligible}, waiting for the probe started by
+   * {@link #prefetchCapabilities} if needed. Returns false if the levels were not probed.
+   */
+  public boolean isWidevineHdEligible() {
+    return getWidevineSecurityLevel() == DeviceCapabilities.SECURITY_LEVEL_1
+        && DeviceCapabilities.isHdcpSufficientForHd(hdcpLevel);
+  }
+
+  /**
+   * Returns whether the Widevine security level is being probed in the background.
+   */
+  public boolean isProbingWidevineSecurityLevel() {
+    return securityLevelFuture != null;
+  }
+
+  /**
+   * Mark the start of a phase.
+   * @param phase One of the PHASE_* constants.
+   */
+  public void startPhase(int phase) {
+    synchronized (phaseStartTimesMs) {
+      phaseStartTimesMs[phase] = SystemClock.elapsedRealtime() - startTimeMs;
+    }
+  }
+
+  /**
+   * Mark the end of a phase, and report it to the listener.
+   * @param phase One of the PHASE_* constants.
+   */
+  public void endPhase(final int phase) {
+    final long endMs = SystemClock.elapsedRealtime() - startTimeMs;
+    final long startMs;
+    synchronized (phaseStartTimesMs) {
+      startMs = phaseStartTimesMs[phase];
+    }
+    if (eventHandler != null && listener != null) {
+      eventHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          listener.onStartupPhase(phase, startMs, endMs);
+        }
+      });
+    }
+  }
+
+  /**
+   * Mark the end of the renderer phase, which completes the startup.
+   */
+  public void complete() {
+    endPhase(PHASE_RENDERERS);
+    final long totalMs = SystemClock.elapsedRealtime() - startTimeMs;
+    if (eventHandler != null && listener != null) {
+      eventHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          listener.onStartupComplete(totalMs);
+        }
+      });
+    }
+  }
+
+  private static <T> T getUninterruptibly(Future<T> future) throws ExecutionException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return future.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+}
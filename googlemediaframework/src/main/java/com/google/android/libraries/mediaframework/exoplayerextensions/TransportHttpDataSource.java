@@ -0,0 +1,257 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.util.Log;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.HttpDataSource;
+import com.google.android.exoplayer.upstream.HttpDataSource.HttpDataSourceException;
+import com.google.android.exoplayer.upstream.HttpDataSource.InvalidContentTypeException;
+import com.google.android.exoplayer.upstream.HttpDataSource.InvalidResponseCodeException;
+import com.google.android.exoplayer.upstream.TransferListener;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link DataSource} which loads HTTP URIs through an {@link HttpTransport}, in place of
+ * {@link com.google.android.exoplayer.upstream.HttpDataSource}.
+ *
+ * <p>A connection whose response has been read to the end is returned to the keep-alive pool
+ * when the source is closed. One which still has data left (ex. when a load is canceled) is
+ * disconnected, since draining it could cost more than a new connection.
+ *
+ * <p>Like {@link HttpDataSource}, responses whose content type is rejected by
+ * {@link HttpDataSource#REJECT_PAYWALL_TYPES} (ex. the HTML page of a captive portal) are
+ * rejected, and the length reported by the server is checked against the requested range. A
+ * server which ignores the Range header and returns the whole resource is handled by skipping to
+ * the requested position.
+ */
+/* package */ final class TransportHttpDataSource implements DataSource {
+
+  private static final String TAG = "TransportHttpDataSource";
+
+  private static final Pattern CONTENT_RANGE_HEADER =
+      Pattern.compile("^bytes (\\d+)-(\\d+)/\\d+$");
+
+  private final HttpTransport transport;
+  private final TransferListener listener;
+  private final HashMap<String, String> requestProperties;
+
+  private DataSpec dataSpec;
+  private HttpURLConnection connection;
+  private InputStream inputStream;
+  private long dataLength;
+
+  /**
+   * The number of bytes of the response after the requested position, which may be more than
+   * were requested, or {@link C#LENGTH_UNBOUNDED}.
+   */
+  private long responseLength;
+  private long bytesRead;
+  private boolean endOfInput;
+
+  /**
+   * @param transport The transport which opens the connections.
+   * @param userAgent The User-Agent sent with requests.
+   * @param listener A listener for transfers, or null.
+   */
+  public TransportHttpDataSource(HttpTransport transport, String userAgent,
+                                 TransferListener listener) {
+    this.transport = transport;
+    this.listener = listener;
+    requestProperties = new HashMap<String, String>();
+    requestProperties.put("User-Agent", userAgent);
+    // Compressed responses would make the byte ranges and lengths meaningless.
+    requestProperties.put("Accept-Encoding", "identity");
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    this.dataSpec = dataSpec;
+    bytesRead = 0;
+    endOfInput = false;
+    try {
+      connection = transport.openConnection(dataSpec.uri.toString(), requestProperties);
+      if (dataSpec.position != 0 || dataSpec.length != C.LENGTH_UNBOUNDED) {
+        String range = "bytes=" + dataSpec.position + "-";
+        if (dataSpec.length != C.LENGTH_UNBOUNDED) {
+          range += (dataSpec.position + dataSpec.length - 1);
+        }
+        connection.setRequestProperty("Range", range);
+      }
+      int responseCode = connection.getResponseCode();
+      if (responseCode < 200 || responseCode > 299) {
+        Map<String, List<String>> headers = connection.getHeaderFields();
+        closeConnection(false);
+        throw new InvalidResponseCodeException(responseCode, headers, dataSpec);
+      }
+      String contentType = connection.getContentType();
+      if (!HttpDataSource.REJECT_PAYWALL_TYPES.evaluate(contentType)) {
+        closeConnection(false);
+        throw new InvalidContentTypeException(contentType, dataSpec);
+      }
+      // A server which does not support ranges answers 200 with the whole resource.
+      long bytesToSkip = responseCode == HttpURLConnection.HTTP_OK ? dataSpec.position : 0;
+      long contentLength = getContentLength(connection);
+      long availableLength = contentLength == C.LENGTH_UNBOUNDED ? C.LENGTH_UNBOUNDED
+          : contentLength - bytesToSkip;
+      responseLength = availableLength;
+      if (dataSpec.length == C.LENGTH_UNBOUNDED) {
+        dataLength = availableLength;
+      } else if (availableLength != C.LENGTH_UNBOUNDED && availableLength < dataSpec.length) {
+        closeConnection(false);
+        throw new HttpDataSourceException("Expected " + dataSpec.length + " bytes, server has "
+            + availableLength, dataSpec);
+      } else {
+        dataLength = dataSpec.length;
+      }
+      inputStream = connection.getInputStream();
+      skipFully(bytesToSkip);
+    } catch (HttpDataSourceException e) {
+      throw e;
+    } catch (IOException e) {
+      closeConnection(false);
+      throw new HttpDataSourceException("Unable to connect to " + dataSpec.uri, e, dataSpec);
+    }
+    if (listener != null) {
+      listener.onTransferStart();
+    }
+    return dataLength;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    if (dataLength != C.LENGTH_UNBOUNDED) {
+      long bytesRemaining = dataLength - bytesRead;
+      if (bytesRemaining == 0) {
+        // The response may go on past the requested range, so it is not necessarily at its end.
+        return -1;
+      }
+      readLength = (int) Math.min(readLength, bytesRemaining);
+    }
+    int read;
+    try {
+      read = inputStream.read(buffer, offset, readLength);
+    } catch (IOException e) {
+      throw new HttpDataSourceException(e, dataSpec);
+    }
+    if (read == -1) {
+      endOfInput = true;
+      if (dataLength != C.LENGTH_UNBOUNDED) {
+        throw new HttpDataSourceException(new EOFException(), dataSpec);
+      }
+      return -1;
+    }
+    bytesRead += read;
+    if (listener != null) {
+      listener.onBytesTransferred(read);
+    }
+    return read;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (inputStream == null) {
+      return;
+    }
+    boolean reusable = endOfInput
+        || (responseLength != C.LENGTH_UNBOUNDED && bytesRead == responseLength);
+    try {
+      inputStream.close();
+    } catch (IOException e) {
+      reusable = false;
+      throw new HttpDataSourceException(e, dataSpec);
+    } finally {
+      inputStream = null;
+      closeConnection(reusable);
+      if (listener != null) {
+        listener.onTransferEnd();
+      }
+    }
+  }
+
+  /**
+   * Returns the length of the response from its Content-Length and Content-Range headers, or
+   * {@link C#LENGTH_UNBOUNDED} if the server does not report it.
+   */
+  private static long getContentLength(HttpURLConnection connection) {
+    long contentLength = C.LENGTH_UNBOUNDED;
+    String contentLengthHeader = connection.getHeaderField("Content-Length");
+    if (contentLengthHeader != null) {
+      try {
+        contentLength = Long.parseLong(contentLengthHeader);
+      } catch (NumberFormatException e) {
+        Log.e(TAG, "Unexpected Content-Length [" + contentLengthHeader + "]");
+      }
+    }
+    String contentRangeHeader = connection.getHeaderField("Content-Range");
+    if (contentRangeHeader != null) {
+      Matcher matcher = CONTENT_RANGE_HEADER.matcher(contentRangeHeader);
+      if (matcher.find()) {
+        long contentRangeLength =
+            Long.parseLong(matcher.group(2)) - Long.parseLong(matcher.group(1)) + 1;
+        if (contentLength != C.LENGTH_UNBOUNDED && contentLength != contentRangeLength) {
+          // Some proxies rewrite one of the headers. Trust the larger one, as HttpDataSource does.
+          Log.w(TAG, "Inconsistent headers [" + contentLengthHeader + "] ["
+              + contentRangeHeader + "]");
+        }
+        contentLength = Math.max(contentLength, contentRangeLength);
+      }
+    }
+    return contentLength;
+  }
+
+  /**
+   * Discard bytes from the start of the response, up to the requested position.
+   */
+  private void skipFully(long bytesToSkip) throws IOException {
+    while (bytesToSkip > 0) {
+      long skipped = inputStream.skip(bytesToSkip);
+      if (skipped <= 0) {
+        if (inputStream.read() == -1) {
+          throw new EOFException();
+        }
+        skipped = 1;
+      }
+      bytesToSkip -= skipped;
+    }
+  }
+
+  /**
+   * Release the connection, keeping it alive only if its response was read to the end.
+   */
+  private void closeConnection(boolean reusable) {
+    if (connection != null) {
+      if (!reusable) {
+        connection.disconnect();
+      }
+      connection = null;
+    }
+  }
+
+}
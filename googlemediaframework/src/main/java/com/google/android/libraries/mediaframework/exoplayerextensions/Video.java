@@ -30,6 +30,21 @@ public class Video {
     HLS
   }
 
+  /**
+   * The ways in which the video format can be adapted to the network during adaptive playback.
+   */
+  public static enum AdaptationPolicy {
+    /**
+     * Choose the format from the measured bandwidth.
+     */
+    THROUGHPUT,
+    /**
+     * Choose the format from the buffered duration, capped by the measured bandwidth. This
+     * switches less often on networks with bursty throughput.
+     */
+    BUFFER_BASED
+  }
+
   /**
    * The URL pointing to the video.
    */
@@ -45,6 +60,16 @@ public class Video {
    */
   private final String contentId;
 
+  /**
+   * How the video format is adapted to the network (for DASH).
+   */
+  private final AdaptationPolicy adaptationPolicy;
+
+  /**
+   * The buffering thresholds and renderer settings to play the video with.
+   */
+  private final PlaybackProfile playbackProfile;
+
   /**
    * @param url The URL pointing to the video.
    * @param videoType The video format of the video.
@@ -59,9 +84,49 @@ public class Video {
    * @param contentId ID of content (for DASH).
    */
   public Video(String url, VideoType videoType, String contentId) {
+    this(url, videoType, contentId, AdaptationPolicy.THROUGHPUT);
+  }
+
+  /**
+   * @param url The URL pointing to the video.
+   * @param videoType The video format of the video.
+   * @param contentId ID of content (for DASH).
+   * @param adaptationPolicy How the video format is adapted to the network (for DASH).
+   */
+  public Video(String url, VideoType videoType, String contentId,
+               AdaptationPolicy adaptationPolicy) {
+    this(url, videoType, contentId, adaptationPolicy, PlaybackProfile.DEFAULT);
+  }
+
+  /**
+   * @param url The URL pointing to the video.
+   * @param videoType The video format of the video.
+   * @param contentId ID of content (for DASH).
+   * @param adaptationPolicy How the video format is adapted to the network (for DASH).
+   * @param playbackProfile The buffering thresholds and renderer settings to play the video with
+   *                        (ex {@link PlaybackProfile#FAST_START}).
+   */
+  public Video(String url, VideoType videoType, String contentId,
+               AdaptationPolicy adaptationPolicy, PlaybackProfile playbackProfile) {
     this.url = url;
     this.videoType = videoType;
     this.contentId = contentId;
+    this.adaptationPolicy = adaptationPolicy;
+    this.playbackProfile = playbackProfile;
+  }
+
+  /**
+   * Returns how the video format is adapted to the network (for DASH).
+   */
+  public AdaptationPolicy getAdaptationPolicy() {
+    return adaptationPolicy;
+  }
+
+  /**
+   * Returns the buffering thresholds and renderer settings to play the video with.
+   */
+  public PlaybackProfile getPlaybackProfile() {
+    return playbackProfile;
   }
 
   /**
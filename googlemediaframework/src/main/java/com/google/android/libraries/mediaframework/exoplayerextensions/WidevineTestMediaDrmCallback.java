@@ -50,11 +50,30 @@ public class WidevineTestMediaDrmCallback implements MediaDrmCallback {
    */
   private final String defaultUri;
 
+  /**
+   * Whether key requests always go to {@link #defaultUri}, rather than to the URL carried by the
+   * request.
+   */
+  private final boolean forceDefaultUri;
+
   /**
    * @param videoId The ID of the video to be played.
    */
   public WidevineTestMediaDrmCallback(String videoId) {
     defaultUri = WIDEVINE_GTS_DEFAULT_BASE_URI + videoId;
+    forceDefaultUri = false;
+  }
+
+  /**
+   * @param videoId The ID of the video to be played.
+   * @param licenseServerBaseUri The URL of the license server, to which the video ID is
+   *                             appended. All key requests go to this server, even those which
+   *                             carry their own URL (ex. to use a local stand-in for the
+   *                             Widevine GTS).
+   */
+  public WidevineTestMediaDrmCallback(String videoId, String licenseServerBaseUri) {
+    defaultUri = licenseServerBaseUri + videoId;
+    forceDefaultUri = true;
   }
 
   @Override
@@ -67,7 +86,7 @@ public class WidevineTestMediaDrmCallback implements MediaDrmCallback {
   @Override
   public byte[] executeKeyRequest(UUID uuid, KeyRequest request) throws IOException {
     String url = request.getDefaultUrl();
-    if (TextUtils.isEmpty(url)) {
+    if (forceDefaultUri || TextUtils.isEmpty(url)) {
       url = defaultUri;
     }
     return ExoplayerUtil.executePost(url, request.getData(), null);
@@ -21,6 +21,8 @@ import android.graphics.Color;
 import android.widget.FrameLayout;
 
 import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper;
+import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapperPool;
+import com.google.android.libraries.mediaframework.exoplayerextensions.MemoryPressureHandler;
 import com.google.android.libraries.mediaframework.exoplayerextensions.ObservablePlayerControl;
 import com.google.android.libraries.mediaframework.exoplayerextensions.RendererBuilderFactory;
 import com.google.android.libraries.mediaframework.exoplayerextensions.Video;
@@ -60,6 +62,12 @@ public class LayerManager {
    */
   private ExoplayerWrapper exoplayerWrapper;
 
+  /**
+   * The pool the {@link ExoplayerWrapper} was borrowed from, or null if it was created by this
+   * {@link LayerManager}.
+   */
+  private final ExoplayerWrapperPool wrapperPool;
+
   /**
    * Given a container, create the video layers and add them to the container.
    * @param activity The activity which will display the video player.
@@ -71,14 +79,61 @@ public class LayerManager {
                       FrameLayout container,
                       Video video,
                       List<Layer> layers) {
+    this(activity, container, video, layers, null);
+  }
+
+  /**
+   * Given a container, create the video layers and add them to the container.
+   * @param activity The activity which will display the video player.
+   * @param container The frame layout which will contain the views.
+   * @param video the video that will be played by this LayerManager.
+   * @param layers The layers which should be displayed on top of the container.
+   * @param wrapperPool If not null, the {@link ExoplayerWrapper} is borrowed from this pool and
+   *                    recycled into it when {@link #release()} is called.
+   */
+  public LayerManager(Activity activity,
+                      FrameLayout container,
+                      Video video,
+                      List<Layer> layers,
+                      ExoplayerWrapperPool wrapperPool) {
+    this(activity, container, video, layers, wrapperPool, false);
+  }
+
+  /**
+   * Given a container, create the video layers and add them to the container.
+   * @param activity The activity which will display the video player.
+   * @param container The frame layout which will contain the views.
+   * @param video the video that will be played by this LayerManager.
+   * @param layers The layers which should be displayed on top of the container.
+   * @param wrapperPool If not null, the {@link ExoplayerWrapper} is borrowed from this pool and
+   *                    recycled into it when {@link #release()} is called.
+   * @param buildInBackground Whether the renderers are built on a background thread rather than
+   *                          on the main thread, which keeps large manifests from causing jank
+   *                          during startup.
+   */
+  public LayerManager(Activity activity,
+                      FrameLayout container,
+                      Video video,
+                      List<Layer> layers,
+                      ExoplayerWrapperPool wrapperPool,
+                      boolean buildInBackground) {
     this.activity = activity;
     this.container = container;
+    this.wrapperPool = wrapperPool;
     container.setBackgroundColor(Color.BLACK);
 
+    // Make sure buffers shrink when the system is low on memory.
+    MemoryPressureHandler.getInstance(activity);
+
     ExoplayerWrapper.RendererBuilder rendererBuilder =
-        RendererBuilderFactory.createRendererBuilder(activity, video);
+        RendererBuilderFactory.createRendererBuilder(activity, video, null, null,
+            buildInBackground);
 
-    exoplayerWrapper = new ExoplayerWrapper(rendererBuilder);
+    if (wrapperPool != null) {
+      exoplayerWrapper = wrapperPool.acquire(rendererBuilder, video.getPlaybackProfile());
+    } else {
+      exoplayerWrapper = new ExoplayerWrapper(rendererBuilder, video.getPlaybackProfile());
+    }
     exoplayerWrapper.prepare();
 
     this.control = exoplayerWrapper.getPlayerControl();
@@ -128,7 +183,11 @@ public class LayerManager {
   public void release() {
     container.removeAllViews();
     if (exoplayerWrapper != null) {
-      exoplayerWrapper.release();
+      if (wrapperPool != null) {
+        wrapperPool.recycle(exoplayerWrapper);
+      } else {
+        exoplayerWrapper.release();
+      }
       exoplayerWrapper = null;
     }
   }
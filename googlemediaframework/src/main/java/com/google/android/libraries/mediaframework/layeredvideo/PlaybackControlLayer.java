@@ -26,6 +26,7 @@ import android.graphics.PorterDuff;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import android.os.Message;
+import android.view.Choreographer;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -41,6 +42,7 @@ import android.widget.TextView;
 import com.google.android.exoplayer.util.PlayerControl;
 import com.google.android.libraries.mediaframework.R;
 import com.google.android.libraries.mediaframework.exoplayerextensions.PlayerControlCallback;
+import com.google.android.libraries.mediaframework.exoplayerextensions.ScrubSeekController;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
@@ -127,11 +129,9 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
     }
 
     /**
-     * Receives either a {@link PlaybackControlLayer#FADE_OUT} message (which hides the playback
-     * control layer) or a {@link PlaybackControlLayer#SHOW_PROGRESS} message (which updates the
-     * seek bar to reflect the progress in the video).
-     * @param msg Either a {@link PlaybackControlLayer#FADE_OUT} or
-     * {@link PlaybackControlLayer#SHOW_PROGRESS} message.
+     * Receives a {@link PlaybackControlLayer#FADE_OUT} message, which hides the playback control
+     * layer.
+     * @param msg A {@link PlaybackControlLayer#FADE_OUT} message.
      */
     @Override
     public void handleMessage(Message msg) {
@@ -139,24 +139,51 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
       if (layer == null || layer.getLayerManager().getControl() == null) {
         return;
       }
-      int pos;
       switch (msg.what) {
         case FADE_OUT:
           layer.hide();
           break;
-        case SHOW_PROGRESS:
-          pos = layer.updateProgress();
-          if (!layer.isSeekbarDragging
-              && layer.isVisible
-              && layer.getLayerManager().getControl().isPlaying()) {
-            msg = obtainMessage(SHOW_PROGRESS);
-            sendMessageDelayed(msg, 1000 - (pos % 1000));
-          }
-          break;
       }
     }
   }
 
+  /**
+   * Updates the seek bar and time views on every display frame while the controls are visible
+   * and the video is playing, and stops as soon as either is no longer true.
+   */
+  private class ProgressFrameCallback implements Choreographer.FrameCallback {
+
+    private boolean running;
+
+    public void start() {
+      if (!running) {
+        running = true;
+        Choreographer.getInstance().postFrameCallback(this);
+      }
+    }
+
+    public void stop() {
+      running = false;
+      Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+      if (!running) {
+        return;
+      }
+      PlayerControl playerControl = getLayerManager().getControl();
+      if (playerControl == null || isSeekbarDragging || !isVisible
+          || !playerControl.isPlaying()) {
+        running = false;
+        return;
+      }
+      updateProgress();
+      Choreographer.getInstance().postFrameCallback(this);
+    }
+
+  }
+
   /**
    * The chrome (the top chrome, bottom chrome, and background) is by default a slightly
    * transparent black.
@@ -189,9 +216,9 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
   private static final int FADE_OUT = 1;
 
   /**
-   * Used by the {@link MessageHandler} to indicate that media controls should update progress bar.
+   * The maximum length of a time formatted by {@link #formatTime}.
    */
-  private static final int SHOW_PROGRESS = 2;
+  private static final int MAX_TIME_LENGTH = 16;
 
   /**
    * List of image buttons which are displayed in the right side of the top chrome.
@@ -270,11 +297,16 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
   private FullscreenCallback fullscreenCallback;
 
   /**
-   * The message handler which deals with displaying progress and fading out the media controls
+   * The message handler which deals with fading out the media controls.
    * We use it so that we can make the view fade out after a timeout (by sending a delayed message).
    */
   private Handler handler = new MessageHandler(this);
 
+  /**
+   * Drives the progress updates while the controls are visible.
+   */
+  private ProgressFrameCallback progressFrameCallback = new ProgressFrameCallback();
+
   /**
    * Whether the player is currently in fullscreen mode.
    */
@@ -285,6 +317,17 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
    */
   private boolean isSeekbarDragging;
 
+  /**
+   * Coalesces the positions produced while the seek bar is dragged into as few seeks as possible.
+   */
+  private ScrubSeekController scrubSeekController;
+
+  /**
+   * The latest position the seek bar was dragged to, or -1 if it has not moved since the drag
+   * started.
+   */
+  private int scrubPositionMs = -1;
+
   /**
    * The {@link LayerManager} which is responsible for adding this layer to the container and
    * displaying it on top of the video player.
@@ -342,6 +385,26 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
    */
   private Formatter timeFormatter;
 
+  /**
+   * Reused buffers holding the text of the current time and end time views, so that progress
+   * updates do not allocate.
+   */
+  private final char[] currentTimeChars = new char[MAX_TIME_LENGTH];
+  private final char[] endTimeChars = new char[MAX_TIME_LENGTH];
+
+  /**
+   * The whole seconds shown by the current time and end time views, or -1 if unknown. The views
+   * are only updated when these change.
+   */
+  private int shownCurrentTimeSeconds = -1;
+  private int shownEndTimeSeconds = -1;
+
+  /**
+   * The duration returned by the last query of the player, in milliseconds, or -1 if it has not
+   * been queried yet.
+   */
+  private int queriedDurationMs = -1;
+
   /**
    * Contains the logo, video title, and other actions button. It can be tinted with a color for
    * branding.
@@ -431,6 +494,7 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
   @Override
   public FrameLayout createView(LayerManager layerManager) {
     this.layerManager = layerManager;
+    scrubSeekController = new ScrubSeekController(layerManager.getExoplayerWrapper());
 
     LayoutInflater inflater = layerManager.getActivity().getLayoutInflater();
 
@@ -471,6 +535,14 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
     return view;
   }
 
+  /**
+   * Returns the controller which coalesces seeks while the seek bar is dragged. Its counters
+   * show how many seeks were requested and how many were actually executed.
+   */
+  public ScrubSeekController getScrubSeekController() {
+    return scrubSeekController;
+  }
+
   /**
    * Hides the seek bar thumb and prevents the user from seeking to different time points in the
    * video.
@@ -605,7 +677,7 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
                 getLayerManager().getActivity().getWindow().getDecorView().setSystemUiVisibility(
                     View.SYSTEM_UI_FLAG_HIDE_NAVIGATION | View.SYSTEM_UI_FLAG_FULLSCREEN);
               }
-              handler.removeMessages(SHOW_PROGRESS);
+              progressFrameCallback.stop();
               isVisible = false;
             }
 
@@ -645,7 +717,7 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
     }
     updatePlayPauseButton();
 
-    handler.sendEmptyMessage(SHOW_PROGRESS);
+    progressFrameCallback.start();
 
     Message msg = handler.obtainMessage(FADE_OUT);
     handler.removeMessages(FADE_OUT);
@@ -713,6 +785,9 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
   @Override
   public void onPlay() {
     updatePlayPauseButton();
+    if (isVisible) {
+      progressFrameCallback.start();
+    }
   }
 
   /**
@@ -870,27 +945,33 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
         PlayerControl playerControl = getLayerManager().getControl();
         long duration = playerControl.getDuration();
         long newposition = (duration * progress) / 1000L;
-        playerControl.seekTo((int) newposition);
-        if (currentTime != null) {
-          currentTime.setText(stringForTime((int) newposition));
+        if (isSeekbarDragging) {
+          // Only the latest position matters; the final one is sought when the drag ends.
+          scrubPositionMs = (int) newposition;
+          scrubSeekController.scrubTo(scrubPositionMs);
+        } else {
+          scrubSeekController.seekTo((int) newposition);
         }
+        setTimeText(currentTime, currentTimeChars, (int) newposition / 1000, true);
       }
 
       @Override
       public void onStartTrackingTouch(SeekBar seekBar) {
         show(0);
         isSeekbarDragging = true;
-        handler.removeMessages(SHOW_PROGRESS);
+        progressFrameCallback.stop();
       }
 
       @Override
       public void onStopTrackingTouch(SeekBar seekBar) {
         isSeekbarDragging = false;
+        if (scrubPositionMs != -1) {
+          scrubSeekController.seekTo(scrubPositionMs);
+          scrubPositionMs = -1;
+        }
         updateProgress();
         updatePlayPauseButton();
         show(DEFAULT_TIMEOUT_MS);
-
-        handler.sendEmptyMessage(SHOW_PROGRESS);
       }
     });
 
@@ -899,6 +980,11 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
     timeFormat = new StringBuilder();
     timeFormatter = new Formatter(timeFormat, Locale.getDefault());
 
+    // The time views are new, so they must be filled in on the next update.
+    shownCurrentTimeSeconds = -1;
+    shownEndTimeSeconds = -1;
+    queriedDurationMs = -1;
+
   }
 
   /**
@@ -1045,7 +1131,8 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
   }
 
   /**
-   * Adjust the position of the action bar to reflect the progress of the video.
+   * Adjust the position of the action bar to reflect the progress of the video. The time views
+   * are only updated when the whole seconds they show change, and without allocating.
    */
   public int updateProgress() {
     PlayerControl playerControl = getLayerManager().getControl();
@@ -1054,7 +1141,13 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
     }
 
     int position = playerControl.getCurrentPosition();
-    int duration = playerControl.getDuration();
+    int positionSeconds = position / 1000;
+    boolean secondChanged = positionSeconds != shownCurrentTimeSeconds;
+    // The duration and buffered percentage change slowly, so only query them once per second.
+    if (secondChanged || queriedDurationMs == -1) {
+      queriedDurationMs = playerControl.getDuration();
+    }
+    int duration = queriedDurationMs;
 
     if (seekBar != null) {
       if (duration > 0) {
@@ -1062,17 +1155,74 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
         seekBar.setProgress((int) pos);
       }
 
-      int percent = playerControl.getBufferPercentage();
-      seekBar.setSecondaryProgress(percent * 10);
+      if (secondChanged) {
+        int percent = playerControl.getBufferPercentage();
+        seekBar.setSecondaryProgress(percent * 10);
+      }
     }
 
-    if (endTime != null) {
-      endTime.setText(stringForTime(duration));
-    }
-    if (currentTime != null) {
-      currentTime.setText(stringForTime(position));
+    if (secondChanged) {
+      setTimeText(endTime, endTimeChars, duration / 1000, false);
+      setTimeText(currentTime, currentTimeChars, positionSeconds, true);
     }
 
     return position;
   }
-}
\ No newline at end of file
+
+  /**
+   * Show a time in a text view if it differs from the time the view already shows.
+   * @param textView The view, or null.
+   * @param chars The buffer which holds the text of the view.
+   * @param timeSeconds The time to show.
+   * @param isCurrentTime Whether the view is the current time view (as opposed to the end time).
+   */
+  private void setTimeText(TextView textView, char[] chars, int timeSeconds,
+                           boolean isCurrentTime) {
+    int shownSeconds = isCurrentTime ? shownCurrentTimeSeconds : shownEndTimeSeconds;
+    if (textView == null || timeSeconds == shownSeconds) {
+      return;
+    }
+    int length = formatTime(timeSeconds, chars);
+    textView.setText(chars, 0, length);
+    if (isCurrentTime) {
+      shownCurrentTimeSeconds = timeSeconds;
+    } else {
+      shownEndTimeSeconds = timeSeconds;
+    }
+  }
+
+  /**
+   * Format a time to H:MM:SS or MM:SS form, like {@link #stringForTime}, but into the given
+   * buffer.
+   * @param totalSeconds The time to format.
+   * @param chars A buffer of at least MAX_TIME_LENGTH characters.
+   * @return The number of characters written.
+   */
+  private static int formatTime(int totalSeconds, char[] chars) {
+    int seconds = totalSeconds % 60;
+    int minutes = (totalSeconds / 60) % 60;
+    int hours = totalSeconds / 3600;
+
+    int length = 0;
+    if (hours > 0) {
+      // Write the hours backwards, since their number of digits is unknown.
+      int start = length;
+      do {
+        chars[length++] = (char) ('0' + hours % 10);
+        hours /= 10;
+      } while (hours > 0);
+      for (int i = start, j = length - 1; i < j; i++, j--) {
+        char c = chars[i];
+        chars[i] = chars[j];
+        chars[j] = c;
+      }
+      chars[length++] = ':';
+    }
+    chars[length++] = (char) ('0' + minutes / 10);
+    chars[length++] = (char) ('0' + minutes % 10);
+    chars[length++] = ':';
+    chars[length++] = (char) ('0' + seconds / 10);
+    chars[length++] = (char) ('0' + seconds % 10);
+    return length;
+  }
+}
@@ -21,7 +21,9 @@ import android.graphics.drawable.Drawable;
 import android.view.View;
 import android.widget.FrameLayout;
 
+import com.google.android.libraries.mediaframework.exoplayerextensions.BufferBudget;
 import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper;
+import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapperPool;
 import com.google.android.libraries.mediaframework.exoplayerextensions.Video;
 
 import java.util.ArrayList;
@@ -92,6 +94,55 @@ public class SimpleVideoPlayer {
                            boolean autoplay,
                            int startPostitionMs,
                            PlaybackControlLayer.FullscreenCallback fullscreenCallback) {
+    this(activity, container, video, videoTitle, autoplay, startPostitionMs, fullscreenCallback,
+        null);
+  }
+
+  /**
+   * @param activity The activity that will contain the video player.
+   * @param container The {@link FrameLayout} which will contain the video player.
+   * @param video The video that should be played.
+   * @param videoTitle The title of the video (displayed on the left of the top chrome).
+   * @param autoplay Whether the video should start playing immediately.
+   * @param fullscreenCallback The callback which gets triggered when the player enters or leaves
+   *                           fullscreen mode.
+   * @param wrapperPool If not null, the underlying {@link ExoplayerWrapper} is borrowed from this
+   *                    pool and recycled into it when {@link #release()} is called.
+   */
+  public SimpleVideoPlayer(Activity activity,
+                           FrameLayout container,
+                           Video video,
+                           String videoTitle,
+                           boolean autoplay,
+                           int startPostitionMs,
+                           PlaybackControlLayer.FullscreenCallback fullscreenCallback,
+                           ExoplayerWrapperPool wrapperPool) {
+    this(activity, container, video, videoTitle, autoplay, startPostitionMs, fullscreenCallback,
+        wrapperPool, false);
+  }
+
+  /**
+   * @param activity The activity that will contain the video player.
+   * @param container The {@link FrameLayout} which will contain the video player.
+   * @param video The video that should be played.
+   * @param videoTitle The title of the video (displayed on the left of the top chrome).
+   * @param autoplay Whether the video should start playing immediately.
+   * @param fullscreenCallback The callback which gets triggered when the player enters or leaves
+   *                           fullscreen mode.
+   * @param wrapperPool If not null, the underlying {@link ExoplayerWrapper} is borrowed from this
+   *                    pool and recycled into it when {@link #release()} is called.
+   * @param buildInBackground Whether the renderers are built on a background thread rather than
+   *                          on the main thread.
+   */
+  public SimpleVideoPlayer(Activity activity,
+                           FrameLayout container,
+                           Video video,
+                           String videoTitle,
+                           boolean autoplay,
+                           int startPostitionMs,
+                           PlaybackControlLayer.FullscreenCallback fullscreenCallback,
+                           ExoplayerWrapperPool wrapperPool,
+                           boolean buildInBackground) {
     this.activity = activity;
 
     playbackControlLayer = new PlaybackControlLayer(videoTitle, fullscreenCallback);
@@ -106,7 +157,9 @@ public class SimpleVideoPlayer {
     layerManager = new LayerManager(activity,
         container,
         video,
-        layers);
+        layers,
+        wrapperPool,
+        buildInBackground);
 
     layerManager.getExoplayerWrapper().setTextListener(subtitleLayer);
 
@@ -220,6 +273,15 @@ public class SimpleVideoPlayer {
     videoSurfaceLayer.moveSurfaceToForeground();
   }
 
+  /**
+   * Set how much of the process-wide buffer memory this player may use when other players are
+   * active (ex. an ad player is given less than the content player).
+   * @param priority One of the {@link BufferBudget} PRIORITY_* constants.
+   */
+  public void setBufferPriority(int priority) {
+    layerManager.getExoplayerWrapper().setBufferPriority(priority);
+  }
+
   /**
    * Pause video playback.
    */
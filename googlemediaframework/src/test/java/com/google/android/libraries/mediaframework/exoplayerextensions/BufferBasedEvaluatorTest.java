@@ -0,0 +1,279 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.exoplayer.MediaFormat;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.chunk.Format;
+import com.google.android.exoplayer.chunk.FormatEvaluator;
+import com.google.android.exoplayer.chunk.FormatEvaluator.AdaptiveEvaluator;
+import com.google.android.exoplayer.chunk.FormatEvaluator.Evaluation;
+import com.google.android.exoplayer.chunk.MediaChunk;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
+import com.google.android.exoplayer.util.Clock;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Replays bandwidth traces through {@link BufferBasedEvaluator} and {@link AdaptiveEvaluator},
+ * in a simulation of a DASH player which loads one chunk at a time, and compares the number of
+ * format switches and stalls of both.
+ */
+public class BufferBasedEvaluatorTest {
+
+  private static final int CHUNK_DURATION_MS = 4000;
+  private static final int MAX_BUFFER_MS = 40000;
+  private static final int TICK_MS = 100;
+  private static final int PLAYBACK_DURATION_MS = 10 * 60 * 1000;
+  private static final int TRACE_COUNT = 20;
+
+  /**
+   * The formats, in the order of decreasing bandwidth in which chunk sources pass them.
+   */
+  private static final Format[] FORMATS = new Format[] {
+      new Format("3", "video/mp4", 1920, 1080, -1, -1, 3000000),
+      new Format("2", "video/mp4", 1280, 720, -1, -1, 1500000),
+      new Format("1", "video/mp4", 640, 360, -1, -1, 700000),
+      new Format("0", "video/mp4", 426, 240, -1, -1, 300000)};
+
+  @Test
+  public void testFewerSwitchesOnBurstyTraces() {
+    Result throughputBased = new Result();
+    Result bufferBased = new Result();
+    for (int seed = 0; seed < TRACE_COUNT; seed++) {
+      int[] trace = createBurstyTrace(new Random(seed));
+      throughputBased.add(simulate(trace, false));
+      bufferBased.add(simulate(trace, true));
+    }
+
+    String results = "Buffer-based: " + bufferBased + ", throughput-based: " + throughputBased;
+    assertTrue(results, bufferBased.switchCount * 4 < throughputBased.switchCount * 3);
+    assertTrue(results, bufferBased.stallCount <= throughputBased.stallCount);
+  }
+
+  @Test
+  public void testNoStallsOnSteadyTrace() {
+    int[] trace = new int[PLAYBACK_DURATION_MS / 1000 * 2];
+    for (int i = 0; i < trace.length; i++) {
+      trace[i] = 2500000;
+    }
+    Result bufferBased = simulate(trace, true);
+
+    assertEquals(0, bufferBased.stallCount);
+    assertTrue("Buffer-based: " + bufferBased, bufferBased.switchCount <= 3);
+  }
+
+  /**
+   * Returns one bandwidth per second, in bits per second, which alternates between bursts and
+   * dips of a few seconds, with a long slow period in the middle.
+   */
+  private static int[] createBurstyTrace(Random random) {
+    int[] trace = new int[PLAYBACK_DURATION_MS / 1000 * 2];
+    int second = 0;
+    while (second < trace.length) {
+      boolean slowPeriod = second > 240 && second < 300;
+      int bandwidth = slowPeriod ? 400000 + random.nextInt(400000)
+          : random.nextBoolean() ? 3000000 + random.nextInt(3000000)
+          : 500000 + random.nextInt(700000);
+      int length = 2 + random.nextInt(6);
+      for (int i = 0; i < length && second < trace.length; i++) {
+        trace[second++] = bandwidth;
+      }
+    }
+    return trace;
+  }
+
+  /**
+   * Play the trace with one of the evaluators, and return the switches and stalls.
+   */
+  private static Result simulate(int[] trace, boolean bufferBased) {
+    FakeClock clock = new FakeClock();
+    DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter(null, null, clock);
+    FormatEvaluator evaluator = bufferBased ? new BufferBasedEvaluator(bandwidthMeter)
+        : new AdaptiveEvaluator(bandwidthMeter);
+    evaluator.enable();
+
+    List<FakeMediaChunk> queue = new ArrayList<FakeMediaChunk>();
+    Evaluation evaluation = new Evaluation();
+    Result result = new Result();
+    long playbackPositionUs = 0;
+    boolean started = false;
+    boolean stalled = false;
+    FakeMediaChunk loading = null;
+    long loadedBits = 0;
+    Format lastLoadedFormat = null;
+
+    while (playbackPositionUs < PLAYBACK_DURATION_MS * 1000L) {
+      long nextLoadPositionUs = queue.isEmpty() ? playbackPositionUs
+          : queue.get(queue.size() - 1).endTimeUs;
+      if (loading == null && nextLoadPositionUs - playbackPositionUs < MAX_BUFFER_MS * 1000L) {
+        evaluation.queueSize = queue.size();
+        evaluator.evaluate(queue, playbackPositionUs, FORMATS, evaluation);
+        while (queue.size() > evaluation.queueSize) {
+          queue.remove(queue.size() - 1);
+        }
+        nextLoadPositionUs = queue.isEmpty() ? playbackPositionUs
+            : queue.get(queue.size() - 1).endTimeUs;
+        loading = new FakeMediaChunk(evaluation.format, nextLoadPositionUs,
+            nextLoadPositionUs + CHUNK_DURATION_MS * 1000L);
+        loadedBits = 0;
+        bandwidthMeter.onTransferStart();
+      }
+
+      int second = (int) Math.min(clock.timeMs / 1000, trace.length - 1);
+      clock.timeMs += TICK_MS;
+      if (loading != null) {
+        long bits = (long) trace[second] * TICK_MS / 1000;
+        loadedBits += bits;
+        bandwidthMeter.onBytesTransferred((int) (bits / 8));
+        if (loadedBits >= (long) loading.format.bitrate * CHUNK_DURATION_MS / 1000) {
+          bandwidthMeter.onTransferEnd();
+          queue.add(loading);
+          if (lastLoadedFormat != null && !lastLoadedFormat.equals(loading.format)) {
+            result.switchCount++;
+          }
+          lastLoadedFormat = loading.format;
+          loading = null;
+          started = true;
+        }
+      }
+
+      if (started) {
+        long bufferedUs = queue.isEmpty() ? 0
+            : queue.get(queue.size() - 1).endTimeUs - playbackPositionUs;
+        if (bufferedUs > 0) {
+          stalled = false;
+          playbackPositionUs += Math.min(bufferedUs, TICK_MS * 1000L);
+          while (!queue.isEmpty() && queue.get(0).endTimeUs <= playbackPositionUs) {
+            queue.remove(0);
+          }
+        } else if (!stalled) {
+          stalled = true;
+          result.stallCount++;
+        }
+      }
+    }
+    return result;
+  }
+
+  private static final class Result {
+
+    public int switchCount;
+    public int stallCount;
+
+    public void add(Result other) {
+      switchCount += other.switchCount;
+      stallCount += other.stallCount;
+    }
+
+    @Override
+    public String toString() {
+      return "switches=" + switchCount + ", stalls=" + stallCount;
+    }
+
+  }
+
+  private static final class FakeClock implements Clock {
+
+    public long timeMs;
+
+    @Override
+    public long elapsedRealtime() {
+      return timeMs;
+    }
+
+  }
+
+  /**
+   * A chunk which only has a format and a time range, which is all the evaluators look at.
+   */
+  private static final class FakeMediaChunk extends MediaChunk {
+
+    public FakeMediaChunk(Format format, long startTimeUs, long endTimeUs) {
+      super(new FakeDataSource(),
+          new DataSpec(null, 0, format.bitrate / 8 * (endTimeUs - startTimeUs) / 1000000, null),
+          format, 0, startTimeUs, endTimeUs, -1);
+    }
+
+    @Override
+    public void seekToStart() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean seekTo(long positionUs, boolean allowNoop) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean prepare() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean sampleAvailable() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean read(SampleHolder holder) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public MediaFormat getMediaFormat() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Map<UUID, byte[]> getPsshInfo() {
+      throw new UnsupportedOperationException();
+    }
+
+  }
+
+  private static final class FakeDataSource implements DataSource {
+
+    @Override
+    public long open(DataSpec dataSpec) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) {
+      throw new UnsupportedOperationException();
+    }
+
+  }
+
+}
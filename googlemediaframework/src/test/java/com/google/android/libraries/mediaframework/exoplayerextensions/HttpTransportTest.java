@@ -0,0 +1,268 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Runs {@link HttpTransport} against a local server, and benchmarks it against a new connection
+ * per request, which is how license requests were made before the transport.
+ */
+public class HttpTransportTest {
+
+  private static final int LICENSE_SIZE = 2 * 1024;
+  private static final int MANIFEST_SIZE = 100 * 1024;
+  private static final int BENCHMARK_WARMUP_REQUESTS = 2000;
+  private static final int BENCHMARK_REQUESTS = 1000;
+
+  private HttpServer server;
+  private String baseUrl;
+  private byte[] license;
+  private byte[] manifest;
+
+  /**
+   * The ports from which the server was connected to, one per connection.
+   */
+  private Set<Integer> clientPorts;
+
+  @BeforeClass
+  public static void setUpClass() {
+    // Without it, the server delays each response by waiting for the ACK of its headers.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    Random random = new Random(0);
+    license = new byte[LICENSE_SIZE];
+    random.nextBytes(license);
+    manifest = new byte[MANIFEST_SIZE];
+    random.nextBytes(manifest);
+    clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/license", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        readFully(exchange.getRequestBody());
+        respond(exchange, 200, license, false);
+      }
+    });
+    server.createContext("/manifest", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestHeaders().getFirst("If-None-Match") != null) {
+          respond(exchange, HttpURLConnection.HTTP_NOT_MODIFIED, null, false);
+        } else {
+          // Chunked, so that the transport doesn't know the length in advance.
+          respond(exchange, 200, manifest, true);
+        }
+      }
+    });
+    server.start();
+    baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testReusesConnection() throws IOException {
+    HttpTransport transport = createTransport();
+    for (int i = 0; i < 20; i++) {
+      HttpTransport.Response response = transport.post(baseUrl + "/license", new byte[100], null);
+      assertEquals(200, response.getResponseCode());
+      assertArrayEquals(license, response.getBody());
+    }
+    assertEquals(1, clientPorts.size());
+  }
+
+  @Test
+  public void testReadsBodyOfUnknownLength() throws IOException {
+    HttpTransport.Response response = createTransport().get(baseUrl + "/manifest", null);
+    assertEquals(200, response.getResponseCode());
+    assertArrayEquals(manifest, response.getBody());
+  }
+
+  @Test
+  public void testNotModified() throws IOException {
+    HttpTransport transport = createTransport();
+    HttpTransport.Response response = transport.get(baseUrl + "/manifest",
+        Collections.singletonMap("If-None-Match", "\"1\""));
+    assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, response.getResponseCode());
+    assertEquals(0, response.getBody().length);
+    // The transport is still usable after a response without a body.
+    assertArrayEquals(manifest, transport.get(baseUrl + "/manifest", null).getBody());
+  }
+
+  /**
+   * Compares the requests per second and the bytes allocated per request of license and manifest
+   * requests through the transport with those of a new connection per request.
+   */
+  @Test
+  public void testBenchmark() throws IOException {
+    final HttpTransport transport = createTransport();
+    final String licenseUrl = baseUrl + "/license";
+    final String manifestUrl = baseUrl + "/manifest";
+    final byte[] challenge = new byte[1024];
+    Result transportLicenseResult = benchmark(LICENSE_SIZE, new Request() {
+      @Override
+      public byte[] execute() throws IOException {
+        return transport.post(licenseUrl, challenge, null).getBody();
+      }
+    });
+    Result newConnectionLicenseResult = benchmark(LICENSE_SIZE, new Request() {
+      @Override
+      public byte[] execute() throws IOException {
+        return executeWithNewConnection(licenseUrl, challenge);
+      }
+    });
+    Result transportManifestResult = benchmark(MANIFEST_SIZE, new Request() {
+      @Override
+      public byte[] execute() throws IOException {
+        return transport.get(manifestUrl, null).getBody();
+      }
+    });
+    Result newConnectionManifestResult = benchmark(MANIFEST_SIZE, new Request() {
+      @Override
+      public byte[] execute() throws IOException {
+        return executeWithNewConnection(manifestUrl, null);
+      }
+    });
+
+    System.out.println("License requests through the transport: " + transportLicenseResult
+        + ", with a new connection per request: " + newConnectionLicenseResult);
+    System.out.println("Manifest requests through the transport: " + transportManifestResult
+        + ", with a new connection per request: " + newConnectionManifestResult);
+    assertTrue(transportManifestResult.allocatedBytesPerRequest
+        < newConnectionManifestResult.allocatedBytesPerRequest);
+  }
+
+  private HttpTransport createTransport() {
+    return new HttpTransport(HttpTransport.DEFAULT_CONNECTION_FACTORY,
+        HttpTransport.DEFAULT_CONNECT_TIMEOUT_MS, HttpTransport.DEFAULT_READ_TIMEOUT_MS);
+  }
+
+  private Result benchmark(int responseSize, Request request) throws IOException {
+    for (int i = 0; i < BENCHMARK_WARMUP_REQUESTS; i++) {
+      request.execute();
+    }
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    long startAllocatedBytes = threadBean.getThreadAllocatedBytes(threadId);
+    long startTimeNs = System.nanoTime();
+    for (int i = 0; i < BENCHMARK_REQUESTS; i++) {
+      assertEquals(responseSize, request.execute().length);
+    }
+    long elapsedNs = System.nanoTime() - startTimeNs;
+    Result result = new Result();
+    result.requestsPerSecond = BENCHMARK_REQUESTS * 1000000000L / elapsedNs;
+    result.allocatedBytesPerRequest =
+        (threadBean.getThreadAllocatedBytes(threadId) - startAllocatedBytes) / BENCHMARK_REQUESTS;
+    return result;
+  }
+
+  /**
+   * Makes a request as ExoplayerUtil.executePost did before the transport: a new connection which
+   * is disconnected after the response, read through a 1 KB buffer into a ByteArrayOutputStream.
+   * @param data The body of a POST, or null for a GET.
+   */
+  private static byte[] executeWithNewConnection(String url, byte[] data) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    try {
+      if (data != null) {
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        OutputStream out = connection.getOutputStream();
+        out.write(data);
+        out.close();
+      }
+      return readFully(connection.getInputStream());
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private void respond(HttpExchange exchange, int responseCode, byte[] body, boolean chunked)
+      throws IOException {
+    clientPorts.add(exchange.getRemoteAddress().getPort());
+    if (body == null) {
+      exchange.sendResponseHeaders(responseCode, -1);
+    } else {
+      exchange.sendResponseHeaders(responseCode, chunked ? 0 : body.length);
+      exchange.getResponseBody().write(body);
+    }
+    exchange.close();
+  }
+
+  private static byte[] readFully(InputStream inputStream) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = inputStream.read(buffer)) != -1) {
+      output.write(buffer, 0, read);
+    }
+    inputStream.close();
+    return output.toByteArray();
+  }
+
+  private interface Request {
+
+    byte[] execute() throws IOException;
+
+  }
+
+  private static final class Result {
+
+    public long requestsPerSecond;
+    public long allocatedBytesPerRequest;
+
+    @Override
+    public String toString() {
+      return requestsPerSecond + " requests/s, " + allocatedBytesPerRequest + " bytes/request";
+    }
+
+  }
+
+}
@@ -0,0 +1,276 @@
+/**
+ Copyright 2015 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Goes through the life of an offline license in {@link OfflineLicenseStore}, as
+ * {@link OfflineDrmSessionManager} drives it: store, restore, renew and release.
+ */
+public class OfflineLicenseStoreTest {
+
+  private static final String CONTENT_ID = "content";
+  private static final String KEY_ID = "0123456789abcdef";
+  private static final long HOUR_MS = 60 * 60 * 1000;
+
+  private static final byte[] KEY_SET_ID = new byte[] {1, 2, 3};
+  private static final byte[] RENEWED_KEY_SET_ID = new byte[] {4, 5, 6};
+
+  private OfflineLicenseStore store;
+
+  @Before
+  public void setUp() {
+    store = new OfflineLicenseStore(new FakeSharedPreferences());
+  }
+
+  @Test
+  public void testRestoreStoredLicense() {
+    long expiryTimeMs = System.currentTimeMillis() + HOUR_MS;
+    store.put(CONTENT_ID, KEY_ID, KEY_SET_ID, expiryTimeMs);
+
+    OfflineLicenseStore.License license = store.get(CONTENT_ID, KEY_ID);
+    assertArrayEquals(KEY_SET_ID, license.getKeySetId());
+    assertEquals(expiryTimeMs, license.getExpiryTimeMs());
+    assertFalse(store.needsRenewal(license));
+    assertNull(store.get(CONTENT_ID, "fedcba9876543210"));
+    assertTrue(store.getPendingReleases().isEmpty());
+  }
+
+  @Test
+  public void testExpiredLicenseIsReleased() {
+    store.put(CONTENT_ID, KEY_ID, KEY_SET_ID, System.currentTimeMillis() - 1);
+
+    assertNull(store.get(CONTENT_ID, KEY_ID));
+    assertPendingReleases(KEY_SET_ID);
+    store.onReleased(KEY_SET_ID);
+    assertTrue(store.getPendingReleases().isEmpty());
+  }
+
+  @Test
+  public void testNeedsRenewalInLastQuarterOfLifetime() {
+    long nowMs = System.currentTimeMillis();
+    assertFalse(store.needsRenewal(
+        new OfflineLicenseStore.License(KEY_SET_ID, nowMs - HOUR_MS, nowMs + 4 * HOUR_MS)));
+    assertTrue(store.needsRenewal(
+        new OfflineLicenseStore.License(KEY_SET_ID, nowMs - 4 * HOUR_MS, nowMs + HOUR_MS)));
+    assertEquals(nowMs + 3 * HOUR_MS, store.getRenewalTimeMs(
+        new OfflineLicenseStore.License(KEY_SET_ID, nowMs, nowMs + 4 * HOUR_MS)));
+  }
+
+  @Test
+  public void testRenewalDefersReleaseUntilSessionCloses() {
+    store.put(CONTENT_ID, KEY_ID, KEY_SET_ID, System.currentTimeMillis() + HOUR_MS);
+    store.onSessionOpened(store.get(CONTENT_ID, KEY_ID).getKeySetId());
+
+    store.put(CONTENT_ID, KEY_ID, RENEWED_KEY_SET_ID, System.currentTimeMillis() + 2 * HOUR_MS);
+    assertArrayEquals(RENEWED_KEY_SET_ID, store.get(CONTENT_ID, KEY_ID).getKeySetId());
+    assertTrue(store.getPendingReleases().isEmpty());
+
+    store.onSessionClosed(KEY_SET_ID);
+    assertPendingReleases(KEY_SET_ID);
+    store.onReleased(KEY_SET_ID);
+    assertTrue(store.getPendingReleases().isEmpty());
+  }
+
+  @Test
+  public void testReleaseWaitsForEverySession() {
+    store.put(CONTENT_ID, KEY_ID, KEY_SET_ID, System.currentTimeMillis() + HOUR_MS);
+    store.onSessionOpened(KEY_SET_ID);
+    store.onSessionOpened(KEY_SET_ID);
+    store.remove(CONTENT_ID, KEY_ID);
+
+    store.onSessionClosed(KEY_SET_ID);
+    assertTrue(store.getPendingReleases().isEmpty());
+    store.onSessionClosed(KEY_SET_ID);
+    assertPendingReleases(KEY_SET_ID);
+  }
+
+  @Test
+  public void testClearReleasesEveryLicense() {
+    store.put(CONTENT_ID, KEY_ID, KEY_SET_ID, System.currentTimeMillis() + HOUR_MS);
+    store.put("other", KEY_ID, RENEWED_KEY_SET_ID, System.currentTimeMillis() + HOUR_MS);
+    store.setOfflineRefused("refused");
+
+    store.clear();
+    assertNull(store.get(CONTENT_ID, KEY_ID));
+    assertNull(store.get("other", KEY_ID));
+    assertFalse(store.isOfflineRefused("refused"));
+    assertEquals(2, store.getPendingReleases().size());
+  }
+
+  private void assertPendingReleases(byte[] keySetId) {
+    List<byte[]> pendingReleases = store.getPendingReleases();
+    assertEquals(1, pendingReleases.size());
+    assertArrayEquals(keySetId, pendingReleases.get(0));
+  }
+
+  /**
+   * In-memory preferences, whose edits are applied right away.
+   */
+  private static final class FakeSharedPreferences implements SharedPreferences {
+
+    private final Map<String, Object> values = new HashMap<String, Object>();
+
+    @Override
+    public Map<String, ?> getAll() {
+      return new HashMap<String, Object>(values);
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+      return values.containsKey(key) ? (String) values.get(key) : defValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+      return values.containsKey(key) ? (Set<String>) values.get(key) : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+      return values.containsKey(key) ? (Integer) values.get(key) : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+      return values.containsKey(key) ? (Long) values.get(key) : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+      return values.containsKey(key) ? (Float) values.get(key) : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+      return values.containsKey(key) ? (Boolean) values.get(key) : defValue;
+    }
+
+    @Override
+    public boolean contains(String key) {
+      return values.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+      return new FakeEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(
+        OnSharedPreferenceChangeListener listener) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(
+        OnSharedPreferenceChangeListener listener) {
+      throw new UnsupportedOperationException();
+    }
+
+    private final class FakeEditor implements Editor {
+
+      private final Map<String, Object> changes = new HashMap<String, Object>();
+      private final Set<String> removals = new HashSet<String>();
+      private boolean cleared;
+
+      @Override
+      public Editor putString(String key, String value) {
+        changes.put(key, value);
+        return this;
+      }
+
+      @Override
+      public Editor putStringSet(String key, Set<String> values) {
+        changes.put(key, values);
+        return this;
+      }
+
+      @Override
+      public Editor putInt(String key, int value) {
+        changes.put(key, value);
+        return this;
+      }
+
+      @Override
+      public Editor putLong(String key, long value) {
+        changes.put(key, value);
+        return this;
+      }
+
+      @Override
+      public Editor putFloat(String key, float value) {
+        changes.put(key, value);
+        return this;
+      }
+
+      @Override
+      public Editor putBoolean(String key, boolean value) {
+        changes.put(key, value);
+        return this;
+      }
+
+      @Override
+      public Editor remove(String key) {
+        removals.add(key);
+        return this;
+      }
+
+      @Override
+      public Editor clear() {
+        cleared = true;
+        return this;
+      }
+
+      @Override
+      public boolean commit() {
+        // As in SharedPreferences, clear and removals go first, then the puts.
+        if (cleared) {
+          values.clear();
+        }
+        values.keySet().removeAll(removals);
+        values.putAll(changes);
+        return true;
+      }
+
+      @Override
+      public void apply() {
+        commit();
+      }
+
+    }
+
+  }
+
+}